@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.org.apache.tools.ant.taskdefs.cvslib;
+
+import hudson.scm.benchmarks.Synthetic;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the parsing of <tt>cvs log</tt> output by {@link ChangeLogParser}
+ * and the writing of the resulting changelog by {@link ChangeLogWriter}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(2)
+public class ChangeLogBenchmark {
+    /**
+     * Number of files in the workspace.
+     */
+    @Param({"1000", "10000"})
+    public int files;
+
+    /**
+     * Number of revisions of each file.
+     */
+    @Param({"2", "10"})
+    public int revisions;
+
+    private File ws;
+    private ChangeLogTask task;
+    private List<String> log;
+    private CVSEntry[] entries;
+
+    @Setup
+    public void setUp() throws IOException {
+        Synthetic synthetic = new Synthetic(files);
+        ws = Synthetic.createTempDir();
+        synthetic.createWorkspace(ws, false);
+        log = synthetic.cvsLog(revisions);
+
+        task = new ChangeLogTask();
+        task.setProject(new Project());
+        task.setDir(ws);
+        entries = parse();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(ws);
+    }
+
+    @Benchmark
+    public CVSEntry[] parse() {
+        ChangeLogParser parser = new ChangeLogParser(task);
+        for (String line : log) {
+            parser.stdout(line);
+        }
+        return parser.getEntrySetAsArray();
+    }
+
+    @Benchmark
+    public int write() {
+        StringWriter w = new StringWriter();
+        new ChangeLogWriter().printChangeLog(new PrintWriter(w), entries);
+        return w.getBuffer().length();
+    }
+}
@@ -0,0 +1,236 @@
+package hudson.scm.benchmarks;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Generates the synthetic workspaces and cvs transcripts the benchmarks run against.
+ * <p/>
+ * Everything is derived from a {@link Random} seeded with {@link #SEED}, so that each run of a benchmark
+ * processes exactly the same input.
+ */
+public final class Synthetic {
+    public static final long SEED = 20120101L;
+
+    /**
+     * Number of files in each directory of the workspaces.
+     */
+    public static final int FILES_PER_DIR = 20;
+
+    public static final String CVSROOT = ":pserver:anonymous@cvs.example.org:/cvsroot";
+    public static final String MODULE = "module";
+
+    private static final String[] AUTHORS = {"alice", "bob", "carol", "dave", "erin"};
+    private static final String[] MESSAGES = {
+        "Fix the build", "Refactor the parser", "Add tests\nfor the new option", "Update copyright", "Merge from branch"
+    };
+
+    private final Random random = new Random(SEED);
+    private final List<String> files = new ArrayList<String>();
+    private final long baseTime = 1325376000000L;   // 2012-01-01
+
+    /**
+     * @param count number of files.
+     */
+    public Synthetic(int count) {
+        for (int i = 0; i < count; i++) {
+            files.add("dir" + i / FILES_PER_DIR + "/File" + i + ".java");
+        }
+    }
+
+    /**
+     * Paths of the files, relative to the workspace.
+     */
+    public List<String> getFiles() {
+        return files;
+    }
+
+    /**
+     * Creates a checked out workspace of the files, with their <tt>CVS</tt> directories, and empty files.
+     *
+     * @param stickyDates true to give the entries a sticky date, like a checkout with <tt>-D</tt> does.
+     */
+    public void createWorkspace(File ws, boolean stickyDates) throws IOException {
+        Map<String, StringBuilder> entries = new LinkedHashMap<String, StringBuilder>();
+        StringBuilder root = new StringBuilder();
+        for (String path : files) {
+            String dir = path.substring(0, path.indexOf('/'));
+            String name = path.substring(dir.length() + 1);
+            StringBuilder b = entries.get(dir);
+            if (b == null) {
+                b = new StringBuilder();
+                entries.put(dir, b);
+                root.append("D/").append(dir).append("////\n");
+            }
+            b.append('/').append(name).append("/1.").append(1 + random.nextInt(20)).append('/')
+                .append(asctime(new Date(baseTime + random.nextInt(1000) * 60000L))).append("//")
+                .append(stickyDates ? "D2012.01.01.00.00.00" : "").append('\n');
+            FileUtils.touch(new File(ws, path));
+        }
+        writeControlFiles(ws, MODULE, root.toString());
+        for (Map.Entry<String, StringBuilder> e : entries.entrySet()) {
+            writeControlFiles(new File(ws, e.getKey()), MODULE + '/' + e.getKey(), e.getValue().toString());
+        }
+    }
+
+    private void writeControlFiles(File dir, String repository, String entries) throws IOException {
+        FileUtils.writeStringToFile(new File(dir, "CVS/Root"), CVSROOT + '\n');
+        FileUtils.writeStringToFile(new File(dir, "CVS/Repository"), repository + '\n');
+        FileUtils.writeStringToFile(new File(dir, "CVS/Entries"), entries);
+    }
+
+    /**
+     * Returns the output of <tt>cvs log</tt> on the workspace, one line per element.
+     *
+     * @param revisions number of revisions of each file.
+     */
+    public List<String> cvsLog(int revisions) {
+        SimpleDateFormat date = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        date.setTimeZone(TimeZone.getTimeZone("UTC"));
+        List<String> lines = new ArrayList<String>();
+        for (String path : files) {
+            lines.add("");
+            lines.add("RCS file: /cvsroot/" + MODULE + '/' + path + ",v");
+            lines.add("Working file: " + path);
+            lines.add("head: 1." + revisions);
+            lines.add("branch:");
+            lines.add("locks: strict");
+            lines.add("access list:");
+            lines.add("symbolic names:");
+            lines.add("\tRELEASE_1_0: 1.1");
+            lines.add("\tbranch_1_0: 1.1.0.2");
+            lines.add("keyword substitution: kv");
+            lines.add("total revisions: " + revisions + ";\tselected revisions: " + revisions);
+            lines.add("description:");
+            for (int r = revisions; r >= 1; r--) {
+                lines.add("----------------------------");
+                lines.add("revision 1." + r);
+                lines.add("date: " + date.format(new Date(baseTime + r * 3600000L + random.nextInt(60) * 1000L))
+                    + ";  author: " + AUTHORS[random.nextInt(AUTHORS.length)] + ";  state: Exp;  lines: +"
+                    + random.nextInt(50) + " -" + random.nextInt(50));
+                for (String line : MESSAGES[random.nextInt(MESSAGES.length)].split("\n")) {
+                    lines.add(line);
+                }
+            }
+            lines.add("=============================================================================");
+        }
+        return lines;
+    }
+
+    /**
+     * Writes a changelog in the format of <tt>ChangeLogWriter</tt>, with one entry per revision and directory.
+     *
+     * @param revisions number of revisions of each file.
+     */
+    public void writeChangeLog(File file, int revisions) throws IOException {
+        SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd");
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm");
+        date.setTimeZone(TimeZone.getTimeZone("UTC"));
+        time.setTimeZone(TimeZone.getTimeZone("UTC"));
+        PrintStream p = new PrintStream(FileUtils.openOutputStream(file), false, "UTF-8");
+        try {
+            p.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            p.println("<changelog>");
+            for (int r = 2; r <= revisions; r++) {
+                for (int i = 0; i < files.size(); i += FILES_PER_DIR) {
+                    Date d = new Date(baseTime + r * 3600000L + random.nextInt(60) * 1000L);
+                    p.println("\t<entry>");
+                    p.println("\t\t<date>" + date.format(d) + "</date>");
+                    p.println("\t\t<time>" + time.format(d) + "</time>");
+                    p.println("\t\t<author><![CDATA[" + AUTHORS[random.nextInt(AUTHORS.length)] + "]]></author>");
+                    for (String path : files.subList(i, Math.min(i + FILES_PER_DIR, files.size()))) {
+                        p.println("\t\t<file>");
+                        p.println("\t\t\t<name>" + path + "</name>");
+                        p.println("\t\t\t<fullName>/" + MODULE + '/' + path + "</fullName>");
+                        p.println("\t\t\t<revision>1." + r + "</revision>");
+                        p.println("\t\t\t<prevrevision>1." + (r - 1) + "</prevrevision>");
+                        p.println("\t\t</file>");
+                    }
+                    p.println("\t\t<msg><![CDATA[" + MESSAGES[random.nextInt(MESSAGES.length)] + "]]></msg>");
+                    p.println("\t</entry>");
+                }
+            }
+            p.println("</changelog>");
+        } finally {
+            p.close();
+        }
+    }
+
+    /**
+     * Creates an empty temporary directory.
+     */
+    public static File createTempDir() throws IOException {
+        File dir = File.createTempFile("cvs-benchmark", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Returns the output of <tt>cvs update</tt> on the workspace.
+     *
+     * @param changed share of the files reported by the update.
+     */
+    public ByteArrayOutputStream cvsUpdate(double changed) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream p = new PrintStream(out);
+        String[] codes = {"U", "P", "M", "C", "?"};
+        for (String path : files) {
+            if (random.nextDouble() >= changed) {
+                continue;
+            }
+            if (random.nextInt(20) == 0) {
+                p.println("cvs update: `" + path + "' is no longer in the repository");
+            } else {
+                p.println(codes[random.nextInt(codes.length)] + ' ' + path);
+            }
+        }
+        p.flush();
+        return out;
+    }
+
+    private static String asctime(Date d) {
+        SimpleDateFormat f = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy", Locale.US);
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String s = f.format(d);
+        // asctime pads the day of the month with a space: "Sun Jan  1 00:00:00 2012"
+        return s.charAt(9) == ' ' ? s.substring(0, 8) + ' ' + s.substring(8) : s;
+    }
+}
@@ -17,6 +17,7 @@
 
 package hudson.org.apache.tools.ant.taskdefs;
 
+import hudson.util.ProcessTree;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -37,11 +38,13 @@ import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.taskdefs.Execute;
 import org.apache.tools.ant.taskdefs.ExecuteStreamHandler;
+import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
 import org.apache.tools.ant.taskdefs.LogOutputStream;
 import org.apache.tools.ant.taskdefs.PumpStreamHandler;
 import org.apache.tools.ant.types.Commandline;
 import org.apache.tools.ant.types.Environment;
 import org.apache.tools.ant.util.StringUtils;
+import org.apache.tools.ant.util.Watchdog;
 
 /**
  * original Cvs.java 1.20
@@ -158,6 +161,16 @@ public abstract class AbstractCvsTask extends Task {
     private OutputStream errorStream;
     private String cvsExe = "cvs";
 
+    /**
+     * Milliseconds after which cvs is killed, 0 for no timeout.
+     */
+    private long timeout;
+
+    /**
+     * True once cvs has been killed for running longer than {@link #timeout}.
+     */
+    private boolean timedOut;
+
     /**
      * empty no-arg constructor
      */
@@ -377,7 +390,8 @@ public abstract class AbstractCvsTask extends Task {
                 }
             }
         }
-        Execute exe = new Execute(getExecuteStreamHandler(input), null);
+        ExecuteWatchdog watchdog = timeout > 0 ? new ProcessTreeWatchdog(timeout) : null;
+        Execute exe = new Execute(getExecuteStreamHandler(input), watchdog);
 
         exe.setAntRun(getProject());
         if (dest == null) {
@@ -397,6 +411,13 @@ public abstract class AbstractCvsTask extends Task {
             log(actualCommandLine, Project.MSG_VERBOSE);
             int retCode = exe.execute();
             log("retCode=" + retCode, Project.MSG_DEBUG);
+            if (watchdog != null && watchdog.killedProcess()) {
+                timedOut = true;
+                throw new BuildException("cvs timed out after " + timeout / 1000 + " seconds"
+                    + StringUtils.LINE_SEP
+                    + "Command line was ["
+                    + actualCommandLine + "] in " + dest, getLocation());
+            }
             /*Throw an exception if cvs exited with error. (Iulian)*/
             if (failOnError && Execute.isFailure(retCode)) {
                 throw new BuildException("cvs exited with error code "
@@ -774,6 +795,63 @@ public abstract class AbstractCvsTask extends Task {
         this.failOnError = failOnError;
     }
 
+    /**
+     * Kill cvs and its child processes if a command runs for longer than
+     * the given time.
+     *
+     * @param timeout milliseconds, 0 or less for no timeout
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return true if a command has been killed for running longer than
+     * the timeout
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Records that a command run without forking cvs has been aborted for
+     * running longer than the timeout.
+     */
+    protected void setTimedOut() {
+        timedOut = true;
+    }
+
+    /**
+     * Watchdog that kills the whole process tree of cvs, such as the ssh of
+     * an :ext: CVSROOT, rather than just cvs.
+     */
+    private static final class ProcessTreeWatchdog extends ExecuteWatchdog {
+        private Process process;
+
+        ProcessTreeWatchdog(long timeout) {
+            super(timeout);
+        }
+
+        @Override
+        public synchronized void start(Process process) {
+            this.process = process;
+            super.start(process);
+        }
+
+        @Override
+        public synchronized void timeoutOccured(Watchdog w) {
+            if (process != null) {
+                try {
+                    ProcessTree.get().get(process).killRecursively();
+                } catch (Exception e) {
+                    Logger.getLogger(AbstractCvsTask.class.getName())
+                        .log(Level.WARNING, "Failed to kill the process tree of cvs", e);
+                }
+            }
+            super.timeoutOccured(w);
+        }
+    }
+
     /**
      * Configure a commandline element for things like cvsRoot, quiet, etc.
      *
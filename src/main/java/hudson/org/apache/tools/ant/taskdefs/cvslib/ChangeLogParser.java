@@ -239,18 +239,24 @@ class ChangeLogParser {
                 return;
             }
 
-            String symbol = line.substring(0, idx);
-            Matcher m = DOT_PATTERN.matcher(line.substring(idx + 2));
-            if (!m.matches()) {
-                return; // not a branch name
-            }
-
-            branches.put(m.group(1) + m.group(3) + '.', symbol);
+            addBranch(branches, line.substring(0, idx), line.substring(idx + 2));
         } else if (line.startsWith("keyword substitution:")) {
             m_status = GET_REVISION;
         }
     }
 
+    /**
+     * Records a symbolic name if it is a branch name.
+     *
+     * @param branches branch revision prefixes to branch names.
+     */
+    static void addBranch(Map<String, String> branches, String symbol, String revision) {
+        Matcher m = DOT_PATTERN.matcher(revision);
+        if (m.matches()) {
+            branches.put(m.group(1) + m.group(3) + '.', symbol);
+        }
+    }
+
     private static final Pattern DOT_PATTERN = Pattern.compile("(([0-9]+\\.)+)0\\.([0-9]+)");
 
     /**
@@ -322,7 +328,7 @@ class ChangeLogParser {
             entry = m_entries.get(entryKey);
         }
 
-        String branch = findBranch(m_revision);
+        String branch = findBranch(branches, m_revision);
 
         owner.log(
             "Recorded a change: " + m_date + ',' + m_author + ',' + m_revision + "(branch=" + branch + ")," + m_comment,
@@ -333,8 +339,10 @@ class ChangeLogParser {
 
     /**
      * Finds the branch name that matches the revision, or null if not found.
+     *
+     * @param branches branch revision prefixes to branch names, as recorded by {@link #addBranch}.
      */
-    private String findBranch(String revision) {
+    static String findBranch(Map<String, String> branches, String revision) {
         if (revision == null) {
             return null; // defensive check
         }
@@ -26,8 +26,10 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
@@ -35,6 +37,7 @@ import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.Vector;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.ExecuteStreamHandler;
@@ -117,6 +120,26 @@ public class ChangeLogTask extends AbstractCvsTask {
      */
     private List<String> m_filesets = new ArrayList<String>();
 
+    /**
+     * If true, the history of local repositories is read from their RCS files rather than with cvs log.
+     */
+    private boolean m_readRcsFiles;
+
+    /**
+     * Milliseconds spent checking the cvs version, getting the log and writing the changelog.
+     */
+    private long versionMillis, logMillis, writeMillis;
+
+    /**
+     * Bytes of log output parsed.
+     */
+    private long logBytes;
+
+    /**
+     * Number of entries written to the changelog.
+     */
+    private int entryCount;
+
 
     /**
      * Set the base dir for cvs.
@@ -175,6 +198,14 @@ public class ChangeLogTask extends AbstractCvsTask {
         this.branch = branch;
     }
 
+    /**
+     * Reads the history of local repositories from their RCS files, falling back to cvs log
+     * for what {@link RcsLogReader} doesn't handle.
+     */
+    public void setReadRcsFiles(boolean readRcsFiles) {
+        m_readRcsFiles = readRcsFiles;
+    }
+
 
     /**
      * Set the date at which the changelog should stop.
@@ -216,6 +247,7 @@ public class ChangeLogTask extends AbstractCvsTask {
     // XXX crude but how else to track the parser & handler and still pass to super impl?
     private ChangeLogParser parser;
     private RedirectingStreamHandler handler;
+    private CountingOutputStream logCounter;
 
     /**
      * Execute task
@@ -241,89 +273,222 @@ public class ChangeLogTask extends AbstractCvsTask {
                 userList.put(user.getUserID(), user.getDisplayname());
             }
 
-
-            setCommand("log");
-
-            if (m_filesets.isEmpty() || m_filesets.size() > 10) {
-                // if we are going to get logs on large number of files,
-                // (or if m_files is not specified at all, in which case all the files in the directory is subjec,
-                // then it's worth spending little time to figure out if we can use
-                // -S for speed up
-
-                CvsVersion myCvsVersion = new CvsVersion();
-                myCvsVersion.setProject(getProject());
-                myCvsVersion.setTaskName("cvsversion");
-                myCvsVersion.setCvsRoot(getCvsRoot());
-                myCvsVersion.setCvsRsh(getCvsRsh());
-                myCvsVersion.setPassfile(getPassFile());
-                myCvsVersion.setDest(m_dir);
-                myCvsVersion.execute();
-                if (supportsCvsLogWithSOption(myCvsVersion.getClientVersion())
-                    && supportsCvsLogWithSOption(myCvsVersion.getServerVersion())) {
-                    addCommandArgument("-S");
-                }
+            CVSEntry[] entrySet = null;
+            final File repository = RcsLogReader.getLocalRepository(getCvsRoot());
+            long start = System.currentTimeMillis();
+            if (m_readRcsFiles && repository != null && repository.isDirectory()) {
+                entrySet = readRcsFiles(repository);
             }
-            if (null != m_start) {
-                final SimpleDateFormat outputDate =
-                    new SimpleDateFormat(DATE_FORMAT);
-
-                // Kohsuke patch:
-                // probably due to timezone difference between server/client and
-                // the lack of precise specification in the protocol or something,
-                // sometimes the java.net CVS server (and probably others) don't
-                // always report all the changes that have happened in the given day.
-                // so let's take the date range bit wider, to make sure that
-                // the server sends us all the logs that we care.
-                //
-                // the only downside of this change is that it will increase the traffic
-                // unnecessarily, but given that in Hudson we already narrow down the scope
-                // by specifying files, this should be acceptable increase.
-
-                Date safeStart = new Date(m_start.getTime() - 1000L * 60 * 60 * 24);
-
-                // Kohsuke patch until here
-
-                // We want something of the form: -d ">=YYYY-MM-dd HH:mm"
-                final String dateRange = ">=" + outputDate.format(safeStart);
-
-                // Supply '-d' as a separate argument - Bug# 14397
-                addCommandArgument("-d");
-                addCommandArgument(dateRange);
+            if (entrySet == null) {
+                entrySet = runCvsLog();
             }
+            logMillis = System.currentTimeMillis() - start - versionMillis;
+            final CVSEntry[] filteredEntrySet = filterEntrySet(entrySet);
 
-            // Check if list of files to check has been specified
-            if (!m_filesets.isEmpty()) {
-                addCommandArgument("--");
-                for (String file : m_filesets) {
-                    addCommandArgument(file);
-                }
-            }
+            replaceAuthorIdWithName(userList, filteredEntrySet);
 
-            parser = new ChangeLogParser(this);
+            start = System.currentTimeMillis();
+            writeChangeLog(filteredEntrySet);
+            writeMillis = System.currentTimeMillis() - start;
+            entryCount = filteredEntrySet.length;
 
-            log("Running " + getCommand() + " at " + m_dir, Project.MSG_VERBOSE);
+        } finally {
+            m_dir = savedDir;
+        }
+    }
 
-            setDest(m_dir);
-            try {
-                super.execute();
-            } finally {
-                final String errors = handler.getErrors();
+    /**
+     * Reads the history from the RCS files of a local repository, without running cvs.
+     *
+     * @return null if the repository has something the reader doesn't handle, in which case cvs log has to be run.
+     */
+    private CVSEntry[] readRcsFiles(File repository) {
+        log("Reading the RCS files of " + repository + " for " + m_dir, Project.MSG_VERBOSE);
+        try {
+            // same range as runCvsLog
+            Date safeStart = null == m_start ? null : new Date(m_start.getTime() - 1000L * 60 * 60 * 24);
+            return new RcsLogReader(this, repository, safeStart, getTag()).read(m_dir, getPackage(), m_filesets);
+        } catch (IOException e) {
+            log("Running cvs log instead of reading the RCS files: " + e.getMessage(), Project.MSG_INFO);
+            return null;
+        }
+    }
+
+    /**
+     * Runs cvs log and parses its output.
+     */
+    private CVSEntry[] runCvsLog() throws BuildException {
+        setCommand("log");
+
+        List<String> arguments = new ArrayList<String>();
+        if (null != m_start) {
+            final SimpleDateFormat outputDate =
+                new SimpleDateFormat(DATE_FORMAT);
+
+            // Kohsuke patch:
+            // probably due to timezone difference between server/client and
+            // the lack of precise specification in the protocol or something,
+            // sometimes the java.net CVS server (and probably others) don't
+            // always report all the changes that have happened in the given day.
+            // so let's take the date range bit wider, to make sure that
+            // the server sends us all the logs that we care.
+            //
+            // the only downside of this change is that it will increase the traffic
+            // unnecessarily, but given that in Hudson we already narrow down the scope
+            // by specifying files, this should be acceptable increase.
+
+            Date safeStart = new Date(m_start.getTime() - 1000L * 60 * 60 * 24);
+
+            // Kohsuke patch until here
+
+            // We want something of the form: -d ">=YYYY-MM-dd HH:mm"
+            final String dateRange = ">=" + outputDate.format(safeStart);
+
+            // Supply '-d' as a separate argument - Bug# 14397
+            arguments.add("-d");
+            arguments.add(dateRange);
+        }
 
-                if (null != errors && errors.length() != 0) {
-                    log(errors, Project.MSG_ERR);
+        // Check if list of files to check has been specified
+        if (!m_filesets.isEmpty()) {
+            arguments.add("--");
+            arguments.addAll(m_filesets);
+        }
+
+        parser = new ChangeLogParser(this);
+
+        try {
+            CountingOutputStream out = new CountingOutputStream(new RedirectingOutputStream(parser));
+            OutputStream err = new LogOutputStream(this, Project.MSG_WARN);
+            Integer r = runLog(getLogArguments(arguments), out, err);
+            out.flush();
+            err.flush();
+            logBytes = out.getCount();
+            if (r != null) {
+                if (r != 0) {
+                    throw new BuildException("cvs exited with error code " + r);
                 }
+                return parser.getEntrySetAsArray();
             }
+        } catch (SocketTimeoutException e) {
+            setTimedOut();
+            throw new BuildException(e.toString(), e);
+        } catch (IOException e) {
+            throw new BuildException(e.toString(), e);
+        }
 
-            final CVSEntry[] entrySet = parser.getEntrySetAsArray();
-            final CVSEntry[] filteredEntrySet = filterEntrySet(entrySet);
+        if (m_filesets.isEmpty() || m_filesets.size() > 10) {
+            // if we are going to get logs on large number of files,
+            // (or if m_files is not specified at all, in which case all the files in the directory is subjec,
+            // then it's worth spending little time to figure out if we can use
+            // -S for speed up
+
+            long start = System.currentTimeMillis();
+            CvsVersion myCvsVersion = new CvsVersion();
+            myCvsVersion.setProject(getProject());
+            myCvsVersion.setTaskName("cvsversion");
+            myCvsVersion.setCvsRoot(getCvsRoot());
+            myCvsVersion.setCvsRsh(getCvsRsh());
+            myCvsVersion.setPassfile(getPassFile());
+            myCvsVersion.setDest(m_dir);
+            myCvsVersion.execute();
+            if (supportsCvsLogWithSOption(myCvsVersion.getClientVersion())
+                && supportsCvsLogWithSOption(myCvsVersion.getServerVersion())) {
+                addCommandArgument("-S");
+            }
+            versionMillis = System.currentTimeMillis() - start;
+        }
+        for (String argument : arguments) {
+            addCommandArgument(argument);
+        }
 
-            replaceAuthorIdWithName(userList, filteredEntrySet);
 
-            writeChangeLog(filteredEntrySet);
+        log("Running " + getCommand() + " at " + m_dir, Project.MSG_VERBOSE);
 
+        setDest(m_dir);
+        try {
+            super.execute();
         } finally {
-            m_dir = savedDir;
+            if (logCounter != null) {
+                logBytes = logCounter.getCount();
+            }
+            final String errors = handler.getErrors();
+
+            if (null != errors && errors.length() != 0) {
+                log(errors, Project.MSG_ERR);
+            }
+        }
+
+        return parser.getEntrySetAsArray();
+    }
+
+    /**
+     * Returns the full arguments of the log command, including the tag and the packages that are otherwise added
+     * to the command line of the executable.
+     */
+    private List<String> getLogArguments(List<String> arguments) {
+        List<String> r = new ArrayList<String>();
+        if (getTag() != null) {
+            r.add("-r" + getTag());
         }
+        r.addAll(arguments);
+        if (getPackage() != null) {
+            if (m_filesets.isEmpty()) {
+                r.add("--");
+            }
+            r.addAll(Arrays.asList(getPackage()));
+        }
+        return r;
+    }
+
+    /**
+     * Returns the milliseconds spent finding out whether the cvs client and server support <tt>log -S</tt>.
+     */
+    public long getVersionMillis() {
+        return versionMillis;
+    }
+
+    /**
+     * Returns the milliseconds spent getting and parsing the log.
+     */
+    public long getLogMillis() {
+        return logMillis;
+    }
+
+    /**
+     * Returns the number of bytes of log parsed, 0 if the log was read from the RCS files.
+     */
+    public long getLogBytes() {
+        return logBytes;
+    }
+
+    /**
+     * Returns the milliseconds spent writing the changelog.
+     */
+    public long getWriteMillis() {
+        return writeMillis;
+    }
+
+    /**
+     * Returns the number of entries written to the changelog.
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Runs <tt>cvs log</tt> in {@link #getDir()} without forking the cvs executable.
+     * This implementation doesn't, so that the executable is always used.
+     *
+     * @param arguments options of the log command, including the tag, then <tt>--</tt> and the files and packages
+     * to log, if any.
+     * @param out receives the standard output of the command.
+     * @param err receives the standard error of the command.
+     * @return null to run the executable instead, or else the exit code of the command.
+     * @throws SocketTimeoutException if the command timed out, which {@link #isTimedOut()} then reports.
+     */
+    protected Integer runLog(List<String> arguments, OutputStream out, OutputStream err) throws IOException {
+        return null;
     }
 
     protected
@@ -332,7 +497,7 @@ public class ChangeLogTask extends AbstractCvsTask {
         return handler = new RedirectingStreamHandler(
             // stdout goes to the changelog parser,
             // but we also send this to Ant logger so that we can see it at sufficient debug level
-            new ForkOutputStream(new RedirectingOutputStream(parser),
+            new ForkOutputStream(logCounter = new CountingOutputStream(new RedirectingOutputStream(parser)),
                 new LogOutputStream(this, Project.MSG_VERBOSE)),
             // stderr goes to the logger, too
             new LogOutputStream(this, Project.MSG_WARN),
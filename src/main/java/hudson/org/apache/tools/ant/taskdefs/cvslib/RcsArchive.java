@@ -0,0 +1,431 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.org.apache.tools.ant.taskdefs.cvslib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Reads the revision history of an RCS <tt>,v</tt> file without running <tt>cvs log</tt>.
+ * <p/>
+ * Only the admin section, the delta headers and the log messages of the selected revisions are decoded.
+ * The delta bodies are skipped over, and reading stops as soon as the last selected log message has been found,
+ * which for the usual "recent changes" query means that most of the file is never looked at. Large files
+ * are memory-mapped rather than copied to the heap.
+ * <p/>
+ * See rcsfile(5) for the format.
+ */
+final class RcsArchive {
+    /**
+     * Files at least this large are memory-mapped.
+     */
+    private static final int MAP_THRESHOLD = 64 * 1024;
+
+    /**
+     * One revision of the file.
+     */
+    static final class Delta {
+        final String revision;
+        Date date;
+        String author;
+        String state;
+        String next;
+        final List<String> branches = new ArrayList<String>();
+        /**
+         * Log message, only read for the selected revisions.
+         */
+        String log;
+
+        Delta(String revision) {
+            this.revision = revision;
+        }
+
+        boolean isDead() {
+            return "dead".equals(state);
+        }
+
+        /**
+         * Returns the revision this one was derived from, or null for the first revision.
+         */
+        String getPredecessor() {
+            int dot = revision.lastIndexOf('.');
+            int n = Integer.parseInt(revision.substring(dot + 1));
+            if (revision.indexOf('.') == dot) {
+                return next;    // on the trunk, next points to the older revision
+            }
+            if (n > 1) {
+                return revision.substring(0, dot + 1) + (n - 1);
+            }
+            // first revision of a branch: the branch point
+            return revision.substring(0, revision.lastIndexOf('.', dot - 1));
+        }
+    }
+
+    /**
+     * Decides which revisions are reported, once the delta headers have been read.
+     */
+    static abstract class Selector {
+        abstract boolean select(RcsArchive archive, Delta delta);
+    }
+
+    String head;
+
+    /**
+     * Default branch, like "1.1.1" for an imported file whose vendor branch hasn't been merged to the trunk,
+     * or null if the default branch is the trunk.
+     */
+    String branch;
+
+    /**
+     * Symbolic names to revisions, in the order of the file.
+     */
+    final Map<String, String> symbols = new LinkedHashMap<String, String>();
+
+    /**
+     * Revisions, in the order of the file.
+     */
+    final Map<String, Delta> deltas = new LinkedHashMap<String, Delta>();
+
+    /**
+     * Revisions selected by the {@link Selector}, which are the only ones with their log message.
+     */
+    final List<Delta> selected = new ArrayList<Delta>();
+
+    private final ByteBuffer buf;
+
+    private RcsArchive(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    /**
+     * Reads the given RCS file.
+     */
+    static RcsArchive read(File file, Selector selector) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            ByteBuffer buf;
+            if (size >= MAP_THRESHOLD) {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buf = ByteBuffer.allocate((int) size);
+                while (buf.hasRemaining() && channel.read(buf) >= 0) {
+                    // keep reading
+                }
+                buf.flip();
+            }
+            RcsArchive archive = new RcsArchive(buf);
+            try {
+                archive.parse(selector);
+            } catch (RuntimeException e) {
+                throw (IOException) new IOException("Malformed RCS file " + file).initCause(e);
+            }
+            return archive;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void parse(Selector selector) throws IOException {
+        String token = parseAdmin();
+        while (token != null && isNum(token)) {
+            token = parseDelta(token);
+        }
+        if (!"desc".equals(token)) {
+            throw new IOException("Expected desc but found " + token);
+        }
+        string(false);
+
+        Set<String> wanted = new HashSet<String>();
+        for (Delta d : deltas.values()) {
+            if (selector.select(this, d)) {
+                selected.add(d);
+                wanted.add(d.revision);
+            }
+        }
+
+        // deltatexts, until all the wanted log messages have been found
+        while (!wanted.isEmpty()) {
+            String num = word();
+            if (num == null) {
+                break;
+            }
+            expect("log");
+            boolean want = wanted.remove(num);
+            String log = string(want);
+            if (want) {
+                deltas.get(num).log = log;
+            }
+            if (wanted.isEmpty()) {
+                break;  // don't bother with the rest of the file
+            }
+            while (true) {
+                String w = word();
+                if (w == null) {
+                    throw new IOException("Unexpected end of file in the deltatext of " + num);
+                }
+                if (w.equals("text")) {
+                    string(false);
+                    break;
+                }
+                skipPhrase();
+            }
+        }
+    }
+
+    /**
+     * Parses the admin section.
+     *
+     * @return the token that follows it.
+     */
+    private String parseAdmin() throws IOException {
+        while (true) {
+            String w = word();
+            if (w == null || isNum(w) || w.equals("desc")) {
+                return w;
+            }
+            if (w.equals("head")) {
+                head = optionalValue();
+            } else if (w.equals("branch")) {
+                branch = optionalValue();
+            } else if (w.equals("symbols")) {
+                while (true) {
+                    String sym = word();
+                    if (sym == null || sym.equals(";")) {
+                        break;
+                    }
+                    expect(":");
+                    symbols.put(sym, word());
+                }
+            } else {
+                skipPhrase();
+            }
+        }
+    }
+
+    /**
+     * Parses the header of one delta.
+     *
+     * @return the token that follows it.
+     */
+    private String parseDelta(String num) throws IOException {
+        Delta d = new Delta(num);
+        deltas.put(num, d);
+        while (true) {
+            String w = word();
+            if (w == null || isNum(w) || w.equals("desc")) {
+                return w;
+            }
+            if (w.equals("date")) {
+                d.date = parseDate(optionalValue());
+            } else if (w.equals("author")) {
+                d.author = optionalValue();
+            } else if (w.equals("state")) {
+                d.state = optionalValue();
+            } else if (w.equals("next")) {
+                d.next = optionalValue();
+            } else if (w.equals("branches")) {
+                while (true) {
+                    String b = word();
+                    if (b == null || b.equals(";")) {
+                        break;
+                    }
+                    d.branches.add(b);
+                }
+            } else {
+                skipPhrase();
+            }
+        }
+    }
+
+    /**
+     * Parses an RCS date, like "2011.05.03.12.00.00", or "99.05.03.12.00.00" before 2000.
+     */
+    static Date parseDate(String s) {
+        if (s == null) {
+            return null;
+        }
+        String[] f = s.split("\\.");
+        if (f.length != 6) {
+            return null;
+        }
+        int year = Integer.parseInt(f[0]);
+        if (year < 100) {
+            year += 1900;
+        }
+        Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        c.clear();
+        c.set(year, Integer.parseInt(f[1]) - 1, Integer.parseInt(f[2]),
+            Integer.parseInt(f[3]), Integer.parseInt(f[4]), Integer.parseInt(f[5]));
+        return c.getTime();
+    }
+
+    private static boolean isNum(String token) {
+        return token.length() > 0 && Character.isDigit(token.charAt(0));
+    }
+
+    /**
+     * Reads "value ;" or just ";".
+     */
+    private String optionalValue() throws IOException {
+        String w = word();
+        if (w == null || w.equals(";")) {
+            return null;
+        }
+        expect(";");
+        return w;
+    }
+
+    private void expect(String token) throws IOException {
+        String w = word();
+        if (!token.equals(w)) {
+            throw new IOException("Expected " + token + " but found " + w);
+        }
+    }
+
+    /**
+     * Skips the rest of a phrase, up to and including its ';'.
+     */
+    private void skipPhrase() throws IOException {
+        while (true) {
+            skipWhitespace();
+            if (!buf.hasRemaining()) {
+                throw new IOException("Unexpected end of file");
+            }
+            if (buf.get(buf.position()) == '@') {
+                string(false);
+            } else if (";".equals(word())) {
+                return;
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (buf.hasRemaining()) {
+            byte b = buf.get(buf.position());
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r' && b != '\f' && b != 0x0B) {
+                return;
+            }
+            buf.position(buf.position() + 1);
+        }
+    }
+
+    /**
+     * Reads the next word, ':' or ';'.
+     *
+     * @return null at the end of the file.
+     */
+    private String word() throws IOException {
+        skipWhitespace();
+        if (!buf.hasRemaining()) {
+            return null;
+        }
+        int start = buf.position();
+        byte b = buf.get(start);
+        if (b == ';' || b == ':') {
+            buf.position(start + 1);
+            return b == ';' ? ";" : ":";
+        }
+        if (b == '@') {
+            throw new IOException("Unexpected string at offset " + start);
+        }
+        int end = start;
+        while (end < buf.limit()) {
+            b = buf.get(end);
+            if (b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0B
+                || b == ';' || b == ':' || b == '@') {
+                break;
+            }
+            end++;
+        }
+        buf.position(end);
+        return ascii(start, end);
+    }
+
+    private String ascii(int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = (char) (buf.get(i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Reads an @-delimited string, in which "@@" stands for "@".
+     *
+     * @param decode false to only skip over it.
+     * @return the string, or null if not decoded.
+     */
+    private String string(boolean decode) throws IOException {
+        skipWhitespace();
+        if (!buf.hasRemaining() || buf.get(buf.position()) != '@') {
+            throw new IOException("Expected a string at offset " + buf.position());
+        }
+        int start = buf.position() + 1;
+        int limit = buf.limit();
+        int i = start;
+        boolean escaped = false;
+        while (true) {
+            if (i >= limit) {
+                throw new IOException("Unterminated string at offset " + start);
+            }
+            if (buf.get(i) == '@') {
+                if (i + 1 < limit && buf.get(i + 1) == '@') {
+                    escaped = true;
+                    i += 2;
+                    continue;
+                }
+                break;
+            }
+            i++;
+        }
+        buf.position(i + 1);
+        if (!decode) {
+            return null;
+        }
+        byte[] bytes = new byte[i - start];
+        int n = 0;
+        for (int j = start; j < i; j++) {
+            bytes[n++] = buf.get(j);
+            if (escaped && buf.get(j) == '@') {
+                j++;    // "@@"
+            }
+        }
+        // same as the output of cvs log, which is read with the default encoding
+        return new String(bytes, 0, n);
+    }
+}
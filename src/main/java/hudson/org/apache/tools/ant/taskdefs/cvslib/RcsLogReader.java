@@ -0,0 +1,366 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.org.apache.tools.ant.taskdefs.cvslib;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+
+/**
+ * Computes the same entries as {@link ChangeLogParser} does from the output of <tt>cvs log</tt>,
+ * by reading the RCS files of a local repository directly.
+ * <p/>
+ * Like <tt>cvs log</tt> run in a working directory, this reports the files of the repository directories
+ * that back the working directories, including the ones in the Attic. Dead revisions, vendor branches
+ * (including an unmerged default branch for <tt>HEAD</tt>), magic branch numbers, numeric revisions given as the tag,
+ * keyword expansion modes and the newphrases that CVS and CVSNT add to the delta headers and deltatexts
+ * are handled the same way as <tt>cvs log</tt> does. The previous revision of each change is its actual
+ * predecessor rather than the next revision that cvs log happens to print.
+ * <p/>
+ * What isn't handled is reported as an {@link IOException}, after which the caller should run <tt>cvs log</tt>
+ * instead: directories locked by a commit in progress, which cvs log would wait for, a repository that keeps
+ * its locks elsewhere with the <tt>LockDir</tt> setting of <tt>CVSROOT/config</tt>, and RCS files that don't parse.
+ */
+class RcsLogReader {
+    private final ChangeLogTask owner;
+
+    /**
+     * Root directory of the repository.
+     */
+    private final File repository;
+
+    /**
+     * Revisions before this date are ignored. Null to report all.
+     */
+    private final Date start;
+
+    /**
+     * Tag or branch given to <tt>cvs log -r</tt>, or null for all the revisions.
+     */
+    private final String tag;
+
+    private final Map<String, CVSEntry> entries = new LinkedHashMap<String, CVSEntry>();
+
+    /**
+     * Repository directories already checked for locks.
+     */
+    private final Set<File> unlocked = new HashSet<File>();
+
+    /**
+     * Same format as the dates of <tt>cvs log</tt>, to group changes the same way.
+     */
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+
+    RcsLogReader(ChangeLogTask owner, File repository, Date start, String tag) {
+        this.owner = owner;
+        this.repository = repository;
+        this.start = start;
+        this.tag = tag;
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Returns the repository directory of a local CVSROOT, or null if the repository isn't local.
+     */
+    static File getLocalRepository(String cvsroot) {
+        if (cvsroot == null) {
+            return null;
+        }
+        if (cvsroot.startsWith(":local:")) {
+            return new File(cvsroot.substring(7));
+        }
+        if (cvsroot.startsWith(":fork:")) {
+            return new File(cvsroot.substring(6));
+        }
+        if (cvsroot.startsWith("/")) {
+            return new File(cvsroot);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the history of the given files, or else of the given modules, or else of the whole working directory.
+     *
+     * @param dir working directory.
+     * @param packages directories relative to {@code dir}, or null.
+     * @param files files relative to {@code dir}, or empty.
+     */
+    CVSEntry[] read(File dir, String[] packages, List<String> files) throws IOException {
+        checkLockDir();
+        if (!files.isEmpty()) {
+            for (String file : files) {
+                int slash = file.lastIndexOf('/');
+                String parent = slash < 0 ? "" : file.substring(0, slash);
+                String module = readRepository(new File(dir, parent));
+                if (module != null) {
+                    readFile(file, module, file.substring(slash + 1));
+                }
+            }
+        } else if (packages != null && packages.length > 0) {
+            for (String p : packages) {
+                File f = new File(dir, p);
+                if (f.isFile()) {
+                    int slash = p.lastIndexOf('/');
+                    String module = readRepository(f.getParentFile());
+                    if (module != null) {
+                        readFile(p, module, p.substring(slash + 1));
+                    }
+                } else {
+                    readDirectory(dir, p);
+                }
+            }
+        } else {
+            readDirectory(dir, "");
+        }
+        return entries.values().toArray(new CVSEntry[entries.size()]);
+    }
+
+    private void readDirectory(File dir, String path) throws IOException {
+        File workingDir = path.length() == 0 ? dir : new File(dir, path);
+        String module = readRepository(workingDir);
+        if (module == null) {
+            return;
+        }
+        File repositoryDir = getRepositoryDir(module);
+
+        Set<String> names = new TreeSet<String>();
+        addRcsFiles(new File(repositoryDir, "Attic"), names);
+        addRcsFiles(repositoryDir, names);
+        for (String name : names) {
+            readFile(path.length() == 0 ? name : path + '/' + name, module, name);
+        }
+
+        File[] children = workingDir.listFiles();
+        if (children != null) {
+            Arrays.sort(children);
+            for (File child : children) {
+                if (!child.getName().equals("CVS") && new File(child, "CVS").isDirectory()) {
+                    readDirectory(dir, path.length() == 0 ? child.getName() : path + '/' + child.getName());
+                }
+            }
+        }
+    }
+
+    private static void addRcsFiles(File dir, Set<String> names) {
+        String[] files = dir.list();
+        if (files != null) {
+            for (String f : files) {
+                if (f.endsWith(",v")) {
+                    names.add(f.substring(0, f.length() - 2));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the contents of CVS/Repository, or null if the directory isn't a working directory.
+     */
+    private static String readRepository(File workingDir) throws IOException {
+        File f = new File(workingDir, "CVS/Repository");
+        if (!f.exists()) {
+            return null;
+        }
+        return FileUtils.readFileToString(f, null).trim();
+    }
+
+    /**
+     * Fails if the repository keeps its locks outside of the repository directories, where they aren't seen.
+     */
+    private void checkLockDir() throws IOException {
+        File config = new File(repository, "CVSROOT/config");
+        if (!config.exists()) {
+            return;
+        }
+        for (Object line : FileUtils.readLines(config, null)) {
+            if (((String) line).trim().startsWith("LockDir=")) {
+                throw new IOException(config + " sets LockDir");
+            }
+        }
+    }
+
+    /**
+     * Fails if the given repository directory is locked by a commit in progress.
+     */
+    private void checkUnlocked(File repositoryDir) throws IOException {
+        if (!unlocked.add(repositoryDir)) {
+            return;
+        }
+        String[] names = repositoryDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.equals("#cvs.lock") || name.startsWith("#cvs.wfl")) {
+                    throw new IOException(repositoryDir + " is locked by " + name);
+                }
+            }
+        }
+    }
+
+    private File getRepositoryDir(String module) {
+        File f = new File(module);
+        return f.isAbsolute() ? f : new File(repository, module);
+    }
+
+    /**
+     * Reads the history of one file.
+     *
+     * @param workingName path of the file relative to the working directory, as in the "Working file:" of cvs log.
+     * @param module contents of the CVS/Repository of the directory of the file.
+     * @param name name of the file.
+     */
+    private void readFile(String workingName, String module, String name) throws IOException {
+        File repositoryDir = getRepositoryDir(module);
+        checkUnlocked(repositoryDir);
+        File rcs = new File(repositoryDir, name + ",v");
+        if (!rcs.exists()) {
+            rcs = new File(repositoryDir, "Attic/" + name + ",v");
+            if (!rcs.exists()) {
+                return;
+            }
+        }
+
+        RcsArchive archive = RcsArchive.read(rcs, new RcsArchive.Selector() {
+            private String[] range;
+
+            boolean select(RcsArchive archive, RcsArchive.Delta delta) {
+                if (start != null && (delta.date == null || delta.date.before(start))) {
+                    return false;
+                }
+                if (tag == null) {
+                    return true;
+                }
+                if (range == null) {
+                    range = getRange(archive);
+                }
+                return range.length > 0 && (range[0].equals(delta.revision)
+                    || range[0].endsWith(".") && delta.revision.startsWith(range[0])
+                    && delta.revision.indexOf('.', range[0].length()) < 0);
+            }
+        });
+        if (archive.selected.isEmpty()) {
+            return;
+        }
+
+        Map<String, String> branches = new HashMap<String, String>();
+        for (Map.Entry<String, String> e : archive.symbols.entrySet()) {
+            ChangeLogParser.addBranch(branches, e.getKey(), e.getValue());
+        }
+        String fullName = '/' + module + '/' + name;
+        for (RcsArchive.Delta d : archive.selected) {
+            String comment = toComment(d.log);
+            String date = dateFormat.format(d.date);
+            String key = date + d.author + comment;
+            CVSEntry entry = entries.get(key);
+            if (entry == null) {
+                entry = new CVSEntry(d.date, d.author, comment);
+                entries.put(key, entry);
+            }
+            String branch = ChangeLogParser.findBranch(branches, d.revision);
+            owner.log("Recorded a change: " + date + ',' + d.author + ',' + d.revision + "(branch=" + branch + "),"
+                + comment, Project.MSG_VERBOSE);
+            entry.addFile(workingName, fullName, d.revision, d.getPredecessor(), branch, d.isDead());
+        }
+    }
+
+    /**
+     * Returns what {@link #tag} selects in the given file: either a single revision,
+     * or the prefix of the revisions of a branch, ending with '.'. Empty if the tag isn't in the file.
+     */
+    private String[] getRange(RcsArchive archive) {
+        String revision;
+        if ("HEAD".equals(tag)) {
+            revision = getHead(archive);
+        } else if (Character.isDigit(tag.charAt(0))) {
+            revision = tag;
+        } else {
+            revision = archive.symbols.get(tag);
+        }
+        if (revision == null) {
+            return new String[0];
+        }
+        String[] parts = revision.split("\\.");
+        if (parts.length > 2 && parts[parts.length - 2].equals("0")) {
+            // magic branch number, like 1.2.0.4 for the branch 1.2.4
+            StringBuilder b = new StringBuilder();
+            for (int i = 0; i < parts.length; i++) {
+                if (i != parts.length - 2) {
+                    b.append(parts[i]).append('.');
+                }
+            }
+            return new String[]{b.toString()};
+        }
+        if (parts.length % 2 == 1) {
+            return new String[]{revision + '.'};   // vendor branch, like 1.1.1
+        }
+        return new String[]{revision};
+    }
+
+    /**
+     * Returns the revision that cvs means by <tt>HEAD</tt>: the latest revision of the default branch if the file has one,
+     * otherwise the head of the trunk.
+     */
+    private static String getHead(RcsArchive archive) {
+        if (archive.branch == null) {
+            return archive.head;
+        }
+        String prefix = archive.branch + '.';
+        String head = null;
+        int max = 0;
+        for (String revision : archive.deltas.keySet()) {
+            if (revision.startsWith(prefix) && revision.indexOf('.', prefix.length()) < 0) {
+                int n = Integer.parseInt(revision.substring(prefix.length()));
+                if (n > max) {
+                    max = n;
+                    head = revision;
+                }
+            }
+        }
+        // a branch without revisions of its own starts at its branch point
+        return head != null ? head : archive.branch.substring(0, archive.branch.lastIndexOf('.'));
+    }
+
+    /**
+     * Formats a log message the way {@link ChangeLogParser} reads it from cvs log.
+     */
+    private static String toComment(String log) {
+        if (log == null || log.length() == 0) {
+            log = "*** empty log message ***";
+        }
+        if (log.endsWith("\n")) {
+            log = log.substring(0, log.length() - 1);
+        }
+        return log.replace("\n", System.getProperty("line.separator"));
+    }
+}
@@ -0,0 +1,435 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.TaskListener;
+import hudson.model.TransientProjectActionFactory;
+import hudson.model.listeners.RunListener;
+import hudson.scm.cvs.Messages;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Spaces out the polls of each module location of a job according to how often it gets commits.
+ * <p/>
+ * The commit rate of a location is learnt from the changelogs of the recent builds of the job: the number of
+ * commits that touched the location over the last {@link #HISTORY_DAYS} days. The history of a location is read
+ * once, when it is first polled, and then kept up to date by counting the commits of each build as it completes,
+ * so that changelogs are only loaded once. A location is then polled about
+ * {@link #POLLS_PER_COMMIT} times per average interval between commits, within the limits configured on the
+ * descriptor. A location with no commit in its history is polled at the longest interval, and one where a poll
+ * found changes is polled again at the shortest. The cron spec of the job only sets how often the schedule is
+ * checked, so it should be at least as frequent as the shortest interval.
+ */
+public final class AdaptivePolling {
+    /**
+     * Number of days of build history the commit rate is learnt from.
+     */
+    public static int HISTORY_DAYS = Integer.getInteger(AdaptivePolling.class.getName() + ".historyDays", 30);
+
+    /**
+     * Maximum number of builds the commit rate is learnt from.
+     */
+    public static int HISTORY_BUILDS = Integer.getInteger(AdaptivePolling.class.getName() + ".historyBuilds", 100);
+
+    /**
+     * Number of polls per average interval between commits.
+     */
+    public static int POLLS_PER_COMMIT = Integer.getInteger(AdaptivePolling.class.getName() + ".pollsPerCommit", 4);
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long DAY = 24 * 60 * MINUTE;
+
+    /**
+     * The schedules of this Hudson.
+     */
+    static final AdaptivePolling INSTANCE = new AdaptivePolling();
+
+    /**
+     * Full names of the jobs to the schedules of their module locations.
+     */
+    private final Map<String, Map<String, Schedule>> jobs = new HashMap<String, Map<String, Schedule>>();
+
+    /**
+     * When a module location of a job is polled next.
+     */
+    public static final class Schedule {
+        private final String location;
+
+        /**
+         * The module location commits are counted in, as of the first poll.
+         */
+        private final ModuleLocation moduleLocation;
+
+        private double commitsPerDay;
+        private long interval;
+        private long lastPoll;
+        private long nextPoll;
+
+        /**
+         * The builds the commit rate is learnt from, by number, and the sum of their commits.
+         */
+        private final TreeMap<Integer, BuildCommits> history = new TreeMap<Integer, BuildCommits>();
+        private int commits;
+
+        /**
+         * True once the history of the job has been read.
+         */
+        private boolean historyRead;
+
+        Schedule(String location, ModuleLocation moduleLocation) {
+            this.location = location;
+            this.moduleLocation = moduleLocation;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public synchronized double getCommitsPerDay() {
+            return commitsPerDay;
+        }
+
+        /**
+         * Interval between polls without changes, in minutes.
+         */
+        public synchronized long getIntervalMinutes() {
+            return interval / MINUTE;
+        }
+
+        /**
+         * Time of the last poll, or null if the location hasn't been polled yet.
+         */
+        public synchronized Date getLastPoll() {
+            return lastPoll == 0 ? null : new Date(lastPoll);
+        }
+
+        public synchronized Date getNextPoll() {
+            return new Date(nextPoll);
+        }
+
+        synchronized boolean isDue(long now) {
+            return now >= nextPoll;
+        }
+
+        /**
+         * Counts the commits of the completed builds of the last {@link #HISTORY_DAYS} days, the first time only.
+         */
+        synchronized void readHistory(AbstractProject<?, ?> project, long now) {
+            if (historyRead) {
+                return;
+            }
+            historyRead = true;
+            long since = now - HISTORY_DAYS * DAY;
+            AbstractBuild<?, ?> b = project.getLastBuild();
+            for (int i = 0; b != null && i < HISTORY_BUILDS && b.getTimeInMillis() >= since; i++) {
+                if (!b.isBuilding()) {
+                    add(b);
+                }
+                b = b.getPreviousBuild();
+            }
+        }
+
+        /**
+         * Counts the commits to the location in the changelog of a completed build.
+         */
+        synchronized void add(AbstractBuild<?, ?> build) {
+            if (history.containsKey(build.getNumber())) {
+                return;
+            }
+            AbstractBuild<?, ?> previous = build.getPreviousBuild();
+            int n = build.getChangeSet() instanceof CVSChangeLogSet
+                ? countCommits((CVSChangeLogSet) build.getChangeSet(), moduleLocation) : 0;
+            add(build.getNumber(), build.getTimeInMillis(),
+                previous != null ? previous.getTimeInMillis() : build.getTimeInMillis(), n);
+        }
+
+        /**
+         * Records the commits of a build, unless already recorded.
+         *
+         * @param since time the changelog of the build goes back to, which is that of the build before it.
+         */
+        synchronized void add(int number, long time, long since, int commits) {
+            if (!history.containsKey(number)) {
+                history.put(number, new BuildCommits(time, since, commits));
+                this.commits += commits;
+            }
+        }
+
+        /**
+         * Drops the builds older than {@link #HISTORY_DAYS} days or beyond the {@link #HISTORY_BUILDS} latest ones,
+         * and spreads the commits of the others over the period their changelogs cover.
+         */
+        synchronized double commitsPerDay(long now) {
+            long since = now - HISTORY_DAYS * DAY;
+            while (!history.isEmpty()
+                && (history.size() > HISTORY_BUILDS || history.firstEntry().getValue().time < since)) {
+                commits -= history.pollFirstEntry().getValue().commits;
+            }
+            long start = history.isEmpty() ? now : Math.max(since, history.firstEntry().getValue().since);
+            return commits * (double) DAY / Math.max(DAY, now - start);
+        }
+
+        /**
+         * Recomputes the interval from a new commit rate.
+         */
+        synchronized void learn(double commitsPerDay, long min, long max) {
+            this.commitsPerDay = commitsPerDay;
+            this.interval = interval(commitsPerDay, min, max);
+            if (lastPoll != 0) {
+                nextPoll = Math.min(nextPoll, lastPoll + interval);
+            }
+        }
+
+        /**
+         * Makes the location due, regardless of its commit rate.
+         */
+        synchronized void due() {
+            nextPoll = 0;
+        }
+
+        /**
+         * Records a poll.
+         *
+         * @param changes true if the poll found changes, which are likely to be followed by more.
+         */
+        synchronized void polled(long now, boolean changes, long min) {
+            lastPoll = now;
+            nextPoll = now + (changes ? Math.min(min, interval) : interval);
+        }
+    }
+
+    /**
+     * Commits to a module location in the changelog of one build.
+     */
+    private static final class BuildCommits {
+        final long time;
+        final long since;
+        final int commits;
+
+        BuildCommits(long time, long since, int commits) {
+            this.time = time;
+            this.since = since;
+            this.commits = commits;
+        }
+    }
+
+    /**
+     * Returns the schedule of a module location of a job, with its commit rate up to date.
+     *
+     * @param min shortest interval between polls, in milliseconds.
+     * @param max longest interval between polls, in milliseconds.
+     */
+    Schedule getSchedule(AbstractProject<?, ?> project, ModuleLocation location, long now, long min, long max) {
+        Schedule s;
+        synchronized (this) {
+            Map<String, Schedule> schedules = jobs.get(project.getFullName());
+            if (schedules == null) {
+                schedules = new HashMap<String, Schedule>();
+                jobs.put(project.getFullName(), schedules);
+            }
+            String key = getKey(location);
+            s = schedules.get(key);
+            if (s == null) {
+                s = new Schedule(key, location);
+                schedules.put(key, s);
+            }
+        }
+
+        synchronized (s) {
+            s.readHistory(project, now);
+            s.learn(s.commitsPerDay(now), min, max);
+        }
+        return s;
+    }
+
+    /**
+     * Makes the module locations of a job due, after a commit notification.
+     */
+    synchronized void notified(AbstractProject<?, ?> project) {
+        Map<String, Schedule> schedules = jobs.get(project.getFullName());
+        if (schedules != null) {
+            for (Schedule s : schedules.values()) {
+                s.due();
+            }
+        }
+    }
+
+    /**
+     * Counts the commits of a completed build in the schedules of its job.
+     */
+    void completed(AbstractBuild<?, ?> build) {
+        List<Schedule> schedules;
+        synchronized (this) {
+            Map<String, Schedule> m = jobs.get(build.getProject().getFullName());
+            if (m == null) {
+                return;
+            }
+            schedules = new ArrayList<Schedule>(m.values());
+        }
+        for (Schedule s : schedules) {
+            s.add(build);
+        }
+    }
+
+    /**
+     * Returns the schedules of the module locations of a job that has been polled, sorted by location.
+     */
+    public synchronized List<Schedule> getSchedules(AbstractProject<?, ?> project) {
+        Map<String, Schedule> schedules = jobs.get(project.getFullName());
+        if (schedules == null) {
+            return Collections.emptyList();
+        }
+        List<Schedule> r = new ArrayList<Schedule>(schedules.values());
+        Collections.sort(r, new Comparator<Schedule>() {
+            public int compare(Schedule a, Schedule b) {
+                return a.location.compareTo(b.location);
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Computes the interval between polls for a commit rate.
+     */
+    static long interval(double commitsPerDay, long min, long max) {
+        if (commitsPerDay <= 0) {
+            return max;
+        }
+        long interval = (long) (DAY / commitsPerDay / Math.max(1, POLLS_PER_COMMIT));
+        return Math.max(min, Math.min(max, interval));
+    }
+
+    /**
+     * Counts the entries of a changelog with at least one file in the given module location.
+     */
+    static int countCommits(CVSChangeLogSet changeLog, ModuleLocation location) {
+        int commits = 0;
+        for (CVSChangeLogSet.CVSChangeLog entry : changeLog.getLogs()) {
+            for (CVSChangeLogSet.File file : entry.getFiles()) {
+                if (isIn(file.getFullName(), location)) {
+                    commits++;
+                    break;
+                }
+            }
+        }
+        return commits;
+    }
+
+    /**
+     * Checks if a file, by its path in the repository, belongs to a module location.
+     */
+    static boolean isIn(String fullName, ModuleLocation location) {
+        if (fullName == null) {
+            return false;
+        }
+        for (String module : location.getNormalizedModules()) {
+            if (module.equals(".") || fullName.equals('/' + module) || fullName.startsWith('/' + module + '/')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getKey(ModuleLocation location) {
+        StringBuilder b = new StringBuilder(location.getCvsroot()).append(' ').append(location.getModule());
+        if (location.getBranch() != null) {
+            b.append(" (").append(location.getBranch()).append(')');
+        }
+        return b.toString();
+    }
+
+    /**
+     * Shows the polling schedule of a job.
+     */
+    public static final class ProjectAction implements Action {
+        private final AbstractProject<?, ?> project;
+
+        ProjectAction(AbstractProject<?, ?> project) {
+            this.project = project;
+        }
+
+        public AbstractProject<?, ?> getProject() {
+            return project;
+        }
+
+        public List<Schedule> getSchedules() {
+            return INSTANCE.getSchedules(project);
+        }
+
+        public String getIconFileName() {
+            return "clock.gif";
+        }
+
+        public String getDisplayName() {
+            return Messages.CVSSCM_AdaptivePolling();
+        }
+
+        public String getUrlName() {
+            return "cvsPolling";
+        }
+    }
+
+    /**
+     * Counts the commits of each build as it completes.
+     */
+    @Extension
+    public static final class CompletionListener extends RunListener<AbstractBuild> {
+        public CompletionListener() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild r, TaskListener listener) {
+            INSTANCE.completed(r);
+        }
+    }
+
+    /**
+     * Adds a {@link ProjectAction} to the jobs that use adaptive polling.
+     */
+    @Extension
+    public static final class ActionFactory extends TransientProjectActionFactory {
+        @Override
+        public Collection<? extends Action> createFor(AbstractProject target) {
+            if (target.getScm() instanceof CVSSCM && ((CVSSCM) target.getScm()).isAdaptivePolling()) {
+                return Collections.singleton(new ProjectAction(target));
+            }
+            return Collections.emptyList();
+        }
+    }
+}
@@ -28,11 +28,17 @@ import hudson.model.User;
 import hudson.scm.CVSChangeLogSet.CVSChangeLog;
 import hudson.util.IOException2;
 import java.io.IOException;
+import java.net.URL;
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.digester3.Digester;
@@ -49,8 +55,18 @@ import org.xml.sax.SAXException;
 public final class CVSChangeLogSet extends ChangeLogSet<CVSChangeLog> {
     private static final Logger LOGGER = Logger.getLogger(CVSChangeLogSet.class.getName());
 
+    /**
+     * Number of {@link User#get(String)} calls avoided by resolving each distinct author once per changelog.
+     */
+    private static final AtomicLong USER_LOOKUPS_SAVED = new AtomicLong();
+
     private List<CVSChangeLog> logs;
 
+    /**
+     * Browser links of the files in this changelog, computed on first use.
+     */
+    private volatile LinkTable linkTable;
+
     public CVSChangeLogSet(AbstractBuild<?,?> build, List<CVSChangeLog> logs) {
         super(build);
         this.logs = Collections.unmodifiableList(logs);
@@ -70,6 +86,18 @@ public final class CVSChangeLogSet extends ChangeLogSet<CVSChangeLog> {
         return "cvs";
     }
 
+    /**
+     * Returns the link table of this changelog for the given browser.
+     * The table is discarded and recomputed when the browser changes, which is what happens
+     * when the job configuration is saved.
+     */
+    LinkTable getLinkTable(CVSRepositoryBrowser browser) {
+        LinkTable t = linkTable;
+        if(t==null || t.browser!=browser)
+            linkTable = t = new LinkTable(browser);
+        return t;
+    }
+
     public static CVSChangeLogSet parse( AbstractBuild build, java.io.File f ) throws IOException, SAXException {
         Digester digester = new Digester();
         ArrayList<CVSChangeLog> r = new ArrayList<CVSChangeLog>();
@@ -98,6 +126,8 @@ public final class CVSChangeLogSet extends ChangeLogSet<CVSChangeLog> {
             throw new IOException2("Failed to parse "+f,e);
         }
 
+        resolveAuthors(r);
+
         // merge duplicate entries. Ant task somehow seems to report duplicate entries.
         for(int i=r.size()-1; i>=0; i--) {
             CVSChangeLog log = r.get(i);
@@ -121,12 +151,54 @@ public final class CVSChangeLogSet extends ChangeLogSet<CVSChangeLog> {
         return new CVSChangeLogSet(build,r);
     }
 
+    /**
+     * Resolves the author of each entry, looking up every distinct author ID only once.
+     * {@link User#get(String)} goes through the user registry and its lock, and a changelog
+     * typically has many entries from only a handful of committers.
+     */
+    private static void resolveAuthors(List<CVSChangeLog> logs) {
+        Map<String, User> users = new HashMap<String, User>();
+        int saved = 0;
+        for (CVSChangeLog log : logs) {
+            String id = log.userId;
+            if (id == null) {
+                continue;
+            }
+            User u = users.get(id);
+            if (u == null) {
+                u = User.get(id);
+                users.put(id, u);
+            } else {
+                saved++;
+            }
+            log.author = u;
+        }
+        if (saved > 0) {
+            USER_LOOKUPS_SAVED.addAndGet(saved);
+            LOGGER.log(Level.FINE, "Resolved {0} distinct authors, saving {1} user lookups",
+                new Object[]{users.size(), saved});
+        }
+    }
+
+    /**
+     * Returns the number of user registry lookups avoided so far by sharing {@link User} instances
+     * between the entries of a changelog.
+     */
+    public static long getUserLookupsSaved() {
+        return USER_LOOKUPS_SAVED.get();
+    }
+
     /**
      * In-memory representation of CVS Changelog.
      */
     public static class CVSChangeLog extends ChangeLogSet.Entry {
         private String date;
         private String time;
+        /**
+         * Author ID as recorded in the changelog. {@link #author} is resolved from it lazily,
+         * or in bulk by {@link CVSChangeLogSet#parse(AbstractBuild, java.io.File)}.
+         */
+        private String userId;
         private User author;
         private String msg;
         private final List<File> files = new ArrayList<File>();
@@ -148,7 +220,7 @@ public final class CVSChangeLogSet extends ChangeLogSet<CVSChangeLog> {
                 return false;
             if(!this.time.equals(that.time))    // TODO: perhaps check this loosely?
                 return false;
-            if(this.author==null || that.author==null || !this.author.equals(that.author))
+            if(this.userId==null || that.userId==null || !this.getAuthor().equals(that.getAuthor()))
                 return false;
             if(!this.msg.equals(that.msg))
                 return false;
@@ -198,6 +270,8 @@ public final class CVSChangeLogSet extends ChangeLogSet<CVSChangeLog> {
 
         @Exported
         public User getAuthor() {
+            if(author==null && userId!=null)
+                author = User.get(userId);
             if(author==null)
                 return User.getUnknown();
             return author;
@@ -216,12 +290,13 @@ public final class CVSChangeLogSet extends ChangeLogSet<CVSChangeLog> {
         }
 
         public void setUser(String author) {
-            this.author = User.get(author);
+            this.userId = author;
+            this.author = null;
         }
 
         @Exported
         public String getUser() {// digester wants read/write property, even though it never reads. Duh.
-            return author.getDisplayName();
+            return getAuthor().getDisplayName();
         }
 
         @Exported
@@ -253,8 +328,12 @@ public final class CVSChangeLogSet extends ChangeLogSet<CVSChangeLog> {
     public static class File implements AffectedFile {
         private String name;
         private String fullName;
-        private String revision;
-        private String prevrevision;
+        private Revision revision;
+        private Revision prevrevision;
+        /**
+         * The revisions as recorded, kept only when they couldn't be parsed into {@link Revision}s.
+         */
+        private String rawRevision, rawPrevrevision;
         private boolean dead;
         private CVSChangeLog parent;
 
@@ -330,20 +409,56 @@ public final class CVSChangeLogSet extends ChangeLogSet<CVSChangeLog> {
 
         @Exported
         public String getRevision() {
-            return revision;
+            return revision!=null ? revision.toString() : rawRevision;
         }
 
         public void setRevision(String revision) {
-            this.revision = revision;
+            this.revision = parseRevision(revision);
+            this.rawRevision = this.revision==null ? revision : null;
+        }
+
+        /**
+         * Gets the parsed form of {@link #getRevision()}.
+         *
+         * @return null if the revision is unknown.
+         */
+        public Revision getRevisionNumber() {
+            return revision;
         }
 
         @Exported
         public String getPrevrevision() {
-            return prevrevision;
+            return prevrevision!=null ? prevrevision.toString() : rawPrevrevision;
         }
 
         public void setPrevrevision(String prevrevision) {
-            this.prevrevision = prevrevision;
+            this.prevrevision = parseRevision(prevrevision);
+            this.rawPrevrevision = this.prevrevision==null ? prevrevision : null;
+        }
+
+        /**
+         * Gets the parsed form of {@link #getPrevrevision()}.
+         *
+         * @return null if the previous revision wasn't recorded.
+         */
+        public Revision getPrevrevisionNumber() {
+            return prevrevision;
+        }
+
+        private static Revision parseRevision(String s) {
+            s = StringUtils.trimToNull(s);
+            if (s==null)
+                return null;
+            // cvs log reports locked revisions as "1.5\tlocked by: joe;"
+            int idx = StringUtils.indexOfAny(s, " \t");
+            if (idx>0)
+                s = s.substring(0,idx);
+            try {
+                return new Revision(s);
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.FINE, "Ignoring malformed revision "+s, e);
+                return null;
+            }
         }
 
         @Exported
@@ -360,7 +475,7 @@ public final class CVSChangeLogSet extends ChangeLogSet<CVSChangeLog> {
             // see issue #73. Can't do much better right now
             if(dead)
                 return EditType.DELETE;
-            if(revision.equals("1.1"))
+            if(revision!=null && revision.isInitial())
                 return EditType.ADD;
             return EditType.EDIT;
         }
@@ -368,58 +483,308 @@ public final class CVSChangeLogSet extends ChangeLogSet<CVSChangeLog> {
         public CVSChangeLog getParent() {
             return parent;
         }
+
+        /**
+         * Returns the changelog this file belongs to, or null if it isn't attached to one.
+         */
+        CVSChangeLogSet getChangeLogSet() {
+            if(parent==null)    return null;
+            ChangeLogSet set = parent.getParent();
+            return set instanceof CVSChangeLogSet ? (CVSChangeLogSet)set : null;
+        }
+    }
+
+    /**
+     * Caches the links computed by a {@link CVSRepositoryBrowser} for the files of one changelog,
+     * so that a change page is rendered without recomputing the same URLs over and over.
+     */
+    static final class LinkTable {
+        /**
+         * Marks a file for which the browser has no link, as {@link ConcurrentHashMap} can't hold nulls.
+         */
+        private static final Object NO_LINK = new Object();
+
+        final CVSRepositoryBrowser browser;
+        private final Map<File, Object> fileLinks = new ConcurrentHashMap<File, Object>();
+        private final Map<File, Object> diffLinks = new ConcurrentHashMap<File, Object>();
+
+        LinkTable(CVSRepositoryBrowser browser) {
+            this.browser = browser;
+        }
+
+        URL getFileLink(File file) throws IOException {
+            Object link = fileLinks.get(file);
+            if(link==null) {
+                link = wrap(browser.createFileLink(file));
+                fileLinks.put(file,link);
+            }
+            return unwrap(link);
+        }
+
+        URL getDiffLink(File file) throws IOException {
+            Object link = diffLinks.get(file);
+            if(link==null) {
+                link = wrap(browser.createDiffLink(file));
+                diffLinks.put(file,link);
+            }
+            return unwrap(link);
+        }
+
+        private static Object wrap(URL url) {
+            return url != null ? url : NO_LINK;
+        }
+
+        private static URL unwrap(Object link) {
+            return link == NO_LINK ? null : (URL) link;
+        }
     }
 
     /**
      * Represents CVS revision number like "1.5.3.2". Immutable.
+     *
+     * <p>
+     * Revisions of depth 4 or less whose numbers fit in 16 bits, which covers the trunk and first-level branches,
+     * are packed into a single <tt>long</tt>, one number per 16-bit slot starting from the most significant one.
+     * Parsing, comparison and {@link #getPrevious()} of such revisions don't allocate any arrays. Deeper
+     * revisions fall back to an <tt>int[]</tt>.
      */
-    public static class Revision {
-        public final int[] numbers;
+    public static class Revision implements Comparable<Revision> {
+        private static final int PACKED_DEPTH = 4;
+        private static final int SLOT_BITS = 16;
+        private static final int SLOT_MASK = 0xFFFF;
+
+        /**
+         * Packed revision numbers, valid when {@link #wide} is null.
+         */
+        private final long packed;
+
+        /**
+         * Revision numbers for revisions that cannot be packed, otherwise null.
+         */
+        private final int[] wide;
+
+        private final int depth;
+
+        /**
+         * Lazily computed {@link #toString()} and {@link #getPrevious()}.
+         * Both are pure functions of the immutable state, so racy initialization is harmless.
+         */
+        private String string;
+        private Revision previous;
 
         public Revision(int[] numbers) {
-            this.numbers = numbers;
-            assert numbers.length%2==0;
+            this(numbers, numbers.length);
+        }
+
+        private Revision(int[] numbers, int depth) {
+            assert depth%2==0;
+            this.depth = depth;
+            if (isPackable(numbers, depth)) {
+                long p = 0;
+                for (int i=0; i<depth; i++)
+                    p |= slot(numbers[i], i);
+                this.packed = p;
+                this.wide = null;
+            } else {
+                this.packed = 0;
+                this.wide = new int[depth];
+                System.arraycopy(numbers,0,wide,0,depth);
+            }
         }
 
+        private Revision(long packed, int depth) {
+            this.packed = packed;
+            this.wide = null;
+            this.depth = depth;
+        }
+
+        /**
+         * Parses a revision like "1.5.3.2".
+         *
+         * @throws NumberFormatException
+         *      if the string isn't a dot-separated list of numbers.
+         */
         public Revision(String s) {
-            String[] tokens = s.split("\\.");
-            numbers = new int[tokens.length];
-            for( int i=0; i<tokens.length; i++ )
-                numbers[i] = Integer.parseInt(tokens[i]);
-            assert numbers.length%2==0;
+            int len = s.length();
+            int d = 0;
+            long p = 0;
+            boolean packable = true;
+            int n = -1;
+            for (int i=0; i<=len; i++) {
+                char ch = i<len ? s.charAt(i) : '.';
+                if ('0'<=ch && ch<='9') {
+                    n = (n<0 ? 0 : n*10) + (ch-'0');
+                    if (n<0)
+                        throw new NumberFormatException("Revision number overflow: "+s);
+                } else if (ch=='.' && n>=0) {
+                    if (d>=PACKED_DEPTH || n>SLOT_MASK)
+                        packable = false;
+                    else
+                        p |= slot(n, d);
+                    d++;
+                    n = -1;
+                } else {
+                    throw new NumberFormatException("Invalid revision: "+s);
+                }
+            }
+            assert d%2==0;
+            this.depth = d;
+            if (packable) {
+                this.packed = p;
+                this.wide = null;
+            } else {
+                this.packed = 0;
+                this.wide = new int[d];
+                String[] tokens = s.split("\\.");
+                for( int i=0; i<tokens.length; i++ )
+                    wide[i] = Integer.parseInt(tokens[i]);
+            }
+        }
+
+        /**
+         * Returns the number of components, like 4 for "1.5.3.2".
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * Returns the i-th number of this revision, like 3 for the 2nd number of "1.5.3.2".
+         */
+        public int get(int i) {
+            if (i<0 || i>=depth)
+                throw new IndexOutOfBoundsException(String.valueOf(i));
+            if (wide!=null)
+                return wide[i];
+            return (int)(packed >>> shift(i)) & SLOT_MASK;
+        }
+
+        /**
+         * Returns a copy of all the numbers of this revision.
+         *
+         * @deprecated use {@link #get(int)} and {@link #getDepth()}, which don't allocate.
+         */
+        @Deprecated
+        public int[] getNumbers() {
+            if (wide!=null)
+                return wide.clone();
+            int[] r = new int[depth];
+            for (int i=0; i<depth; i++)
+                r[i] = get(i);
+            return r;
         }
 
         /**
-         * Returns a new {@link Revision} that represents the previous revision.
+         * Returns true if this is the initial revision of a file, "1.1".
+         */
+        public boolean isInitial() {
+            return wide==null && depth==2 && packed==(slot(1,0)|slot(1,1));
+        }
+
+        /**
+         * Returns a {@link Revision} that represents the previous revision.
          *
          * For example, "1.5"->"1.4", "1.5.2.13"->"1.5.2.12", "1.5.2.1"->"1.5"
          *
+         * The result is computed once and cached.
+         *
          * @return
          *      null if there's no previous version, meaning this is "1.1"
          */
         public Revision getPrevious() {
-            if(numbers[numbers.length-1]==1) {
+            Revision p = previous;
+            if (p==null && depth>0) {
+                previous = p = computePrevious();
+            }
+            return p;
+        }
+
+        private Revision computePrevious() {
+            if (get(depth-1)==1) {
                 // x.y.z.1 => x.y
-                int[] p = new int[numbers.length-2];
-                System.arraycopy(numbers,0,p,0,p.length);
-                if(p.length==0)     return null;
-                return new Revision(p);
+                if (depth==2)   return null;
+                if (wide==null)
+                    return new Revision(packed & ~(mask(depth-2)|mask(depth-1)), depth-2);
+                return new Revision(wide, depth-2);
             }
 
-            int[] p = numbers.clone();
+            if (wide==null)
+                return new Revision(packed - slot(1,depth-1), depth);
+            int[] p = wide.clone();
             p[p.length-1]--;
-
             return new Revision(p);
         }
 
+        /**
+         * Orders revisions by their numbers, so that "1.2" &lt; "1.2.2.1" &lt; "1.3" &lt; "1.10".
+         */
+        public int compareTo(Revision that) {
+            if (this.wide==null && that.wide==null) {
+                // slots are left-aligned, so an unsigned comparison orders them lexicographically
+                long a = this.packed+Long.MIN_VALUE;
+                long b = that.packed+Long.MIN_VALUE;
+                if (a!=b)   return a<b ? -1 : 1;
+                return this.depth-that.depth;
+            }
+            int d = Math.min(this.depth, that.depth);
+            for (int i=0; i<d; i++) {
+                int a = this.get(i);
+                int b = that.get(i);
+                if (a!=b)   return a<b ? -1 : 1;
+            }
+            return this.depth-that.depth;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this==o)    return true;
+            if (!(o instanceof Revision))   return false;
+            Revision that = (Revision) o;
+            // a revision is packed whenever it can be, so equal revisions always share the representation
+            if (this.wide==null && that.wide==null)
+                return this.packed==that.packed && this.depth==that.depth;
+            return Arrays.equals(this.wide, that.wide);
+        }
+
+        @Override
+        public int hashCode() {
+            if (wide==null)
+                return (int)(packed ^ (packed>>>32)) ^ depth;
+            return Arrays.hashCode(wide);
+        }
+
         @Override
         public String toString() {
-            StringBuilder buf = new StringBuilder();
-            for (int n : numbers) {
-                if(buf.length()>0)  buf.append('.');
-                buf.append(n);
+            String s = string;
+            if (s==null) {
+                StringBuilder buf = new StringBuilder(depth*3);
+                for (int i=0; i<depth; i++) {
+                    if(i>0)  buf.append('.');
+                    buf.append(get(i));
+                }
+                string = s = buf.toString();
             }
-            return buf.toString();
+            return s;
+        }
+
+        private static boolean isPackable(int[] numbers, int depth) {
+            if (depth>PACKED_DEPTH)     return false;
+            for (int i=0; i<depth; i++)
+                if (numbers[i]<0 || numbers[i]>SLOT_MASK)
+                    return false;
+            return true;
+        }
+
+        private static int shift(int i) {
+            return SLOT_BITS*(PACKED_DEPTH-1-i);
+        }
+
+        private static long slot(int n, int i) {
+            return ((long)n) << shift(i);
+        }
+
+        private static long mask(int i) {
+            return slot(SLOT_MASK, i);
         }
     }
 }
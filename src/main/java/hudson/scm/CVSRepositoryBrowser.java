@@ -52,5 +52,74 @@ public abstract class CVSRepositoryBrowser extends RepositoryBrowser<CVSChangeLo
      */
     public abstract URL getFileLink(CVSChangeLogSet.File file) throws IOException;
 
+    /**
+     * Computes the link returned by {@link #getCachedDiffLink(CVSChangeLogSet.File)}.
+     * Browsers that want their links computed once per changelog override this
+     * and implement {@link #getDiffLink(CVSChangeLogSet.File)} by calling {@link #getCachedDiffLink(CVSChangeLogSet.File)}.
+     *
+     * @return
+     *      null if the browser doesn't have any URL for diff.
+     */
+    protected URL createDiffLink(CVSChangeLogSet.File file) throws IOException {
+        return null;
+    }
+
+    /**
+     * Computes the link returned by {@link #getCachedFileLink(CVSChangeLogSet.File)}.
+     *
+     * @return
+     *      null if the browser doesn't have any suitable URL.
+     * @see #createDiffLink(CVSChangeLogSet.File)
+     */
+    protected URL createFileLink(CVSChangeLogSet.File file) throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns the diff link from the link table of the changelog the file belongs to,
+     * computing it with {@link #createDiffLink(CVSChangeLogSet.File)} the first time.
+     */
+    protected final URL getCachedDiffLink(CVSChangeLogSet.File file) throws IOException {
+        CVSChangeLogSet set = file.getChangeLogSet();
+        return set != null ? set.getLinkTable(this).getDiffLink(file) : createDiffLink(file);
+    }
+
+    /**
+     * Returns the file link from the link table of the changelog the file belongs to,
+     * computing it with {@link #createFileLink(CVSChangeLogSet.File)} the first time.
+     */
+    protected final URL getCachedFileLink(CVSChangeLogSet.File file) throws IOException {
+        CVSChangeLogSet set = file.getChangeLogSet();
+        return set != null ? set.getLinkTable(this).getFileLink(file) : createFileLink(file);
+    }
+
+    /**
+     * Returns the given URL without its query string and fragment, such that links
+     * can be built from it by appending a path.
+     */
+    protected static String getPrefix(URL url) {
+        String s = url.toExternalForm();
+        int idx = s.indexOf('?');
+        if (idx < 0) {
+            idx = s.indexOf('#');
+        }
+        return idx < 0 ? s : s.substring(0, idx);
+    }
+
+    /**
+     * Returns the query string of the given URL including the leading '?', or an empty string if it has none.
+     */
+    protected static String getQuery(URL url) {
+        String q = url.getQuery();
+        return q != null ? '?' + q : "";
+    }
+
+    /**
+     * Appends a parameter to a query string returned by {@link #getQuery(URL)}.
+     */
+    protected static String appendParam(String query, String param) {
+        return query + (query.length() == 0 ? '?' : '&') + param;
+    }
+
     private static final long serialVersionUID = 1L;
 }
@@ -34,9 +34,11 @@ import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
 import hudson.model.Hudson;
 import hudson.model.JobProperty;
 import hudson.model.ModelObject;
+import hudson.model.Node;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersDefinitionProperty;
@@ -48,6 +50,8 @@ import hudson.remoting.VirtualChannel;
 import hudson.scm.cvs.Messages;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.AtomicFileWriter;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
 import hudson.util.ForkOutputStream;
 import hudson.util.FormValidation;
 import hudson.util.IOException2;
@@ -56,7 +60,6 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
@@ -68,9 +71,9 @@ import java.io.StringWriter;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -78,6 +81,9 @@ import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -94,8 +100,6 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.tools.ant.BuildException;
-import org.apache.tools.zip.ZipEntry;
-import org.apache.tools.zip.ZipOutputStream;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -146,6 +150,12 @@ public class CVSSCM extends SCM implements Serializable {
 
     private static final Logger LOGGER = Logger.getLogger(CVSSCM.class.getName());
 
+    /**
+     * Completes the asynchronous workspace archives on the master.
+     */
+    private static final ExecutorService ARCHIVE_COMPLETION = Executors.newCachedThreadPool(
+        new ExceptionCatchingThreadFactory(new DaemonThreadFactory()));
+
     // see http://www.network-theory.co.uk/docs/cvsmanual/cvs_153.html for the output format.
     // we don't care '?' because that's not in the repository
     private static final Pattern UPDATE_LINE = Pattern.compile("[UPARMC] (.+)");
@@ -188,6 +198,11 @@ public class CVSSCM extends SCM implements Serializable {
      */
     private boolean preventLineEndingConversion;
 
+    /**
+     * True to space out the polls of each module location according to its commit rate. See {@link AdaptivePolling}.
+     */
+    private boolean adaptivePolling;
+
     // No longer used but left for serialization compatibility
     @Deprecated
     private String cvsroot;
@@ -217,9 +232,16 @@ public class CVSSCM extends SCM implements Serializable {
             cvsRsh, canUseUpdate, legacy, excludedRegions, false, Boolean.getBoolean(CVSSCM.class.getName() + ".skipChangeLog"));
     }
 
-    @DataBoundConstructor
     public CVSSCM(List<ModuleLocationImpl> moduleLocations, String cvsRsh, boolean canUseUpdate, boolean legacy,
                   String excludedRegions, boolean preventLineEndingConversion, boolean skipChangeLog) {
+        this(moduleLocations, cvsRsh, canUseUpdate, legacy, excludedRegions, preventLineEndingConversion,
+            skipChangeLog, false);
+    }
+
+    @DataBoundConstructor
+    public CVSSCM(List<ModuleLocationImpl> moduleLocations, String cvsRsh, boolean canUseUpdate, boolean legacy,
+                  String excludedRegions, boolean preventLineEndingConversion, boolean skipChangeLog,
+                  boolean adaptivePolling) {
         moduleLocations = removeInvalidEntries(moduleLocations);
         this.moduleLocations = moduleLocations.toArray(new ModuleLocation[moduleLocations.size()]);
         this.cvsRsh = nullify(cvsRsh);
@@ -229,6 +251,7 @@ public class CVSSCM extends SCM implements Serializable {
         this.excludedRegions = excludedRegions;
         this.preventLineEndingConversion = preventLineEndingConversion;
         this.skipChangeLog = skipChangeLog;
+        this.adaptivePolling = adaptivePolling;
     }
 
     @Override
@@ -311,32 +334,114 @@ public class CVSSCM extends SCM implements Serializable {
     	return skipChangeLog;
     }
 
+    @Exported
+    public boolean isAdaptivePolling() {
+        return adaptivePolling;
+    }
+
     public boolean checkout(AbstractBuild build, Launcher launcher, FilePath ws, BuildListener listener,
                             File changelogFile) throws IOException, InterruptedException {
+        CheckoutTimings timings = new CheckoutTimings();
+        build.getActions().add(timings);
+        CheckoutTimings.setCurrent(timings);
+        try {
+            return checkout(build, launcher, ws, listener, changelogFile, timings);
+        } finally {
+            CheckoutTimings.setCurrent(null);
+            timings.print(listener.getLogger());
+        }
+    }
+
+    private boolean checkout(AbstractBuild build, Launcher launcher, FilePath ws, BuildListener listener,
+                             File changelogFile, CheckoutTimings timings) throws IOException, InterruptedException {
         List<String> changedFiles = null; // files that were affected by update. null this is a check out
+        CheckoutTimings.Phase phase;
+        MirrorCache mirror = null;
+        RcsMirror rcsMirror = getRcsMirror(build.getBuiltOn());
+        List<ModuleLocation> locations = new ArrayList<ModuleLocation>();
         for (ModuleLocation moduleLocation : getModuleLocations()) {
             @SuppressWarnings("unchecked")
             ModuleLocation parametrizedLocation = new ParametrizedModuleLocationImpl(moduleLocation,
                 build.getBuildVariables());
-            if (canUseUpdate && isUpdatable(parametrizedLocation, ws) == null) {
+            if (rcsMirror != null) {
+                phase = timings.begin("mirror sync", parametrizedLocation);
+                boolean mirrored = rcsMirror.sync(parametrizedLocation, cvsRsh, launcher, listener);
+                phase.end(-1);
+                if (mirrored) {
+                    parametrizedLocation = rcsMirror.getLocation(parametrizedLocation);
+                }
+            }
+            locations.add(parametrizedLocation);
+            String why = canUseUpdate ? isUpdatable(parametrizedLocation, ws) : null;
+            if (canUseUpdate && why == null) {
+                phase = timings.begin("update", parametrizedLocation);
                 changedFiles = update(parametrizedLocation, false, launcher, ws, listener,
                     build.getTimestamp().getTime());
+                phase.end(changedFiles != null ? changedFiles.size() : -1);
+                if (changedFiles == null
+                    && !cleanCheckout(parametrizedLocation, launcher, ws, listener, build.getTimestamp().getTime())) {
+                    return false;   // failed
+                }
+            } else if (canUseUpdate && retarget(parametrizedLocation, ws, listener, why)) {
+                phase = timings.begin("update", parametrizedLocation);
+                changedFiles = update(parametrizedLocation, false, true, launcher, ws, listener,
+                    build.getTimestamp().getTime());
+                phase.end(changedFiles != null ? changedFiles.size() : -1);
                 if (changedFiles == null
                     && !cleanCheckout(parametrizedLocation, launcher, ws, listener, build.getTimestamp().getTime())) {
                     return false;   // failed
                 }
             } else {
-                if (!checkout(parametrizedLocation, launcher, ws, listener, build.getTimestamp().getTime())) {
+                if (mirror == null) {
+                    mirror = MirrorCache.of(build.getBuiltOn(), getDescriptor().getMirrorCacheSize());
+                }
+                if (mirror != null) {
+                    phase = timings.begin("mirror seed", parametrizedLocation);
+                    boolean seeded = seedFromMirror(mirror, parametrizedLocation, launcher, ws, listener,
+                        build.getTimestamp().getTime());
+                    phase.end(-1);
+                    if (seeded) {
+                        continue;
+                    }
+                }
+                if (getDescriptor().getCoalesceWindow() > 0) {
+                    phase = timings.begin("shared checkout", parametrizedLocation);
+                    Boolean shared = sharedCheckout(build.getBuiltOn(), parametrizedLocation, launcher, ws, listener,
+                        build.getTimestamp().getTime());
+                    phase.end(-1);
+                    if (shared != null) {
+                        if (!shared) {
+                            return false;
+                        }
+                        continue;
+                    }
+                }
+                phase = timings.begin("checkout", parametrizedLocation);
+                boolean checkedOut = checkout(parametrizedLocation, launcher, ws, listener,
+                    build.getTimestamp().getTime());
+                phase.end(-1);
+                if (!checkedOut) {
                     return false;
                 }
             }
         }
-        archiveWorkspace(build, ws);
-
+        if (mirror != null) {
+            mirror.evict(listener);
+        }
+        // archive in the background, the changelog doesn't need it
+        java.util.concurrent.Future<?> archiving = archiveWorkspace(build, ws, listener, timings);
 
         // contribute the tag action
-        build.getActions().add(new TagAction(build));
-        return calcChangeLog(build, ws, changedFiles, changelogFile, listener);
+        TagAction tagAction = new TagAction(build);
+        tagAction.setArchiving(archiving);
+        build.getActions().add(tagAction);
+        try {
+            return calcChangeLog(build, ws, locations, changedFiles, changelogFile, listener);
+        } finally {
+            // the archive reports to the build log and to the timings, which the build moves past on return.
+            // A failed archive only prevents tagging, so it doesn't fail the build
+            tagAction.waitForArchive(listener);
+        }
     }
 
     @Override
@@ -401,47 +506,91 @@ public class CVSSCM extends SCM implements Serializable {
                                                       FilePath workspace, final TaskListener listener,
                                                       SCMRevisionState _baseline)
         throws IOException, InterruptedException {
+        Computer computer = workspace != null ? workspace.toComputer() : null;
+        RcsMirror rcsMirror = computer != null ? getRcsMirror(computer.getNode()) : null;
         for (ModuleLocation moduleLocation : getModuleLocations()) {
             @SuppressWarnings("unchecked")
             ModuleLocation parametrizedLocation = new ParametrizedModuleLocationImpl(moduleLocation,
                 getBuildVariables(project));
-
-            String why = isUpdatable(parametrizedLocation, workspace);
-            if (why != null) {
-                listener.getLogger().println(Messages.CVSSCM_WorkspaceInconsistent(why));
-                return PollingResult.BUILD_NOW;
+            AdaptivePolling.Schedule schedule = null;
+            if (adaptivePolling) {
+                long now = System.currentTimeMillis();
+                schedule = AdaptivePolling.INSTANCE.getSchedule(project, parametrizedLocation, now,
+                    getDescriptor().getAdaptivePollingMinMillis(), getDescriptor().getAdaptivePollingMaxMillis());
+                if (!schedule.isDue(now)) {
+                    listener.getLogger().println(Messages.CVSSCM_AdaptivePollingSkipped(schedule.getLocation(),
+                        schedule.getNextPoll()));
+                    continue;
+                }
             }
+            PollingMetrics.Poll poll = PollingMetrics.INSTANCE.begin(parametrizedLocation);
+            PollingMetrics.Outcome outcome = PollingMetrics.Outcome.FAILED;
+            try {
+                if (rcsMirror != null && rcsMirror.sync(parametrizedLocation, cvsRsh, launcher, listener)) {
+                    parametrizedLocation = rcsMirror.getLocation(parametrizedLocation);
+                }
 
-            List<String> changedFiles = update(parametrizedLocation, true, launcher, workspace, listener, new Date());
+                String why = isUpdatable(parametrizedLocation, workspace);
+                if (why != null) {
+                    listener.getLogger().println(Messages.CVSSCM_WorkspaceInconsistent(why));
+                    outcome = PollingMetrics.Outcome.WORKSPACE_INCONSISTENT;
+                    return PollingResult.BUILD_NOW;
+                }
+
+                List<String> changedFiles = update(parametrizedLocation, true, launcher, workspace, listener,
+                    new Date());
+                if (changedFiles == null) {
+                    continue;
+                }
+                if (changedFiles.isEmpty()) {
+                    outcome = PollingMetrics.Outcome.NO_CHANGES;
+                    continue;
+                }
 
-            if (changedFiles != null && !changedFiles.isEmpty()) {
                 Pattern[] patterns = getExcludedRegionsPatterns();
-                if (patterns != null) {
-                    boolean areThereChanges = false;
-                    for (String changedFile : changedFiles) {
-                        boolean patternMatched = false;
-                        for (Pattern pattern : patterns) {
-                            if (pattern.matcher(changedFile).matches()) {
-                                patternMatched = true;
-                                break;
-                            }
-                        }
-                        if (!patternMatched) {
-                            areThereChanges = true;
+                if (patterns == null) {
+                    poll.changed(changedFiles.size(), 0);
+                    outcome = PollingMetrics.Outcome.CHANGES;
+                    return PollingResult.BUILD_NOW;
+                }
+                int excluded = 0;
+                for (String changedFile : changedFiles) {
+                    for (Pattern pattern : patterns) {
+                        if (pattern.matcher(changedFile).matches()) {
+                            excluded++;
                             break;
                         }
                     }
-                    if (areThereChanges) {
-                        return PollingResult.BUILD_NOW;
-                    }
-                } else {
+                }
+                poll.changed(changedFiles.size(), excluded);
+                if (excluded < changedFiles.size()) {
+                    outcome = PollingMetrics.Outcome.CHANGES;
                     return PollingResult.BUILD_NOW;
                 }
+                outcome = PollingMetrics.Outcome.EXCLUDED;
+            } finally {
+                poll.end(outcome);
+                if (schedule != null) {
+                    schedule.polled(System.currentTimeMillis(), outcome == PollingMetrics.Outcome.CHANGES
+                        || outcome == PollingMetrics.Outcome.WORKSPACE_INCONSISTENT,
+                        getDescriptor().getAdaptivePollingMinMillis());
+                    listener.getLogger().println(Messages.CVSSCM_AdaptivePollingNext(schedule.getLocation(),
+                        schedule.getNextPoll(), schedule.getCommitsPerDay()));
+                }
             }
         }
         return PollingResult.NO_CHANGES;
     }
 
+    /**
+     * Returns the {@link RcsMirror} of the given node.
+     *
+     * @return null if no repository is mirrored.
+     */
+    RcsMirror getRcsMirror(Node node) {
+        return RcsMirror.of(node, getDescriptor().getRcsMirrorSources());
+    }
+
     /**
      * Returns null if we can use "cvs update" instead of "cvs checkout"
      *
@@ -524,6 +673,16 @@ public class CVSSCM extends SCM implements Serializable {
      */
     List<String> update(ModuleLocation moduleLocation, boolean dryRun, Launcher launcher, FilePath workspace,
                         TaskListener listener, Date date) throws IOException, InterruptedException {
+        return update(moduleLocation, dryRun, false, launcher, workspace, listener, date);
+    }
+
+    /**
+     * @param resetSticky if true, sticky tags are reset when updating to the trunk, so that
+     *      a workspace previously on a branch can be switched in place.
+     */
+    private List<String> update(ModuleLocation moduleLocation, boolean dryRun, boolean resetSticky, Launcher launcher,
+                                FilePath workspace, TaskListener listener, Date date)
+        throws IOException, InterruptedException {
         List<String> changedFileNames = new ArrayList<String>();    // file names relative to the workspace
         ArgumentListBuilder cmd = new ArgumentListBuilder();
         cmd.add(getDescriptor().getCvsExeOrDefault(), debug ? "-t" : "-q",
@@ -536,34 +695,80 @@ public class CVSSCM extends SCM implements Serializable {
         if (dryRun) {
             cmd.add("-n");
         }
+        ProcessTimeout.Operation operation = dryRun ? ProcessTimeout.Operation.POLL
+            : ProcessTimeout.Operation.CHECKOUT;
         cmd.add("update", "-PdC");
         if (moduleLocation.getBranch() != null) {
             cmd.add("-r", moduleLocation.getBranch());
+        } else if (resetSticky) {
+            cmd.add("-A");
         }
         configureDate(moduleLocation, cmd, date);
 
         if (flatten) {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
-            if (!run(launcher, cmd, listener, workspace,
-                new ForkOutputStream(baos, listener.getLogger()))) {
+            if (!run(moduleLocation.getCvsroot(), operation, launcher, cmd, listener, workspace, listener.getLogger(),
+                baos)) {
                 return null;
             }
 
             // asynchronously start cleaning up the sticky tag while we work on parsing the result
+            long start = System.currentTimeMillis();
             Future<Void> task = workspace.actAsync(new StickyDateCleanUpTask());
             parseUpdateOutput("", baos, changedFileNames);
             join(task);
+            addTiming("sticky cleanup", moduleLocation, start);
         } else {
-            if (performModuleUpdate(launcher, listener, changedFileNames, cmd, moduleLocation, workspace)) {
+            if (performModuleUpdate(launcher, listener, changedFileNames, cmd, operation, moduleLocation,
+                workspace)) {
                 return null;
             }
         }
         return changedFileNames;
     }
 
+    /**
+     * Tries to make a workspace that {@link #isUpdatable(ModuleLocation, FilePath)} rejected updatable in place,
+     * rather than wiping it out for a new checkout.
+     * <p/>
+     * A branch or tag mismatch is left to the following update, which switches the workspace with <tt>-r</tt>
+     * (or <tt>-A</tt> for the trunk). A <tt>CVS/Root</tt> that designates the same repository under another password
+     * or host alias is rewritten. Anything else, such as a missing <tt>CVS</tt> directory, requires a checkout.
+     *
+     * @param why the reason the workspace isn't updatable.
+     * @return true if the workspace can now be updated.
+     */
+    private boolean retarget(ModuleLocation location, FilePath ws, TaskListener listener, String why)
+        throws IOException, InterruptedException {
+        String[] dirs;
+        if (flatten) {
+            dirs = new String[]{""};
+        } else {
+            String[] modules = location.getNormalizedModules();
+            dirs = new String[modules.length];
+            for (int i = 0; i < modules.length; i++) {
+                dirs[i] = StringUtils.isNotEmpty(location.getLocalDir())
+                    ? location.getLocalDir() + '/' + modules[i] : modules[i];
+            }
+        }
+        String reason;
+        try {
+            reason = ws.act(new WorkspaceRetargeter(dirs, location.getCvsroot()));
+        } catch (IOException e) {
+            reason = e.getMessage();
+        }
+        if (reason != null) {
+            listener.getLogger().println(Messages.CVSSCM_CannotRetargetWorkspace(reason));
+            return false;
+        }
+        listener.getLogger().println(Messages.CVSSCM_RetargetingWorkspace(why));
+        return true;
+    }
+
     /**
      * Returns the file name used to archive the build.
+     * Builds are now archived into the {@link ControlFileStore} instead, but older builds still have this file.
      *
      * @param build {@link AbstractBuild}.
      * @return the file name used to archive the build.
@@ -580,9 +785,78 @@ public class CVSSCM extends SCM implements Serializable {
      */
     protected final boolean run(Launcher launcher, ArgumentListBuilder cmd, TaskListener listener, FilePath dir,
                                 OutputStream out) throws IOException, InterruptedException {
-        Map<String, String> env = createEnvVarMap(true);
+        List<String> args = cmd.toList();
+        return run(ProcessThrottle.getCvsroot(args), ProcessTimeout.Operation.of(args), launcher, cmd, listener, dir,
+            out, null);
+    }
 
-        int r = launcher.launch().cmds(cmd).envs(env).stdout(out).pwd(dir).join();
+    /**
+     * @param cvsroot the repository the command works on, for {@link ProcessThrottle}.
+     * @param operation what the command does, for its timeout.
+     * @param capture if non-null, receives the output of the attempt that completes, on top of {@code out}.
+     */
+    private boolean run(String cvsroot, ProcessTimeout.Operation operation, Launcher launcher,
+                        ArgumentListBuilder cmd, TaskListener listener, FilePath dir, OutputStream out,
+                        ByteArrayOutputStream capture) throws IOException, InterruptedException {
+        CheckoutTimings timings = CheckoutTimings.current();
+        if (timings != null) {
+            out = timings.count(out);
+        }
+        if (capture != null) {
+            out = new ForkOutputStream(capture, out);
+        }
+        long timeout = getDescriptor().getTimeoutMillis(operation);
+        Integer r;
+        for (int attempt = 0; ; attempt++) {
+            r = null;
+            boolean timedOut = false;
+            if (capture != null) {
+                // only what the last attempt printed is to be parsed
+                capture.reset();
+            }
+            ProcessThrottle.Slot slot = ProcessThrottle.INSTANCE.acquire(cvsroot,
+                getDescriptor().getMaxProcessesPerServer());
+            try {
+                if (getDescriptor().isUseEmbeddedClient()) {
+                    EmbeddedCvs embedded = EmbeddedCvs.parse(cmd.toList(), getDescriptor().getCvspassFile(), cvsRsh,
+                        new RemoteOutputStream(out));
+                    if (embedded != null) {
+                        embedded.setTimeout(timeout);
+                        try {
+                            r = dir.act(embedded);
+                        } catch (IOException e) {
+                            if (!ProcessTimeout.isTimeout(e)) {
+                                throw e;
+                            }
+                            timedOut = true;
+                        }
+                    }
+                }
+                if (r == null && !timedOut) {
+                    PollingMetrics.Poll poll = PollingMetrics.current();
+                    if (poll != null) {
+                        poll.forked();
+                    }
+                    Map<String, String> env = createEnvVarMap(true);
+                    r = ProcessTimeout.join(launcher.launch().cmds(cmd).envs(env).stdout(out).pwd(dir).start(),
+                        timeout);
+                }
+            } finally {
+                slot.release();
+            }
+            if (r != null) {
+                break;
+            }
+            listener.error(Messages.CVSSCM_TimedOut(operation.getName(), timeout / 1000));
+            int retries = getDescriptor().getTimeoutRetries();
+            if (attempt >= retries) {
+                listener.fatalError(getDescriptor().getDisplayName() + " failed. timed out");
+                return false;
+            }
+            long delay = ProcessTimeout.getRetryDelay(attempt);
+            listener.getLogger().println(Messages.CVSSCM_RetryingAfterTimeout(delay / 1000, attempt + 1, retries));
+            Thread.sleep(delay);
+        }
         if (r != 0) {
             listener.fatalError(getDescriptor().getDisplayName() + " failed. exit code=" + r);
         }
@@ -595,6 +869,17 @@ public class CVSSCM extends SCM implements Serializable {
         return run(launcher, cmd, listener, dir, listener.getLogger());
     }
 
+    /**
+     * Runs a command that doesn't name its repository with {@code -d}, such as one run in a checked out directory.
+     *
+     * @param cvsroot the repository the command works on, for {@link ProcessThrottle}.
+     * @param operation what the command does, for its timeout.
+     */
+    final boolean run(String cvsroot, ProcessTimeout.Operation operation, Launcher launcher, ArgumentListBuilder cmd,
+                      TaskListener listener, FilePath dir) throws IOException, InterruptedException {
+        return run(cvsroot, operation, launcher, cmd, listener, dir, listener.getLogger(), null);
+    }
+
     /**
      * @param overrideOnly true to indicate that the returned map shall only contain
      * properties that need to be overridden. This is for use with {@link Launcher}.
@@ -617,7 +902,7 @@ public class CVSSCM extends SCM implements Serializable {
      * @param project {@link AbstractProject}
      * @return additional variables and their values.
      */
-    private Map<String, String> getBuildVariables(AbstractProject<?, ?> project) {
+    Map<String, String> getBuildVariables(AbstractProject<?, ?> project) {
         Map<String, String> params = new HashMap<String, String>();
         if (project != null && MapUtils.isNotEmpty(project.getProperties())) {
             for (JobProperty prop : project.getProperties().values()) {
@@ -637,104 +922,53 @@ public class CVSSCM extends SCM implements Serializable {
     }
 
     /**
-     * Archives all the CVS-controlled files in {@code dir}.
+     * Starts archiving the workspace to support later tagging.
+     * <p/>
+     * The CVS control files are added to the {@link ControlFileStore} of the job, and listed in the manifest
+     * of the build, in the background while the changelog is computed. Only the CVS control files are read.
      *
-     * @param relPath The path name in ZIP to store this directory with.
+     * @return completes when the manifest and the revisions of the workspace have been written.
      */
-    private void archive(File dir, String relPath, ZipOutputStream zos, boolean isRoot) throws IOException {
-        Set<String> knownFiles = new HashSet<String>();
-        // see http://www.monkey.org/openbsd/archive/misc/9607/msg00056.html for what Entries.Log is for
-        parseCVSEntries(new File(dir, "CVS/Entries"), knownFiles);
-        parseCVSEntries(new File(dir, "CVS/Entries.Log"), knownFiles);
-        parseCVSEntries(new File(dir, "CVS/Entries.Extra"), knownFiles);
-        boolean hasCVSdirs = !knownFiles.isEmpty();
-        knownFiles.add("CVS");
-
-        File[] files = dir.listFiles();
-        if (files == null) {
-            if (isRoot) {
-                throw new IOException(
-                    "No such directory exists. Did you specify the correct branch? Perhaps you specified a tag: "
-                        + dir);
-            } else {
-                throw new IOException(
-                    "No such directory exists. Looks like someone is modifying the workspace concurrently: " + dir);
-            }
-        }
-        for (File f : files) {
-            String name = relPath + '/' + f.getName();
-            if (f.isDirectory()) {
-                if (hasCVSdirs && !knownFiles.contains(f.getName())) {
-                    // not controlled in CVS. Skip.
-                    // but also make sure that we archive CVS/*, which doesn't have CVS/CVS
-                    continue;
-                }
-                archive(f, name, zos, false);
-            } else {
-                if (!dir.getName().equals("CVS"))
-                // we only need to archive CVS control files, not the actual workspace files
-                {
-                    continue;
-                }
-                zos.putNextEntry(new ZipEntry(name));
-                FileInputStream fis = new FileInputStream(f);
-                Util.copyStream(fis, zos);
-                fis.close();
-                zos.closeEntry();
-            }
-        }
-    }
-
-    /**
-     * Parses the CVS/Entries file and adds file/directory names to the list.
-     */
-    private void parseCVSEntries(File entries, Set<String> knownFiles) throws IOException {
-        if (!entries.exists()) {
-            return;
-        }
-
-        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(entries)));
-        try {
-            String line;
-            while ((line = in.readLine()) != null) {
-                String[] tokens = line.split("/+");
-                if (tokens == null || tokens.length < 2) {
-                    continue;   // invalid format
-                }
-                knownFiles.add(tokens[1]);
+    private java.util.concurrent.Future<?> archiveWorkspace(final AbstractBuild build, final FilePath ws,
+                                                            final TaskListener listener,
+                                                            final CheckoutTimings timings)
+        throws IOException, InterruptedException {
+        final long start = System.currentTimeMillis();
+        ModuleLocation[] locations = getModuleLocations();
+        String[] dirs;
+        String[] archivePaths;
+        if (flatten) {
+            dirs = new String[]{""};
+            archivePaths = new String[]{locations[0].getModule()};
+        } else {
+            dirs = new String[locations.length];
+            archivePaths = new String[locations.length];
+            for (int i = 0; i < locations.length; i++) {
+                dirs[i] = locations[i].getLocalDir();
+                archivePaths[i] = ModuleLocationImpl.DEFAULT_LOCAL_DIR.equals(locations[i].getLocalDir())
+                    ? ModuleLocationImpl.TAGGING_SUBDIR : locations[i].getLocalDir();
             }
-        } finally {
-            IOUtils.closeQuietly(in);
         }
-    }
-
-    // archive the workspace to support later tagging
-    @SuppressWarnings("unchecked")
-    private void archiveWorkspace(final AbstractBuild build, FilePath ws) throws IOException, InterruptedException {
 
-        File archiveFile = getArchiveFile(build);
-        final OutputStream os = new RemoteOutputStream(new FileOutputStream(archiveFile));
+        final ControlFileStore store = ControlFileStore.of(build.getProject());
+        final Future<WorkspaceArchiver.Result> future = ws.actAsync(new WorkspaceArchiver(dirs, archivePaths));
 
-        ws.act(new FileCallable<Void>() {
-            public Void invoke(File ws, VirtualChannel channel) throws IOException {
-                ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(os));
-                if (flatten) {
-                    archive(ws, getModuleLocations()[0].getModule(), zos, true);
-                } else {
-                    for (ModuleLocation moduleLocation : getModuleLocations()) {
-                        File mf = new File(ws, moduleLocation.getLocalDir());
-
-                        if (!mf.exists()) {
-                            // directory doesn't exist. This happens if a directory that was checked out
-                            // didn't include any file.
-                            continue;
-                        }
-                        archive(mf, ModuleLocationImpl.DEFAULT_LOCAL_DIR.equals(moduleLocation.getLocalDir())
-                                ? ModuleLocationImpl.TAGGING_SUBDIR : moduleLocation.getLocalDir(), zos, true);
-                    }
+        return ARCHIVE_COMPLETION.submit(new java.util.concurrent.Callable<Void>() {
+            public Void call() throws Exception {
+                try {
+                    WorkspaceArchiver.Result r = future.get();
+                    store.add(ws, r, ControlFileStore.getManifestFile(build));
+
+                    // lets TagAction tag with rtag instead of recreating the workspace
+                    r.revisions.save(build);
+                    listener.getLogger().println(Messages.CVSSCM_ArchivedWorkspace(r.manifest.size(), r.newFiles,
+                        r.bytes, System.currentTimeMillis() - start));
+                    timings.add("archive", null, System.currentTimeMillis() - start, r.bytes, r.manifest.size());
+                    return null;
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to archive the workspace of " + build, e);
+                    throw e;
                 }
-                zos.close();
-                return null;
             }
         });
     }
@@ -770,6 +1004,133 @@ public class CVSSCM extends SCM implements Serializable {
         return checkout(moduleLocation, launcher, dir, listener, buildDate);
     }
 
+    /**
+     * Checks out the modules of a location by copying them from the {@link MirrorCache} of the node
+     * and then updating them.
+     *
+     * @return false if the mirror can't be used for this location, in which case a regular checkout is needed.
+     */
+    private boolean seedFromMirror(MirrorCache mirror, ModuleLocation moduleLocation, Launcher launcher,
+                                   FilePath dir, TaskListener listener, Date dt)
+        throws IOException, InterruptedException {
+        String[] modules = moduleLocation.getNormalizedModules();
+        if (flatten && modules.length != 1) {
+            return false;
+        }
+        FilePath locationPath = StringUtils.isNotEmpty(moduleLocation.getLocalDir())
+            ? dir.child(moduleLocation.getLocalDir()) : dir;
+        for (String module : modules) {
+            FilePath target = flatten ? dir : locationPath.child(module);
+            if (target.exists() && !target.list().isEmpty()) {
+                return false;   // let checkout merge with what's already there
+            }
+
+            String name = MirrorCache.getEntryName(moduleLocation.getCvsroot(), module, moduleLocation.getBranch());
+            ReentrantLock lock = mirror.getLock(name);
+            lock.lockInterruptibly();
+            try {
+                FilePath entry = mirror.getEntry(name);
+                if (!entry.child("CVS").exists()) {
+                    listener.getLogger().println(Messages.CVSSCM_CreatingMirror(module, name));
+                    entry.deleteRecursive();
+                    mirror.getDir().mkdirs();
+                    ArgumentListBuilder cmd = new ArgumentListBuilder();
+                    cmd.add(getDescriptor().getCvsExeOrDefault(), debug ? "-t" : "-Q",
+                        compression(moduleLocation.getCvsroot()));
+                    if (preventLineEndingConversion) {
+                        cmd.add("--lf");
+                    }
+                    cmd.add("-d", moduleLocation.getCvsroot(), "co", "-P");
+                    if (moduleLocation.getBranch() != null) {
+                        cmd.add("-r", moduleLocation.getBranch());
+                    }
+                    cmd.add("-d", name, module);
+                    if (!run(launcher, cmd, listener, mirror.getDir())) {
+                        entry.deleteRecursive();
+                        return false;
+                    }
+                } else if (mirror.isStale(name)) {
+                    listener.getLogger().println(Messages.CVSSCM_RefreshingMirror(module, name));
+                    ArgumentListBuilder cmd = new ArgumentListBuilder();
+                    cmd.add(getDescriptor().getCvsExeOrDefault(), debug ? "-t" : "-Q",
+                        compression(moduleLocation.getCvsroot()));
+                    if (preventLineEndingConversion) {
+                        cmd.add("--lf");
+                    }
+                    cmd.add("update", "-PdC");
+                    if (moduleLocation.getBranch() != null) {
+                        cmd.add("-r", moduleLocation.getBranch());
+                    }
+                    if (!run(moduleLocation.getCvsroot(), ProcessTimeout.Operation.CHECKOUT, launcher, cmd, listener,
+                        entry)) {
+                        entry.deleteRecursive();
+                        return false;
+                    }
+                }
+                if (!mirror.copy(name, module, target)) {
+                    return false;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // only the changes since the mirror was refreshed cross the network
+        if (update(moduleLocation, false, launcher, dir, listener, dt) == null) {
+            return cleanCheckout(moduleLocation, launcher, dir, listener, dt);
+        }
+        return true;
+    }
+
+    /**
+     * Checks out the modules of a location through a checkout shared with the concurrent builds of the node,
+     * see {@link CheckoutCoalescer}.
+     *
+     * @return null if the checkout couldn't be shared, in which case a regular checkout is needed.
+     */
+    private Boolean sharedCheckout(Node node, ModuleLocation moduleLocation, Launcher launcher, FilePath ws,
+                                   TaskListener listener, Date date) throws IOException, InterruptedException {
+        if (node == null) {
+            return null;
+        }
+        // a flattened checkout is named after the workspace, so it gets a directory of its own
+        CheckoutCoalescer.Participant participant = CheckoutCoalescer.INSTANCE.join(node,
+            CheckoutCoalescer.getKey(moduleLocation, flatten, preventLineEndingConversion),
+            flatten ? ws.getName() : null, moduleLocation.isTag() ? null : date,
+            getDescriptor().getCoalesceWindow() * 1000L);
+        if (participant == null) {
+            return null;
+        }
+        String modules = StringUtils.join(moduleLocation.getNormalizedModules(), ' ');
+        try {
+            FilePath dir = participant.flight.dir;
+            FilePath checkout = participant.flight.checkout;
+            if (participant.isLeader()) {
+                listener.getLogger().println(Messages.CVSSCM_SharingCheckout(modules, dir.getRemote()));
+                boolean success = false;
+                try {
+                    dir.mkdirs();
+                    success = checkout(moduleLocation, launcher, checkout, listener, date);
+                } finally {
+                    participant.completed(success);
+                }
+                if (!success) {
+                    return false;
+                }
+            } else {
+                listener.getLogger().println(Messages.CVSSCM_WaitingForSharedCheckout(modules, dir.getRemote()));
+                if (!participant.await()) {
+                    listener.getLogger().println(Messages.CVSSCM_SharedCheckoutFailed(modules));
+                    return null;
+                }
+            }
+            checkout.act(new CheckoutCoalescer.Copy(ws));
+            return true;
+        } finally {
+            participant.leave();
+        }
+    }
+
     private boolean checkout(ModuleLocation moduleLocation, Launcher launcher, FilePath dir, TaskListener listener,
                              Date dt) throws IOException, InterruptedException {
         ArgumentListBuilder cmd = new ArgumentListBuilder();
@@ -812,7 +1173,8 @@ public class CVSSCM extends SCM implements Serializable {
     }
 
     private boolean performModuleUpdate(Launcher launcher, TaskListener listener, List<String> changedFileNames,
-                                        ArgumentListBuilder cmd, ModuleLocation moduleLocation, FilePath workspace)
+                                        ArgumentListBuilder cmd, ProcessTimeout.Operation operation,
+                                        ModuleLocation moduleLocation, FilePath workspace)
         throws IOException, InterruptedException {
         FilePath moduleLocationPath;
         if (StringUtils.isNotEmpty(moduleLocation.getLocalDir())) {
@@ -843,13 +1205,13 @@ public class CVSSCM extends SCM implements Serializable {
                 }
             }
 
-            if (!run(launcher, actualCmd, listener,
-                modulePath,
-                new ForkOutputStream(baos, listener.getLogger()))) {
+            if (!run(moduleLocation.getCvsroot(), operation, launcher, actualCmd, listener, modulePath,
+                listener.getLogger(), baos)) {
                 return true;
             }
 
             // asynchronously start cleaning up the sticky tag while we work on parsing the result
+            long start = System.currentTimeMillis();
             Future<Void> task = modulePath.actAsync(new StickyDateCleanUpTask());
 
             // we'll run one "cvs log" command with workspace as the base,
@@ -857,6 +1219,7 @@ public class CVSSCM extends SCM implements Serializable {
             parseUpdateOutput(baseName + '/', baos, changedFileNames);
 
             join(task);
+            addTiming("sticky cleanup", moduleLocation, start);
         }
         return false;
     }
@@ -893,6 +1256,16 @@ public class CVSSCM extends SCM implements Serializable {
         return moduleNames;
     }
 
+    /**
+     * Records a phase that started at the given time in the {@link CheckoutTimings} of the current checkout, if any.
+     */
+    private static void addTiming(String phase, ModuleLocation location, long start) {
+        CheckoutTimings timings = CheckoutTimings.current();
+        if (timings != null) {
+            timings.add(phase, location.getModule(), System.currentTimeMillis() - start, 0, -1);
+        }
+    }
+
     private void join(Future<Void> task) throws InterruptedException, IOException {
         try {
             task.get();
@@ -908,7 +1281,7 @@ public class CVSSCM extends SCM implements Serializable {
      * that are no longer present. The path names are relative to the workspace,
      * hence "String", not {@link File}.
      */
-    private void parseUpdateOutput(String baseName, ByteArrayOutputStream output, List<String> result)
+    static void parseUpdateOutput(String baseName, ByteArrayOutputStream output, List<String> result)
         throws IOException {
         BufferedReader in = new BufferedReader(new InputStreamReader(
             new ByteArrayInputStream(output.toByteArray())));
@@ -976,7 +1349,8 @@ public class CVSSCM extends SCM implements Serializable {
      * This is provided if the previous operation is update, otherwise null,
      * which means we have to fall back to the default slow computation.
      */
-    private boolean calcChangeLog(AbstractBuild build, FilePath ws, final List<String> changedFiles, File changelogFile,
+    private boolean calcChangeLog(AbstractBuild build, FilePath ws, List<ModuleLocation> locations,
+                                  final List<String> changedFiles, File changelogFile,
                                   final BuildListener listener) throws InterruptedException {
         if (build.getPreviousBuild() == null || (changedFiles != null && changedFiles.isEmpty())) {
             // nothing to compare against, or no changes
@@ -993,6 +1367,8 @@ public class CVSSCM extends SCM implements Serializable {
 
         final String cvspassFile = getDescriptor().getCvspassFile();
         final String cvsExe = getDescriptor().getCvsExeOrDefault();
+        final boolean useEmbeddedClient = getDescriptor().isUseEmbeddedClient();
+        final boolean readRcsFiles = getDescriptor().isReadRcsFiles();
 
         OutputStream o = null;
         try {
@@ -1001,12 +1377,18 @@ public class CVSSCM extends SCM implements Serializable {
             final Date endTime = build.getTimestamp().getTime();
             final OutputStream out = o = new RemoteOutputStream(new FileOutputStream(changelogFile));
 
-            for (ModuleLocation moduleLocation : getModuleLocations()) {
-                @SuppressWarnings("unchecked")
-                ModuleLocation parametrizedLocation = new ParametrizedModuleLocationImpl(moduleLocation,
-                    build.getBuildVariables());
-                ChangeLogResult result = getChangelog(parametrizedLocation, ws, changedFiles, listener, cvspassFile,
-                    cvsExe, startTime, endTime, out);
+            for (ModuleLocation location : locations) {
+                ChangeLogResult result = getChangelog(location, ws, changedFiles, listener, cvspassFile,
+                    cvsExe, useEmbeddedClient, readRcsFiles, startTime, endTime, out);
+                CheckoutTimings timings = CheckoutTimings.current();
+                if (result != null && timings != null) {
+                    if (result.versionMillis > 0) {
+                        timings.add("cvs version", location.getModule(), result.versionMillis, 0, -1);
+                    }
+                    timings.add("cvs log", location.getModule(), result.logMillis, result.logBytes, -1);
+                    timings.add("changelog write", location.getModule(), result.writeMillis, 0,
+                        result.entryCount);
+                }
                 if (result != null && result.hadError) {
                     // non-fatal error must have occurred, such as cvs changelog parsing error.s
                     listener.getLogger().print(result.errorOutput);
@@ -1040,6 +1422,7 @@ public class CVSSCM extends SCM implements Serializable {
     private ChangeLogResult getChangelog(final ModuleLocation moduleLocation, FilePath ws,
                                          final List<String> changedFiles, final BuildListener listener,
                                          final String cvspassFile, final String cvsExe,
+                                         final boolean useEmbeddedClient, final boolean readRcsFiles,
                                          final Date startTime, final Date endTime,
                                          final OutputStream out) throws IOException, InterruptedException {
         FilePath processingPath;
@@ -1048,7 +1431,8 @@ public class CVSSCM extends SCM implements Serializable {
         } else {
             processingPath = ws;
         }
-        return processingPath.act(new FileCallable<ChangeLogResult>() {
+        final long timeout = getDescriptor().getTimeoutMillis(ProcessTimeout.Operation.LOG);
+        FileCallable<ChangeLogResult> callable = new FileCallable<ChangeLogResult>() {
             public ChangeLogResult invoke(File processingPath, VirtualChannel channel) throws IOException {
                 final StringWriter errorOutput = new StringWriter();
                 final boolean[] hadError = new boolean[1];
@@ -1072,6 +1456,17 @@ public class CVSSCM extends SCM implements Serializable {
                             listener.getLogger().println(msg);
                         }
                     }
+
+                    @Override
+                    protected Integer runLog(List<String> arguments, OutputStream out, OutputStream err)
+                        throws IOException {
+                        CvsRoot root = useEmbeddedClient ? CvsRoot.parse(getCvsRoot()) : null;
+                        if (root == null) {
+                            return null;
+                        }
+                        return EmbeddedCvs.log(root, cvspassFile.length() == 0 ? null : new File(cvspassFile),
+                            cvsRsh, getDir(), arguments, out, err, timeout);
+                    }
                 };
                 task.setProject(new org.apache.tools.ant.Project());
                 task.setCvsExe(cvsExe);
@@ -1090,6 +1485,8 @@ public class CVSSCM extends SCM implements Serializable {
                 }
                 task.setCvsRsh(cvsRsh);
                 task.setFailOnError(true);
+                task.setTimeout(timeout);
+                task.setReadRcsFiles(readRcsFiles);
                 BufferedOutputStream bufferedOutput = new BufferedOutputStream(out);
                 task.setDeststream(bufferedOutput);
                 // It's to enforce ChangeLogParser find a "branch". If tag was specified, branch does not matter (see documentation for 'cvs log -r:tag').
@@ -1123,17 +1520,53 @@ public class CVSSCM extends SCM implements Serializable {
                     }
                 }
 
+                boolean timedOut = false;
                 try {
                     task.execute();
                 } catch (BuildException e) {
-                    throw new BuildExceptionWithLog(e, errorOutput.toString());
+                    timedOut = task.isTimedOut();
+                    throw new BuildExceptionWithLog(e, errorOutput.toString(), timedOut);
                 } finally {
-                    bufferedOutput.close();
+                    // nothing has been written yet if cvs log timed out, so leave the output open for a retry
+                    if (!timedOut) {
+                        bufferedOutput.close();
+                    }
                 }
 
-                return new ChangeLogResult(hadError[0], errorOutput.toString());
+                ChangeLogResult result = new ChangeLogResult(hadError[0], errorOutput.toString());
+                result.versionMillis = task.getVersionMillis();
+                result.logMillis = task.getLogMillis();
+                result.logBytes = task.getLogBytes();
+                result.writeMillis = task.getWriteMillis();
+                result.entryCount = task.getEntryCount();
+                return result;
             }
-        });
+        };
+
+        for (int attempt = 0; ; attempt++) {
+            long delay;
+            // the cvs log commands of the changelog task are run on the node, but queue here
+            ProcessThrottle.Slot slot = ProcessThrottle.INSTANCE.acquire(moduleLocation.getCvsroot(),
+                getDescriptor().getMaxProcessesPerServer());
+            try {
+                return processingPath.act(callable);
+            } catch (BuildExceptionWithLog e) {
+                if (!e.timedOut) {
+                    throw e;
+                }
+                listener.error(Messages.CVSSCM_TimedOut(ProcessTimeout.Operation.LOG.getName(), timeout / 1000));
+                int retries = getDescriptor().getTimeoutRetries();
+                if (attempt >= retries) {
+                    throw e;
+                }
+                delay = ProcessTimeout.getRetryDelay(attempt);
+                listener.getLogger().println(Messages.CVSSCM_RetryingAfterTimeout(delay / 1000, attempt + 1,
+                    retries));
+            } finally {
+                slot.release();
+            }
+            Thread.sleep(delay);
+        }
     }
 
     private String compression(String cvsroot) {
@@ -1205,6 +1638,60 @@ public class CVSSCM extends SCM implements Serializable {
          */
         private boolean noCompression;
 
+        /**
+         * Size limit of the mirror cache of each node, in megabytes. 0 to disable the cache.
+         */
+        private int mirrorCacheSize;
+
+        /**
+         * Repositories mirrored on each node, one "CVSROOT rsync-source" pair per line. Null if none.
+         */
+        private String rcsMirrors;
+
+        private transient volatile Map<String, String> rcsMirrorSources;
+
+        /**
+         * Run the commands that don't modify the workspace over {@link CvsConnection}s, rather than forking cvs.
+         */
+        private boolean useEmbeddedClient;
+
+        /**
+         * Read the changelog of local repositories from their RCS files, rather than running cvs log.
+         */
+        private boolean readRcsFiles;
+
+        /**
+         * Shortest and longest intervals between the polls of a module location, in minutes,
+         * for the jobs that use {@link AdaptivePolling}. 0 to default.
+         */
+        private int adaptivePollingMinInterval;
+        private int adaptivePollingMaxInterval;
+
+        /**
+         * Maximum number of cvs commands run at the same time against a CVS server. 0 for no limit.
+         */
+        private int maxProcessesPerServer;
+
+        /**
+         * Minutes after which the cvs commands of polls, checkouts and updates, changelogs and tags are killed.
+         * 0 for no timeout.
+         */
+        private int pollTimeout;
+        private int checkoutTimeout;
+        private int logTimeout;
+        private int tagTimeout;
+
+        /**
+         * Number of times a command that timed out is run again.
+         */
+        private int timeoutRetries;
+
+        /**
+         * Seconds by which the build dates of the builds sharing a {@link CheckoutCoalescer checkout} may differ.
+         * 0 to check out separately.
+         */
+        private int coalesceWindow;
+
         // compatibility only
         private transient Map<String, RepositoryBrowser> browsers;
 
@@ -1275,11 +1762,204 @@ public class CVSSCM extends SCM implements Serializable {
             return noCompression;
         }
 
+        public int getMirrorCacheSize() {
+            return mirrorCacheSize;
+        }
+
+        public void setMirrorCacheSize(int value) {
+            mirrorCacheSize = value;
+            save();
+        }
+
+        public String getRcsMirrors() {
+            return rcsMirrors;
+        }
+
+        public void setRcsMirrors(String value) {
+            rcsMirrors = value;
+            rcsMirrorSources = null;
+            save();
+        }
+
+        public boolean isUseEmbeddedClient() {
+            return useEmbeddedClient;
+        }
+
+        public void setUseEmbeddedClient(boolean value) {
+            useEmbeddedClient = value;
+            save();
+        }
+
+        public boolean isReadRcsFiles() {
+            return readRcsFiles;
+        }
+
+        public void setReadRcsFiles(boolean value) {
+            readRcsFiles = value;
+            save();
+        }
+
+        public int getAdaptivePollingMinInterval() {
+            return adaptivePollingMinInterval > 0 ? adaptivePollingMinInterval : 1;
+        }
+
+        public void setAdaptivePollingMinInterval(int value) {
+            adaptivePollingMinInterval = value;
+            save();
+        }
+
+        public int getAdaptivePollingMaxInterval() {
+            return Math.max(getAdaptivePollingMinInterval(),
+                adaptivePollingMaxInterval > 0 ? adaptivePollingMaxInterval : 240);
+        }
+
+        public void setAdaptivePollingMaxInterval(int value) {
+            adaptivePollingMaxInterval = value;
+            save();
+        }
+
+        long getAdaptivePollingMinMillis() {
+            return getAdaptivePollingMinInterval() * 60 * 1000L;
+        }
+
+        long getAdaptivePollingMaxMillis() {
+            return getAdaptivePollingMaxInterval() * 60 * 1000L;
+        }
+
+        public int getMaxProcessesPerServer() {
+            return maxProcessesPerServer;
+        }
+
+        public void setMaxProcessesPerServer(int value) {
+            maxProcessesPerServer = value;
+            save();
+        }
+
+        public int getPollTimeout() {
+            return pollTimeout;
+        }
+
+        public void setPollTimeout(int value) {
+            pollTimeout = value;
+            save();
+        }
+
+        public int getCheckoutTimeout() {
+            return checkoutTimeout;
+        }
+
+        public void setCheckoutTimeout(int value) {
+            checkoutTimeout = value;
+            save();
+        }
+
+        public int getLogTimeout() {
+            return logTimeout;
+        }
+
+        public void setLogTimeout(int value) {
+            logTimeout = value;
+            save();
+        }
+
+        public int getTagTimeout() {
+            return tagTimeout;
+        }
+
+        public void setTagTimeout(int value) {
+            tagTimeout = value;
+            save();
+        }
+
+        public int getTimeoutRetries() {
+            return timeoutRetries;
+        }
+
+        public void setTimeoutRetries(int value) {
+            timeoutRetries = value;
+            save();
+        }
+
+        public int getCoalesceWindow() {
+            return coalesceWindow;
+        }
+
+        public void setCoalesceWindow(int value) {
+            coalesceWindow = value;
+            save();
+        }
+
+        /**
+         * Returns the timeout of the commands of an operation, in milliseconds. 0 for none.
+         */
+        long getTimeoutMillis(ProcessTimeout.Operation operation) {
+            int minutes;
+            switch (operation) {
+                case POLL:
+                    minutes = pollTimeout;
+                    break;
+                case LOG:
+                    minutes = logTimeout;
+                    break;
+                case TAG:
+                    minutes = tagTimeout;
+                    break;
+                default:
+                    minutes = checkoutTimeout;
+            }
+            return minutes * 60 * 1000L;
+        }
+
+        /**
+         * Returns the queues of the CVS servers, shown by <tt>processQueue.jelly</tt>.
+         */
+        public ProcessThrottle getProcessThrottle() {
+            return ProcessThrottle.INSTANCE;
+        }
+
+        /**
+         * Returns the statistics of the polls, shown by <tt>pollingMetrics.jelly</tt>.
+         */
+        public PollingMetrics getPollingMetrics() {
+            return PollingMetrics.INSTANCE;
+        }
+
+        /**
+         * Returns the mirrored CVSROOTs, without password, to the rsync sources of their repositories.
+         */
+        Map<String, String> getRcsMirrorSources() {
+            Map<String, String> sources = rcsMirrorSources;
+            if (sources == null) {
+                try {
+                    sources = RcsMirror.parse(rcsMirrors);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Ignoring the invalid repository mirrors", e);
+                    sources = Collections.emptyMap();
+                }
+                rcsMirrorSources = sources;
+            }
+            return sources;
+        }
+
         @Override
         public boolean configure(StaplerRequest req, JSONObject o) {
             cvsPassFile = fixEmptyAndTrim(o.getString("cvspassFile"));
             cvsExe = fixEmptyAndTrim(o.getString("cvsExe"));
             noCompression = req.getParameter("cvs_noCompression") != null;
+            mirrorCacheSize = Math.max(0, o.optInt("mirrorCacheSize", 0));
+            rcsMirrors = fixEmptyAndTrim(o.optString("rcsMirrors"));
+            rcsMirrorSources = null;
+            useEmbeddedClient = o.optBoolean("useEmbeddedClient");
+            readRcsFiles = o.optBoolean("readRcsFiles");
+            adaptivePollingMinInterval = Math.max(0, o.optInt("adaptivePollingMinInterval", 0));
+            adaptivePollingMaxInterval = Math.max(0, o.optInt("adaptivePollingMaxInterval", 0));
+            maxProcessesPerServer = Math.max(0, o.optInt("maxProcessesPerServer", 0));
+            pollTimeout = Math.max(0, o.optInt("pollTimeout", 0));
+            checkoutTimeout = Math.max(0, o.optInt("checkoutTimeout", 0));
+            logTimeout = Math.max(0, o.optInt("logTimeout", 0));
+            tagTimeout = Math.max(0, o.optInt("tagTimeout", 0));
+            timeoutRetries = Math.max(0, o.optInt("timeoutRetries", 0));
+            coalesceWindow = Math.max(0, o.optInt("coalesceWindow", 0));
             save();
 
             return true;
@@ -1288,6 +1968,15 @@ public class CVSSCM extends SCM implements Serializable {
         //
         // web methods
         //
+        public FormValidation doCheckRcsMirrors(@QueryParameter String value) {
+            try {
+                RcsMirror.parse(value);
+                return FormValidation.ok();
+            } catch (IOException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
         public FormValidation doCheckCvspassFile(@QueryParameter String value) {
             // this method can be used to check if a file exists anywhere in the file system,
             // so it should be protected.
@@ -1493,12 +2182,18 @@ public class CVSSCM extends SCM implements Serializable {
     }
 
     /**
-     * Used to communicate the result of the detection in {@link CVSSCM#calcChangeLog(AbstractBuild, FilePath, List, File, BuildListener)}
+     * Used to communicate the result of the detection in {@link CVSSCM#calcChangeLog(AbstractBuild, FilePath, List, List, File, BuildListener)}
      */
     static class ChangeLogResult implements Serializable {
         boolean hadError;
         String errorOutput;
 
+        /**
+         * What {@link ChangeLogTask} measured, for {@link CheckoutTimings}.
+         */
+        long versionMillis, logMillis, logBytes, writeMillis;
+        int entryCount;
+
         public ChangeLogResult(boolean hadError, String errorOutput) {
             this.hadError = hadError;
             if (hadError) {
@@ -1515,9 +2210,19 @@ public class CVSSCM extends SCM implements Serializable {
     static class BuildExceptionWithLog extends RuntimeException {
         final String errorOutput;
 
+        /**
+         * True if cvs has been killed after {@link ProcessTimeout timing out}.
+         */
+        final boolean timedOut;
+
         public BuildExceptionWithLog(BuildException cause, String errorOutput) {
+            this(cause, errorOutput, false);
+        }
+
+        BuildExceptionWithLog(BuildException cause, String errorOutput, boolean timedOut) {
             super(cause);
             this.errorOutput = errorOutput;
+            this.timedOut = timedOut;
         }
 
         private static final long serialVersionUID = 1L;
@@ -1526,7 +2231,7 @@ public class CVSSCM extends SCM implements Serializable {
     /**
      * Recursively visits directories and get rid of the sticky date in <tt>CVS/Entries</tt> folder.
      */
-    private static final class StickyDateCleanUpTask implements FileCallable<Void> {
+    static final class StickyDateCleanUpTask implements FileCallable<Void> {
         private static final Pattern STICKY_DATE = Pattern.compile(
             "D\\d\\d\\d\\d\\.\\d\\d\\.\\d\\d\\.\\d\\d\\.\\d\\d\\.\\d\\d");
 
@@ -1606,6 +2311,7 @@ public class CVSSCM extends SCM implements Serializable {
             .append(canUseUpdate, that.canUseUpdate)
             .append(flatten, that.flatten)
             .append(preventLineEndingConversion, that.preventLineEndingConversion)
+            .append(adaptivePolling, that.adaptivePolling)
             .append(cvsRsh, that.cvsRsh)
             .append(excludedRegions, that.excludedRegions)
             .append(moduleLocations, that.moduleLocations)
@@ -1619,6 +2325,7 @@ public class CVSSCM extends SCM implements Serializable {
             .append(canUseUpdate)
             .append(flatten)
             .append(preventLineEndingConversion)
+            .append(adaptivePolling)
             .append(cvsRsh)
             .append(excludedRegions)
             .append(moduleLocations)
@@ -0,0 +1,246 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Lets the builds that check out the same modules on the same node at about the same time share one checkout.
+ * <p/>
+ * The first build to check out a (CVSROOT, modules, branch, local directory) combination on a node becomes the
+ * leader: it checks the modules out into a staging directory under <tt>cvs-coalesce</tt> in the root directory
+ * of the node, and then copies them, <tt>CVS</tt> directories included, into its workspace. The builds that
+ * arrive while the leader's checkout is in flight, with a build date within the window of the leader's, wait for
+ * it and copy the same staging directory rather than contacting the server. The last build to be done with the
+ * staging directory deletes it.
+ * <p/>
+ * Builds are coordinated on the master, which runs the checkouts of all the nodes, the same way
+ * {@link MirrorCache} locks its entries.
+ */
+final class CheckoutCoalescer {
+    /**
+     * Same as {@link CVSSCM}'s, so that checkouts don't depend on the password.
+     */
+    private static final Pattern PSERVER_CVSROOT_WITH_PASSWORD = Pattern.compile("(:pserver:[^@:]+):[^@:]+(@.+)");
+
+    /**
+     * The coalescer of this Hudson.
+     */
+    static final CheckoutCoalescer INSTANCE = new CheckoutCoalescer();
+
+    /**
+     * Checkouts in flight, by node and key.
+     */
+    private final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+    private long sequence;
+
+    CheckoutCoalescer() {
+    }
+
+    /**
+     * One shared checkout.
+     */
+    static final class Flight {
+        /**
+         * Date the modules are checked out at.
+         */
+        final Date date;
+
+        /**
+         * Staging directory of the checkout, on the node.
+         */
+        final FilePath dir;
+
+        /**
+         * Where the modules are checked out: {@link #dir}, or its subdirectory named after the workspace of the
+         * leader for a flattened checkout, whatever the workspaces of the other builds are named.
+         */
+        final FilePath checkout;
+
+        /**
+         * Builds that will copy {@link #checkout}, the leader included.
+         */
+        private int users = 1;
+        private boolean done;
+        private boolean success;
+
+        Flight(Date date, FilePath dir, String child) {
+            this.date = date;
+            this.dir = dir;
+            this.checkout = child == null ? dir : dir.child(child);
+        }
+    }
+
+    /**
+     * The part a build takes in a shared checkout.
+     */
+    final class Participant {
+        private final String key;
+        final Flight flight;
+        private final boolean leader;
+
+        private Participant(String key, Flight flight, boolean leader) {
+            this.key = key;
+            this.flight = flight;
+            this.leader = leader;
+        }
+
+        /**
+         * True if the build has to check the modules out into {@link Flight#checkout} for the others, and then call
+         * {@link #completed(boolean)}.
+         */
+        boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Called by the leader once the checkout has completed, which wakes the other participants up.
+         */
+        void completed(boolean success) {
+            synchronized (CheckoutCoalescer.this) {
+                flight.done = true;
+                flight.success = success;
+                if (flights.get(key) == flight) {
+                    flights.remove(key);
+                }
+                CheckoutCoalescer.this.notifyAll();
+            }
+        }
+
+        /**
+         * Waits for the leader's checkout to complete.
+         *
+         * @return true if it succeeded.
+         */
+        boolean await() throws InterruptedException {
+            synchronized (CheckoutCoalescer.this) {
+                while (!flight.done) {
+                    CheckoutCoalescer.this.wait();
+                }
+                return flight.success;
+            }
+        }
+
+        /**
+         * Tells that the build is done with the checkout. Deletes {@link Flight#dir} if it's the last one.
+         */
+        void leave() throws IOException, InterruptedException {
+            boolean last;
+            synchronized (CheckoutCoalescer.this) {
+                last = --flight.users == 0;
+            }
+            if (last) {
+                flight.dir.deleteRecursive();
+            }
+        }
+    }
+
+    /**
+     * Joins the checkout in flight of the given modules on the node, or starts a new one.
+     *
+     * @param checkout what is checked out, from {@link #getKey(ModuleLocation, boolean, boolean)}.
+     * @param child subdirectory of the staging directory to check out into if the build becomes the leader,
+     *      or null for the staging directory itself.
+     * @param date date the build checks out at, or null for a tag.
+     * @param window milliseconds by which the dates of the builds sharing a checkout may differ.
+     * @return null if the node is offline.
+     */
+    Participant join(Node node, String checkout, String child, Date date, long window) {
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            return null;
+        }
+        return join(node.getNodeName(), root, checkout, child, date, window);
+    }
+
+    synchronized Participant join(String nodeName, FilePath root, String checkout, String child, Date date,
+                                  long window) {
+        String key = nodeName + '/' + checkout;
+        Flight flight = flights.get(key);
+        if (flight != null && !flight.done
+            && (date == null || Math.abs(date.getTime() - flight.date.getTime()) <= window)) {
+            flight.users++;
+            return new Participant(key, flight, false);
+        }
+        String name = checkout + '-' + ++sequence;
+        flight = new Flight(date, root.child("cvs-coalesce").child(name), child);
+        flights.put(key, flight);
+        return new Participant(key, flight, true);
+    }
+
+    /**
+     * Returns the hash that identifies the checkout of a location.
+     *
+     * @param lf true if line endings aren't converted.
+     */
+    static String getKey(ModuleLocation location, boolean flatten, boolean lf) {
+        String cvsroot = location.getCvsroot();
+        Matcher m = PSERVER_CVSROOT_WITH_PASSWORD.matcher(cvsroot);
+        if (m.matches()) {
+            cvsroot = m.group(1) + m.group(2);
+        }
+        String key = cvsroot + '\n' + Arrays.asList(location.getNormalizedModules()) + '\n'
+            + (location.getBranch() == null ? "" : location.getBranch()) + '\n' + location.isTag() + '\n'
+            + flatten + '\n' + (flatten ? "" : location.getLocalDir()) + '\n' + lf;
+        try {
+            return ControlFileStore.hash(key.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e); // UTF-8 is mandatory on every JRE
+        }
+    }
+
+    /**
+     * Copies a directory into another one on the same node, keeping the timestamps so that CVS doesn't consider
+     * the files modified.
+     */
+    static final class Copy implements FileCallable<Void> {
+        private final String target;
+
+        Copy(FilePath target) {
+            this.target = target.getRemote();
+        }
+
+        public Void invoke(File dir, VirtualChannel channel) throws IOException {
+            FileUtils.copyDirectory(dir, new File(target), true);
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,231 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.scm.cvs.Messages;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Records how long each phase of {@link CVSSCM#checkout} took, for each module location,
+ * along with the bytes the cvs commands printed and the number of files affected.
+ * <p/>
+ * Attached to the build, and available through the remote API under <tt>cvsTimings</tt>.
+ */
+@ExportedBean
+public final class CheckoutTimings implements Action {
+    /**
+     * The timings of the checkout running on the current thread, so that {@link CVSSCM#run} can count the output
+     * of the commands without every method in between passing them along.
+     */
+    private static final ThreadLocal<CheckoutTimings> CURRENT = new ThreadLocal<CheckoutTimings>();
+
+    private final List<Timing> timings = new CopyOnWriteArrayList<Timing>();
+
+    /**
+     * The phase in progress on the checkout thread, if any.
+     */
+    private transient volatile Phase phase;
+
+    /**
+     * The time spent in one phase.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Timing {
+        private final String phase;
+        private final String location;
+        private final long millis;
+        private final long bytes;
+        private final int files;
+
+        Timing(String phase, String location, long millis, long bytes, int files) {
+            this.phase = phase;
+            this.location = location;
+            this.millis = millis;
+            this.bytes = bytes;
+            this.files = files;
+        }
+
+        @Exported
+        public String getPhase() {
+            return phase;
+        }
+
+        /**
+         * The modules of the location the phase worked on, or null if it worked on the whole workspace.
+         */
+        @Exported
+        public String getLocation() {
+            return location;
+        }
+
+        @Exported
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * The number of bytes printed by the cvs commands of the phase.
+         */
+        @Exported
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * The number of files affected by the phase, or -1 if unknown.
+         */
+        @Exported
+        public int getFiles() {
+            return files;
+        }
+    }
+
+    /**
+     * A phase in progress.
+     */
+    final class Phase {
+        private final String name;
+        private final String location;
+        private final long start = System.currentTimeMillis();
+        private final AtomicLong bytes = new AtomicLong();
+
+        private Phase(String name, String location) {
+            this.name = name;
+            this.location = location;
+        }
+
+        /**
+         * Records the phase as completed.
+         *
+         * @param files number of files affected, or -1 if unknown.
+         */
+        void end(int files) {
+            add(name, location, System.currentTimeMillis() - start, bytes.get(), files);
+            if (phase == this) {
+                phase = null;
+            }
+        }
+    }
+
+    /**
+     * Starts a phase, whose commands have their output counted by {@link #count(OutputStream)}.
+     *
+     * @param location the location the phase works on, or null for the whole workspace.
+     */
+    Phase begin(String name, ModuleLocation location) {
+        Phase p = new Phase(name, location != null ? location.getModule() : null);
+        phase = p;
+        return p;
+    }
+
+    /**
+     * Records a phase measured elsewhere, such as on the node that holds the workspace.
+     */
+    void add(String name, String location, long millis, long bytes, int files) {
+        timings.add(new Timing(name, location, millis, bytes, files));
+    }
+
+    @Exported(inline = true)
+    public List<Timing> getTimings() {
+        return new ArrayList<Timing>(timings);
+    }
+
+    /**
+     * Returns a stream that counts what's written through it towards the phase in progress.
+     */
+    OutputStream count(OutputStream out) {
+        final Phase p = phase;
+        if (p == null) {
+            return out;
+        }
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                p.bytes.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                p.bytes.addAndGet(len);
+            }
+        };
+    }
+
+    /**
+     * Prints the timings as a table.
+     */
+    void print(PrintStream out) {
+        out.println(Messages.CVSSCM_CheckoutTimings());
+        out.println(String.format("  %-16s %-30s %10s %12s %8s", "phase", "location", "ms", "bytes", "files"));
+        for (Timing t : timings) {
+            out.println(String.format("  %-16s %-30s %10d %12d %8s", t.phase, t.location != null ? t.location : "*",
+                t.millis, t.bytes, t.files < 0 ? "-" : String.valueOf(t.files)));
+        }
+    }
+
+    /**
+     * Returns the timings of the checkout running on the current thread, or null.
+     */
+    static CheckoutTimings current() {
+        return CURRENT.get();
+    }
+
+    static void setCurrent(CheckoutTimings timings) {
+        if (timings == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(timings);
+        }
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.CVSSCM_CheckoutTimings();
+    }
+
+    public String getUrlName() {
+        return "cvsTimings";
+    }
+}
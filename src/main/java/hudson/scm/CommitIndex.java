@@ -0,0 +1,462 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * In-memory index of the module locations of all the jobs, to find out which jobs a commit affects.
+ * <p/>
+ * The index is a trie for each repository and branch, whose nodes are the path segments of the modules: finding
+ * the jobs that a path belongs to only walks down the segments of the path, however many jobs there are.
+ * Locations are indexed by the path of their repository, the part of the CVSROOT after the host, since that's
+ * all a hook on the CVS server knows of it. Parametrized locations are resolved with the default values of the
+ * parameters, as polling does, and locations on a tag are left out since no commit changes them.
+ * <p/>
+ * The modules of a job are reindexed whenever the job is saved, renamed, copied or deleted, and the whole index
+ * is rebuilt on the first lookup after the jobs have been loaded.
+ */
+final class CommitIndex {
+    private static final Logger LOGGER = Logger.getLogger(CommitIndex.class.getName());
+
+    /**
+     * The index of this Hudson.
+     */
+    static final CommitIndex INSTANCE = new CommitIndex();
+
+    /**
+     * Repository paths to branches to the tries of their modules.
+     */
+    private final Map<String, Map<String, Node>> tries = new HashMap<String, Map<String, Node>>();
+
+    /**
+     * Full names of the jobs to their entries in {@link #tries}.
+     */
+    private final Map<String, List<Entry>> jobs = new HashMap<String, List<Entry>>();
+
+    /**
+     * False until the jobs have been indexed.
+     */
+    private boolean loaded;
+
+    CommitIndex() {
+    }
+
+    /**
+     * For the tests only
+     */
+    CommitIndex(List<Entry> entries) {
+        for (Entry e : entries) {
+            add(e);
+        }
+        loaded = true;
+    }
+
+    /**
+     * A path segment of the modules of a repository and branch.
+     */
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<String, Node>(4);
+        /**
+         * The modules whose path ends here.
+         */
+        final List<Entry> entries = new ArrayList<Entry>(1);
+
+        boolean isEmpty() {
+            return children.isEmpty() && entries.isEmpty();
+        }
+    }
+
+    /**
+     * A module of a module location of a job.
+     */
+    static final class Entry {
+        final String job;
+        final String repository;
+        /**
+         * Branch of the location, "HEAD" for the trunk.
+         */
+        final String branch;
+        final String module;
+        /**
+         * Prefix of the paths of the files of the module in the workspace, as reported by polling.
+         */
+        final String workspacePrefix;
+        final Pattern[] excludedRegions;
+
+        Entry(String job, String repository, String branch, String module, String workspacePrefix,
+              Pattern[] excludedRegions) {
+            this.job = job;
+            this.repository = repository;
+            this.branch = branch;
+            this.module = module;
+            this.workspacePrefix = workspacePrefix;
+            this.excludedRegions = excludedRegions;
+        }
+
+        /**
+         * Checks if a committed file or directory, relative to the repository, is in the module
+         * and not in the excluded regions of the job.
+         */
+        boolean matches(String path) {
+            String relative;
+            if (module.equals(".")) {
+                relative = path;
+            } else if (path.equals(module)) {
+                relative = "";
+            } else if (path.startsWith(module + '/')) {
+                relative = path.substring(module.length() + 1);
+            } else {
+                return false;
+            }
+            String workspacePath = workspacePrefix + relative;
+            for (Pattern p : excludedRegions) {
+                if (p.matcher(workspacePath).matches()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the full names of the jobs that one of the committed paths affects.
+     *
+     * @param root CVSROOT or repository path the commit went to.
+     * @param branch branch of the commit, "HEAD" for the trunk, or null if unknown.
+     * @param paths paths of the committed files or directories, relative to the repository.
+     * @return the names in alphabetical order.
+     */
+    synchronized Set<String> getJobs(String root, String branch, Collection<String> paths) {
+        Set<String> r = new TreeSet<String>();
+        String repository = getRepositoryPath(root);
+        if (repository == null) {
+            return r;
+        }
+        load();
+        Map<String, Node> branches = tries.get(repository);
+        if (branches == null) {
+            return r;
+        }
+        for (Map.Entry<String, Node> b : branches.entrySet()) {
+            if (branch != null && !branch.equals(b.getKey())) {
+                continue;
+            }
+            for (String path : paths) {
+                String p = normalizePath(repository, path);
+                // the modules of the path are on the way down to it
+                Node node = b.getValue();
+                collect(node, p, r);
+                if (p.length() > 0) {
+                    for (String segment : p.split("/")) {
+                        node = node.children.get(segment);
+                        if (node == null) {
+                            break;
+                        }
+                        collect(node, p, r);
+                    }
+                }
+            }
+        }
+        return r;
+    }
+
+    private static void collect(Node node, String path, Set<String> r) {
+        for (Entry e : node.entries) {
+            if (!r.contains(e.job) && e.matches(path)) {
+                r.add(e.job);
+            }
+        }
+    }
+
+    /**
+     * Reindexes the modules of a job.
+     */
+    synchronized void update(AbstractProject<?, ?> project) {
+        put(project.getFullName(), project.getScm() instanceof CVSSCM
+            ? getEntries(project, (CVSSCM) project.getScm()) : Collections.<Entry>emptyList());
+    }
+
+    /**
+     * Replaces the modules of a job in the index.
+     */
+    synchronized void put(String job, List<Entry> entries) {
+        remove(job);
+        for (Entry e : entries) {
+            add(e);
+        }
+    }
+
+    /**
+     * Removes the modules of a job from the index.
+     */
+    synchronized void remove(String job) {
+        List<Entry> entries = jobs.remove(job);
+        if (entries == null) {
+            return;
+        }
+        for (Entry e : entries) {
+            Map<String, Node> branches = tries.get(e.repository);
+            Node trie = branches.get(e.branch);
+            removeFrom(trie, segments(e.module), 0, e);
+            if (trie.isEmpty()) {
+                branches.remove(e.branch);
+                if (branches.isEmpty()) {
+                    tries.remove(e.repository);
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards the index, to be rebuilt on the next lookup.
+     */
+    synchronized void invalidate() {
+        tries.clear();
+        jobs.clear();
+        loaded = false;
+    }
+
+    /**
+     * Number of jobs in the index.
+     */
+    synchronized int size() {
+        return jobs.size();
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        for (AbstractProject<?, ?> project : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            update(project);
+        }
+        loaded = true;
+        LOGGER.fine("Indexed the CVS modules of " + jobs.size() + " jobs in "
+            + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void add(Entry e) {
+        List<Entry> entries = jobs.get(e.job);
+        if (entries == null) {
+            entries = new ArrayList<Entry>();
+            jobs.put(e.job, entries);
+        }
+        entries.add(e);
+
+        Map<String, Node> branches = tries.get(e.repository);
+        if (branches == null) {
+            branches = new HashMap<String, Node>();
+            tries.put(e.repository, branches);
+        }
+        Node node = branches.get(e.branch);
+        if (node == null) {
+            node = new Node();
+            branches.put(e.branch, node);
+        }
+        for (String segment : segments(e.module)) {
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        node.entries.add(e);
+    }
+
+    private static void removeFrom(Node node, String[] segments, int depth, Entry e) {
+        if (depth == segments.length) {
+            node.entries.remove(e);
+            return;
+        }
+        Node child = node.children.get(segments[depth]);
+        if (child != null) {
+            removeFrom(child, segments, depth + 1, e);
+            if (child.isEmpty()) {
+                node.children.remove(segments[depth]);
+            }
+        }
+    }
+
+    /**
+     * Path segments of a module, none for the whole repository.
+     */
+    private static String[] segments(String module) {
+        return module.equals(".") || module.length() == 0 ? new String[0] : module.split("/");
+    }
+
+    /**
+     * Lists the modules of a job.
+     */
+    static List<Entry> getEntries(AbstractProject<?, ?> project, CVSSCM scm) {
+        List<Entry> r = new ArrayList<Entry>();
+        Pattern[] excludedRegions = compile(project, scm.getExcludedRegionsNormalized());
+        Map<String, String> variables = scm.getBuildVariables(project);
+        for (ModuleLocation location : scm.getModuleLocations()) {
+            ModuleLocation resolved = new ParametrizedModuleLocationImpl(location, variables);
+            String repository = getRepositoryPath(resolved.getCvsroot());
+            if (repository == null || resolved.isTag()) {
+                continue;
+            }
+            String branch = resolved.getBranch() != null ? resolved.getBranch() : "HEAD";
+            for (String module : resolved.getNormalizedModules()) {
+                r.add(new Entry(project.getFullName(), repository, branch, trimSlashes(module),
+                    scm.isFlatten() ? "" : module + '/', excludedRegions));
+            }
+        }
+        return r;
+    }
+
+    private static Pattern[] compile(AbstractProject<?, ?> project, String[] regions) {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        if (regions != null) {
+            for (String region : regions) {
+                if (region.trim().length() == 0) {
+                    continue;
+                }
+                try {
+                    patterns.add(Pattern.compile(region));
+                } catch (PatternSyntaxException e) {
+                    LOGGER.log(Level.WARNING, "Ignoring an invalid excluded region of " + project.getFullName(), e);
+                }
+            }
+        }
+        return patterns.toArray(new Pattern[patterns.size()]);
+    }
+
+    /**
+     * Returns the path of the repository of a CVSROOT, like "/cvsroot" for ":pserver:anonymous@host:2401/cvsroot",
+     * without trailing slash. A repository path is returned as is.
+     *
+     * @return null if there's none.
+     */
+    static String getRepositoryPath(String cvsroot) {
+        if (cvsroot == null) {
+            return null;
+        }
+        int idx = cvsroot.indexOf('/');
+        if (idx < 0) {
+            return null;
+        }
+        String path = cvsroot.substring(idx);
+        while (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * Makes a committed path relative to the repository, whether or not the hook gave the repository path with it.
+     */
+    static String normalizePath(String repository, String path) {
+        String p = path.trim();
+        if (p.startsWith(repository + '/')) {
+            p = p.substring(repository.length() + 1);
+        }
+        return trimSlashes(p);
+    }
+
+    private static String trimSlashes(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+
+    /**
+     * Reindexes a job when it's saved.
+     */
+    @Extension
+    public static final class SaveListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof AbstractProject) {
+                INSTANCE.update((AbstractProject<?, ?>) o);
+            }
+        }
+    }
+
+    /**
+     * Keeps the index up to date as jobs come and go.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLoaded() {
+            INSTANCE.invalidate();
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            if (item instanceof AbstractProject) {
+                INSTANCE.update((AbstractProject<?, ?>) item);
+            }
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            onCreated(item);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            INSTANCE.remove(item.getFullName());
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            String parent = item.getParent().getFullName();
+            INSTANCE.remove(parent.length() == 0 ? oldName : parent + '/' + oldName);
+            onCreated(item);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.UnprotectedRootAction;
+import hudson.scm.cvs.Messages;
+import hudson.security.ACL;
+import hudson.triggers.SCMTrigger;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpServletResponse;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Lets the CVS server tell Hudson about commits, so that the jobs they may affect poll right away instead of
+ * waiting for their next scheduled poll.
+ * <p/>
+ * A line like this one in CVSROOT/loginfo (CVS 1.12 format) does it for every commit:
+ * <pre>
+ * ALL wget -q -O /dev/null "http://hudson.example.org/cvs/notifyCommit?root=%r&amp;path=%p"
+ * </pre>
+ * <tt>root</tt> is a CVSROOT or just the path of the repository, and each <tt>path</tt> parameter is a committed
+ * file or directory relative to the repository. The optional <tt>branch</tt> parameter, "HEAD" for the trunk,
+ * restricts the jobs to those on that branch. loginfo isn't told the branch of a commit, so a hook that wants to
+ * pass it has to find it out itself, for instance from the <tt>CVS/Tag</tt> file of the directory it runs in.
+ * Without it, the jobs of every branch of the committed modules poll. Jobs are found with {@link CommitIndex}.
+ * <p/>
+ * Since anyone can call this, it never builds anything directly: it only triggers the polling of the affected jobs
+ * that have an {@link SCMTrigger}, which build if their own branch has changes outside of their excluded regions.
+ * A job without polling isn't notified, so a job that relies on notifications should still poll, if only daily.
+ */
+@Extension
+public class CommitNotifier implements UnprotectedRootAction {
+    private static final Logger LOGGER = Logger.getLogger(CommitNotifier.class.getName());
+
+    private final CommitIndex index;
+
+    public CommitNotifier() {
+        this(CommitIndex.INSTANCE);
+    }
+
+    CommitNotifier(CommitIndex index) {
+        this.index = index;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "cvs";
+    }
+
+    /**
+     * Triggers the polling of the jobs a commit affects, and tells how many.
+     */
+    public void doNotifyCommit(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        String root = req.getParameter("root");
+        String[] paths = req.getParameterValues("path");
+        if (root == null || root.trim().length() == 0 || paths == null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The root and path parameters are required");
+            return;
+        }
+        String branch = req.getParameter("branch");
+        if (branch != null && branch.trim().length() == 0) {
+            branch = null;
+        }
+        List<String> pathList = new ArrayList<String>();
+        for (String p : paths) {
+            // some hooks pass all the files in one parameter, one per line
+            for (String line : p.split("[\\r\\n]+")) {
+                if (line.trim().length() > 0) {
+                    pathList.add(line);
+                }
+            }
+        }
+
+        // only the number of jobs, since the caller is anonymous
+        rsp.setContentType("text/plain");
+        PrintWriter w = rsp.getWriter();
+        w.println(Messages.CVSSCM_CommitPolled(notifyCommit(root.trim(), branch, pathList).size()));
+        w.flush();
+    }
+
+    /**
+     * Triggers the polling of the jobs a commit affects.
+     *
+     * @return full names of the jobs that poll.
+     */
+    List<String> notifyCommit(String root, String branch, List<String> paths) {
+        List<String> polled = new ArrayList<String>();
+        // the hook is anonymous, but has to see all the jobs
+        Authentication old = SecurityContextHolder.getContext().getAuthentication();
+        SecurityContextHolder.getContext().setAuthentication(ACL.SYSTEM);
+        try {
+            Set<String> jobs = index.getJobs(root, branch, paths);
+            for (String name : jobs) {
+                if (poll(name)) {
+                    polled.add(name);
+                }
+            }
+        } finally {
+            SecurityContextHolder.getContext().setAuthentication(old);
+        }
+        LOGGER.fine("Commit to " + root + " " + paths + " polled " + polled);
+        return polled;
+    }
+
+    /**
+     * Triggers the polling of a job, even if {@link AdaptivePolling} would otherwise wait.
+     *
+     * @return false if the job doesn't exist, is disabled or doesn't poll.
+     */
+    boolean poll(String name) {
+        AbstractProject<?, ?> project = Hudson.getInstance().getItemByFullName(name, AbstractProject.class);
+        if (project == null || project.isDisabled()) {
+            return false;
+        }
+        SCMTrigger trigger = project.getTrigger(SCMTrigger.class);
+        if (trigger == null) {
+            return false;
+        }
+        AdaptivePolling.INSTANCE.notified(project);
+        trigger.run();
+        return true;
+    }
+}
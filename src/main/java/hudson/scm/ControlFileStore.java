@@ -0,0 +1,321 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.listeners.RunListener;
+import hudson.util.AtomicFileWriter;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Content-addressed store of the CVS control files archived by the builds of a job.
+ * <p/>
+ * CVS/Entries, CVS/Root, CVS/Repository and friends barely change from one build to the next,
+ * so instead of each build keeping a zip of them, every distinct file is stored once under the
+ * job directory, named after its SHA-1. Each build only keeps a manifest that maps the paths
+ * of its control files to their hashes. The files that no manifest refers to anymore are removed
+ * when a build of the job is deleted.
+ */
+final class ControlFileStore {
+    /**
+     * Maximum number of files fetched from the workspace in one call.
+     */
+    private static final int FETCH_BATCH_SIZE = 500;
+
+    /**
+     * Locks of the stores, so that a collection never removes the files of a manifest being written.
+     */
+    private static final ConcurrentMap<File, Object> LOCKS = new ConcurrentHashMap<File, Object>();
+
+    private final File dir;
+    private final Object lock;
+
+    ControlFileStore(File dir) {
+        this.dir = dir;
+        LOCKS.putIfAbsent(dir.getAbsoluteFile(), new Object());
+        this.lock = LOCKS.get(dir.getAbsoluteFile());
+    }
+
+    /**
+     * Returns the store of the given job.
+     */
+    static ControlFileStore of(AbstractProject<?, ?> project) {
+        return new ControlFileStore(new File(project.getRootDir(), "cvs-control-files"));
+    }
+
+    /**
+     * Returns the file the manifest of the given build is stored in.
+     */
+    static File getManifestFile(AbstractBuild build) {
+        return new File(build.getRootDir(), "workspace.manifest");
+    }
+
+    File getFile(String hash) {
+        return new File(dir, hash.substring(0, 2) + '/' + hash.substring(2));
+    }
+
+    boolean contains(String hash) {
+        return getFile(hash).exists();
+    }
+
+    /**
+     * Adds a file to the store, unless it's already there.
+     */
+    void put(String hash, byte[] data) throws IOException {
+        if (!hash.equals(hash(data))) {
+            throw new IOException("Contents don't match the hash " + hash);
+        }
+        File f = getFile(hash);
+        if (f.exists()) {
+            return;
+        }
+        f.getParentFile().mkdirs();
+        // write aside and rename, so that a concurrent build never sees a partial file
+        File tmp = File.createTempFile(hash, ".tmp", f.getParentFile());
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f) && !f.exists()) {
+                throw new IOException("Failed to rename " + tmp + " to " + f);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Copies the control files the store doesn't have yet from the workspace.
+     *
+     * @param ws workspace the files were archived from.
+     * @param r what has been archived.
+     */
+    void fetchMissing(FilePath ws, WorkspaceArchiver.Result r) throws IOException, InterruptedException {
+        // one workspace file per missing hash
+        Map<String, String> missing = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> e : r.manifest.entrySet()) {
+            if (!missing.containsKey(e.getValue()) && !contains(e.getValue())) {
+                missing.put(e.getValue(), r.workspacePaths.get(e.getKey()));
+            }
+        }
+
+        List<String> hashes = new ArrayList<String>(missing.keySet());
+        for (int i = 0; i < hashes.size(); i += FETCH_BATCH_SIZE) {
+            List<String> batch = hashes.subList(i, Math.min(i + FETCH_BATCH_SIZE, hashes.size()));
+            List<String> paths = new ArrayList<String>();
+            for (String hash : batch) {
+                paths.add(missing.get(hash));
+            }
+            List<byte[]> contents = ws.act(new WorkspaceArchiver.ReadFiles(paths));
+            for (int j = 0; j < batch.size(); j++) {
+                byte[] data = contents.get(j);
+                if (!batch.get(j).equals(hash(data))) {
+                    throw new IOException(
+                        "Looks like someone is modifying the workspace concurrently: " + paths.get(j));
+                }
+                put(batch.get(j), data);
+                r.bytes += data.length;
+            }
+        }
+        r.newFiles = missing.size();
+    }
+
+    /**
+     * Copies the control files the store doesn't have yet from the workspace, and writes the manifest of the build.
+     *
+     * @param ws workspace the files were archived from.
+     * @param r what has been archived.
+     * @param manifestFile where to write the manifest.
+     */
+    void add(FilePath ws, WorkspaceArchiver.Result r, File manifestFile) throws IOException, InterruptedException {
+        synchronized (lock) {
+            fetchMissing(ws, r);
+            writeManifest(manifestFile, r.manifest);
+        }
+    }
+
+    /**
+     * Removes the files that none of the given manifests refer to.
+     *
+     * @param manifests manifests of the builds to keep. Missing ones are ignored.
+     * @return number of files removed.
+     */
+    int gc(Collection<File> manifests) throws IOException {
+        synchronized (lock) {
+            Set<String> referenced = new HashSet<String>();
+            for (File manifest : manifests) {
+                if (manifest.exists()) {
+                    referenced.addAll(readManifest(manifest).values());
+                }
+            }
+            int removed = 0;
+            File[] subdirs = dir.listFiles();
+            if (subdirs == null) {
+                return 0;
+            }
+            for (File subdir : subdirs) {
+                File[] files = subdir.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File f : files) {
+                    if (!referenced.contains(subdir.getName() + f.getName()) && f.delete()) {
+                        removed++;
+                    }
+                }
+                subdir.delete(); // only once empty
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Recreates the control files listed in a manifest under the given directory.
+     */
+    void extract(Map<String, String> manifest, File destdir) throws IOException {
+        for (Map.Entry<String, String> e : manifest.entrySet()) {
+            File src = getFile(e.getValue());
+            if (!src.exists()) {
+                throw new IOException("Missing " + e.getKey() + " in " + dir);
+            }
+            FileUtils.copyFile(src, new File(destdir, e.getKey()));
+        }
+    }
+
+    /**
+     * Writes a manifest, as a sorted list of "hash path" lines.
+     */
+    static void writeManifest(File file, SortedMap<String, String> manifest) throws IOException {
+        AtomicFileWriter w = new AtomicFileWriter(file, "UTF-8");
+        try {
+            PrintWriter pw = new PrintWriter(w);
+            for (Map.Entry<String, String> e : manifest.entrySet()) {
+                pw.println(e.getValue() + ' ' + e.getKey());
+            }
+            pw.flush();
+            w.commit();
+        } finally {
+            w.abort();
+        }
+    }
+
+    /**
+     * Reads a manifest written by {@link #writeManifest(File, SortedMap)}.
+     *
+     * @return paths of the control files to their hashes.
+     */
+    static SortedMap<String, String> readManifest(File file) throws IOException {
+        SortedMap<String, String> manifest = new TreeMap<String, String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int idx = line.indexOf(' ');
+                if (idx < 0) {
+                    throw new IOException("Malformed line in " + file + ": " + line);
+                }
+                manifest.put(line.substring(idx + 1), line.substring(0, idx));
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return manifest;
+    }
+
+    /**
+     * Removes the files of the store that were only referred to by a build being deleted.
+     */
+    @Extension
+    public static final class DeletionListener extends RunListener<AbstractBuild> {
+        public DeletionListener() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onDeleted(AbstractBuild r) {
+            if (!getManifestFile(r).exists()) {
+                return;
+            }
+            AbstractProject<?, ?> project = r.getProject();
+            List<File> manifests = new ArrayList<File>();
+            for (AbstractBuild<?, ?> b : project.getBuilds()) {
+                // the build being deleted is still listed
+                if (b != r) {
+                    manifests.add(getManifestFile(b));
+                }
+            }
+            try {
+                int removed = of(project).gc(manifests);
+                LOGGER.fine("Removed " + removed + " CVS control files no longer referred to after deleting " + r);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove the CVS control files of " + r, e);
+            }
+        }
+    }
+
+    /**
+     * Computes the hash a file is stored under.
+     */
+    static String hash(byte[] data) {
+        try {
+            return Util.toHexString(MessageDigest.getInstance("SHA-1").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e); // SHA-1 is mandatory on every JRE
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ControlFileStore.class.getName());
+}
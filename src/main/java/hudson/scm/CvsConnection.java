@@ -0,0 +1,596 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.logging.Logger;
+
+/**
+ * A connection to a CVS server, speaking the client/server protocol described in the "cvsclient" manual.
+ * <p/>
+ * Only the requests that don't modify the working directory are supported: they report through
+ * "M" and "E" responses, which are streamed to an {@link OutputStream} the same way the native client prints them.
+ * Connections are authenticated once and then reused through the {@link CvsConnectionPool}.
+ */
+final class CvsConnection {
+    /**
+     * Milliseconds to wait for the server to accept a connection or to respond.
+     */
+    public static int TIMEOUT = Integer.getInteger(CvsConnection.class.getName() + ".timeout", 60 * 1000);
+
+    /**
+     * The responses this client handles. "MT" is left out so that the server formats messages itself.
+     */
+    private static final String VALID_RESPONSES = "ok error Valid-requests Checked-in New-entry Checksum Copy-file "
+        + "Updated Created Update-existing Merged Patched Rcs-diff Mode Mod-time Removed Remove-entry "
+        + "Set-static-directory Clear-static-directory Set-sticky Clear-sticky Template Notified "
+        + "Module-expansion Wrapper-rcsOption M Mbinary E F";
+
+    /**
+     * Responses that only carry a pathname and a repository name, which this client ignores.
+     */
+    private static final Set<String> PATH_RESPONSES = new HashSet<String>(Arrays.asList(
+        "Removed", "Remove-entry", "Set-static-directory", "Clear-static-directory", "Clear-sticky", "Notified"));
+
+    final CvsRoot root;
+    private final Socket socket;
+    private final Process process;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Set<String> validRequests = new HashSet<String>();
+
+    /**
+     * True once the connection can't be reused, because a request failed half-way.
+     */
+    private volatile boolean broken;
+
+    /**
+     * The last line the remote shell of an <tt>:ext:</tt> connection printed to its standard error, or null.
+     */
+    private volatile String lastError;
+
+    /**
+     * Number of commands run on this connection.
+     */
+    int uses;
+
+    /**
+     * When the last command completed, or when the connection was opened.
+     */
+    long lastUsed = System.currentTimeMillis();
+
+    private CvsConnection(CvsRoot root, Socket socket, Process process, InputStream in, OutputStream out) {
+        this.root = root;
+        this.socket = socket;
+        this.process = process;
+        this.in = new BufferedInputStream(in);
+        this.out = new BufferedOutputStream(out);
+    }
+
+    /**
+     * Opens a new connection and negotiates the protocol.
+     *
+     * @param cvspassFile the <tt>.cvspass</tt> file, or null for the default.
+     * @param rsh the remote shell for <tt>:ext:</tt>, or null for "ssh".
+     */
+    static CvsConnection open(CvsRoot root, File cvspassFile, String rsh) throws IOException {
+        CvsConnection c;
+        if (root.isPserver()) {
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(root.host, root.port), TIMEOUT);
+                s.setSoTimeout(TIMEOUT);
+                c = new CvsConnection(root, s, null, s.getInputStream(), s.getOutputStream());
+            } catch (IOException e) {
+                s.close();
+                throw e;
+            }
+        } else {
+            List<String> cmd = new ArrayList<String>();
+            cmd.addAll(Arrays.asList((rsh != null ? rsh : "ssh").split("\\s+")));
+            if (root.user != null) {
+                cmd.add("-l");
+                cmd.add(root.user);
+            }
+            cmd.add(root.host);
+            cmd.add("cvs");
+            cmd.add("server");
+            Process p = new ProcessBuilder(cmd).start();
+            c = new CvsConnection(root, null, p, p.getInputStream(), p.getOutputStream());
+            c.pumpErrors(p.getErrorStream());
+        }
+        try {
+            c.handshake(cvspassFile);
+            return c;
+        } catch (IOException e) {
+            c.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Logs what the remote shell prints to its standard error, like banners, host key warnings and its own errors,
+     * until it exits. It must be read for as long as the process runs, which would otherwise block once the pipe
+     * is full, or die of a broken pipe if it were closed.
+     */
+    private void pumpErrors(final InputStream err) {
+        Thread t = new Thread("stderr of " + root) {
+            @Override
+            public void run() {
+                try {
+                    BufferedReader r = new BufferedReader(new InputStreamReader(err));
+                    String line;
+                    while ((line = r.readLine()) != null) {
+                        LOGGER.info(root + ": " + line);
+                        lastError = line;
+                    }
+                    r.close();
+                } catch (IOException e) {
+                    // the process is gone
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private IOException closed() {
+        String error = lastError;
+        return new IOException("Connection closed by " + root + (error != null ? ": " + error : ""));
+    }
+
+    private void handshake(File cvspassFile) throws IOException {
+        if (root.isPserver()) {
+            send("BEGIN AUTH REQUEST", root.path, root.user, root.getScrambledPassword(cvspassFile),
+                "END AUTH REQUEST");
+            flush();
+            String r = readLine();
+            if (!"I LOVE YOU".equals(r)) {
+                throw new IOException("Authentication failed for " + root + ": " + r);
+            }
+        }
+        send("Root " + root.path, "Valid-responses " + VALID_RESPONSES, "valid-requests");
+        flush();
+        while (true) {
+            String line = readLine();
+            if (line == null) {
+                throw closed();
+            }
+            if (line.startsWith("Valid-requests ")) {
+                validRequests.addAll(Arrays.asList(line.substring(15).split(" ")));
+            } else if (line.equals("ok")) {
+                break;
+            } else if (line.startsWith("error") || line.startsWith("E ")) {
+                throw new IOException(root + ": " + line);
+            }
+        }
+        if (validRequests.contains("UseUnchanged")) {
+            send("UseUnchanged");
+        }
+    }
+
+    /**
+     * Returns true if the server supports the given request.
+     */
+    boolean supports(String request) {
+        return validRequests.contains(request);
+    }
+
+    /**
+     * Runs a command.
+     *
+     * @param command the command request, like "log" or "rlog".
+     * @param globalOptions global options, like "-q" or "-n".
+     * @param arguments the arguments of the command, options included.
+     * @param workingDir the working directory the command runs on, or null for commands like "rlog"
+     *      that don't need one.
+     * @param files files and directories of the working directory the command operates on, relative to it.
+     *      Empty for the whole working directory.
+     * @param output receives the text the command prints to its standard output.
+     * @param errors receives the text the command prints to its standard error.
+     * @return the exit code: 0 for success, 1 for failure.
+     */
+    int run(String command, List<String> globalOptions, List<String> arguments, File workingDir, List<String> files,
+            OutputStream output, OutputStream errors) throws IOException {
+        uses++;
+        boolean done = false;
+        try {
+            for (String option : globalOptions) {
+                send("Global_option " + option);
+            }
+            for (String argument : arguments) {
+                sendArgument(argument);
+            }
+            if (workingDir == null) {
+                for (String f : files) {
+                    sendArgument(f);
+                }
+                send("Directory .", root.path);
+            } else {
+                if (files.isEmpty()) {
+                    sendDirectory(workingDir, ".", true);
+                } else {
+                    Set<String> dirs = new HashSet<String>();
+                    for (String f : files) {
+                        File file = new File(workingDir, f);
+                        if (file.isDirectory()) {
+                            sendDirectory(workingDir, f, true);
+                        } else {
+                            int slash = f.lastIndexOf('/');
+                            String dir = slash < 0 ? "." : f.substring(0, slash);
+                            if (dirs.add(dir)) {
+                                sendDirectory(workingDir, dir, false);
+                            }
+                            sendFile(new File(workingDir, dir), file.getName());
+                        }
+                    }
+                    for (String f : files) {
+                        sendArgument(f);
+                    }
+                }
+                if (!sendDirectory(workingDir, ".", false)) {
+                    send("Directory .", root.path);
+                }
+            }
+            send(command);
+            flush();
+            int r = readResponses(output, errors);
+            lastUsed = System.currentTimeMillis();
+            done = true;
+            return r;
+        } finally {
+            output.flush();
+            errors.flush();
+            if (!done) {
+                broken = true;
+            }
+        }
+    }
+
+    /**
+     * Sends a no-op request, to check that the server is still there.
+     */
+    boolean ping() {
+        if (broken) {
+            return false;
+        }
+        try {
+            if (!supports("noop")) {
+                return true;
+            }
+            send("noop");
+            flush();
+            ByteArrayOutputStream ignored = new ByteArrayOutputStream();
+            if (readResponses(ignored, ignored) != 0) {
+                return false;
+            }
+            lastUsed = System.currentTimeMillis();
+            return true;
+        } catch (IOException e) {
+            broken = true;
+            return false;
+        }
+    }
+
+    private void sendArgument(String argument) throws IOException {
+        String[] lines = argument.split("\n", -1);
+        send("Argument " + lines[0]);
+        for (int i = 1; i < lines.length; i++) {
+            send("Argumentx " + lines[i]);
+        }
+    }
+
+    /**
+     * Sends the state of a working directory.
+     *
+     * @param path directory relative to the working directory.
+     * @param recursive true to also send the entries and the subdirectories.
+     * @return false if the directory isn't a CVS working directory.
+     */
+    private boolean sendDirectory(File workingDir, String path, boolean recursive) throws IOException {
+        File dir = path.equals(".") ? workingDir : new File(workingDir, path);
+        String repository = readFirstLine(new File(dir, "CVS/Repository"));
+        if (repository == null) {
+            return false;
+        }
+        if (!repository.startsWith("/")) {
+            repository = root.path + '/' + repository;
+        }
+        send("Directory " + path, repository);
+        String tag = readFirstLine(new File(dir, "CVS/Tag"));
+        if (tag != null) {
+            send("Sticky " + tag);
+        }
+        if (new File(dir, "CVS/Entries.Static").exists()) {
+            send("Static-directory");
+        }
+        if (!recursive) {
+            return true;
+        }
+
+        List<String> subdirs = new ArrayList<String>();
+        for (String entry : readEntries(dir)) {
+            if (entry.startsWith("D/")) {
+                String name = entry.substring(2, entry.indexOf('/', 2));
+                if (new File(dir, name + "/CVS").isDirectory()) {
+                    subdirs.add(name);
+                }
+            } else if (entry.startsWith("/")) {
+                sendEntry(dir, entry);
+            }
+        }
+        for (String name : subdirs) {
+            sendDirectory(workingDir, path.equals(".") ? name : path + '/' + name, true);
+        }
+        return true;
+    }
+
+    private void sendFile(File dir, String name) throws IOException {
+        for (String entry : readEntries(dir)) {
+            if (entry.startsWith('/' + name + '/')) {
+                sendEntry(dir, entry);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends an entry line, and whether the file has been modified since it was checked out,
+     * judging by its timestamp like the native client does.
+     */
+    private void sendEntry(File dir, String entry) throws IOException {
+        send("Entry " + entry);
+        if (!supports("UseUnchanged")) {
+            return;
+        }
+        String[] fields = entry.split("/", -1);
+        File file = new File(dir, fields[1]);
+        if (!file.exists()) {
+            return;     // lost, which the server tells from the absence of both requests
+        }
+        if (fields.length > 3 && isUnchanged(file, fields[3])) {
+            send("Unchanged " + fields[1]);
+        } else if (supports("Is-modified")) {
+            send("Is-modified " + fields[1]);
+        } else {
+            send("Unchanged " + fields[1]);
+        }
+    }
+
+    /**
+     * Compares the modification time of a file with the timestamp of its entry, as formatted by <tt>asctime</tt>.
+     */
+    static boolean isUnchanged(File file, String timestamp) {
+        // a conflict timestamp is "Result of merge+<time>"
+        int plus = timestamp.indexOf('+');
+        if (plus >= 0) {
+            timestamp = timestamp.substring(plus + 1);
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(file.lastModified())).equals(timestamp.trim().replaceAll("\\s+", " "));
+    }
+
+    /**
+     * Reads CVS/Entries, with the changes recorded in CVS/Entries.Log applied.
+     */
+    private static List<String> readEntries(File dir) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        readLines(new File(dir, "CVS/Entries"), entries, false);
+        readLines(new File(dir, "CVS/Entries.Log"), entries, true);
+        return new ArrayList<String>(entries.values());
+    }
+
+    private static void readLines(File file, Map<String, String> entries, boolean log) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader r = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                boolean remove = false;
+                if (log) {
+                    remove = line.startsWith("R ");
+                    if (!remove && !line.startsWith("A ")) {
+                        continue;
+                    }
+                    line = line.substring(2);
+                }
+                int start = line.startsWith("D/") ? 2 : 1;
+                int end = line.indexOf('/', start);
+                if (end < 0) {
+                    continue;   // "D" alone, or invalid
+                }
+                String key = line.substring(0, end);
+                if (remove) {
+                    entries.remove(key);
+                } else {
+                    entries.put(key, line);
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Reads responses up to "ok" or "error".
+     */
+    private int readResponses(OutputStream output, OutputStream errors) throws IOException {
+        while (true) {
+            String line = readLine();
+            if (line == null) {
+                throw closed();
+            }
+            int idx = line.indexOf(' ');
+            String response = idx < 0 ? line : line.substring(0, idx);
+            String text = idx < 0 ? "" : line.substring(idx + 1);
+            if (response.equals("ok")) {
+                return 0;
+            } else if (response.equals("error")) {
+                // "error errno text"
+                int sp = text.indexOf(' ');
+                String message = sp < 0 ? "" : text.substring(sp + 1);
+                if (message.length() > 0) {
+                    writeLine(errors, message);
+                }
+                return 1;
+            } else if (response.equals("M")) {
+                writeLine(output, text);
+            } else if (response.equals("E")) {
+                writeLine(errors, text);
+            } else if (response.equals("Mbinary")) {
+                byte[] data = readBytes(Integer.parseInt(readLine().trim()));
+                output.write(data);
+            } else if (response.equals("F") || response.equals("Mod-time") || response.equals("Checksum")
+                || response.equals("Module-expansion") || response.equals("Wrapper-rcsOption")) {
+                // nothing to do
+            } else if (PATH_RESPONSES.contains(response)) {
+                readLine();     // repository name
+            } else if (response.equals("Set-sticky") || response.equals("Checked-in")
+                || response.equals("New-entry")) {
+                readLine();     // repository name
+                readLine();     // tag or entry
+            } else if (response.equals("Template")) {
+                readLine();
+                readBytes(Integer.parseInt(readLine().trim()));
+            } else {
+                // a response that changes the working directory, which this client doesn't do
+                throw new IOException("Unsupported response from " + root + ": " + line);
+            }
+        }
+    }
+
+    private void writeLine(OutputStream output, String text) throws IOException {
+        output.write(toBytes(text));
+        output.write('\n');
+    }
+
+    /**
+     * Reads a line, as ISO-8859-1 so that any byte survives the round trip to {@link #toBytes(String)}.
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return buf.size() == 0 ? null : buf.toString("ISO-8859-1");
+            }
+            buf.write(b);
+        }
+        return buf.toString("ISO-8859-1");
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] data = new byte[length];
+        int n = 0;
+        while (n < length) {
+            int r = in.read(data, n, length - n);
+            if (r < 0) {
+                throw closed();
+            }
+            n += r;
+        }
+        return data;
+    }
+
+    private void send(String... lines) throws IOException {
+        for (String line : lines) {
+            out.write(toBytes(line));
+            out.write('\n');
+        }
+    }
+
+    private void flush() throws IOException {
+        out.flush();
+    }
+
+    private static byte[] toBytes(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    private static String readFirstLine(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        BufferedReader r = new BufferedReader(new FileReader(file));
+        try {
+            String s = r.readLine();
+            return s == null || s.trim().length() == 0 ? null : s.trim();
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Returns true if the connection can't be reused.
+     */
+    boolean isBroken() {
+        return broken;
+    }
+
+    void close() {
+        broken = true;
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+        if (process != null) {
+            process.destroy();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CvsConnection.class.getName());
+}
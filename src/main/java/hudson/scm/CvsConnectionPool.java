@@ -0,0 +1,259 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps {@link CvsConnection}s open between commands, so that polling and changelog computation don't
+ * pay for a TCP connection, the pserver authentication and the negotiation of valid requests every time.
+ * <p/>
+ * Each repository gets at most {@link #MAX_PER_SERVER} connections, idle and in use together. Connections idle
+ * for longer than {@link #IDLE_TIMEOUT} are closed, and those idle for longer than {@link #VALIDATE_AFTER} are
+ * checked with a <tt>noop</tt> request before being handed out again, since servers drop idle clients.
+ * <p/>
+ * Commands run on the node that holds the workspace, so each node has its own pool, configured through
+ * system properties of that node.
+ */
+final class CvsConnectionPool {
+    /**
+     * Maximum number of connections to the same repository.
+     */
+    public static int MAX_PER_SERVER = Integer.getInteger(CvsConnectionPool.class.getName() + ".maxPerServer", 4);
+
+    /**
+     * Seconds after which an idle connection is closed.
+     */
+    public static int IDLE_TIMEOUT = Integer.getInteger(CvsConnectionPool.class.getName() + ".idleTimeout", 300);
+
+    /**
+     * Seconds after which an idle connection is checked before reuse.
+     */
+    public static int VALIDATE_AFTER = Integer.getInteger(CvsConnectionPool.class.getName() + ".validateAfter", 10);
+
+    /**
+     * The pool of this JVM.
+     */
+    static final CvsConnectionPool INSTANCE = new CvsConnectionPool(MAX_PER_SERVER, IDLE_TIMEOUT * 1000L,
+        VALIDATE_AFTER * 1000L);
+
+    private final int maxPerServer;
+    private final long idleTimeout;
+    private final long validateAfter;
+
+    /**
+     * Connections of each repository, by {@link CvsRoot#getKey()}.
+     */
+    private final Map<String, Server> servers = new HashMap<String, Server>();
+
+    private ScheduledExecutorService sweeper;
+
+    /**
+     * Connections to one repository.
+     */
+    private static final class Server {
+        final Semaphore permits;
+
+        /**
+         * Idle connections, the most recently used last.
+         */
+        final LinkedList<CvsConnection> idle = new LinkedList<CvsConnection>();
+
+        Server(int maxConnections) {
+            permits = new Semaphore(maxConnections, true);
+        }
+    }
+
+    CvsConnectionPool(int maxPerServer, long idleTimeout, long validateAfter) {
+        this.maxPerServer = Math.max(1, maxPerServer);
+        this.idleTimeout = idleTimeout;
+        this.validateAfter = validateAfter;
+    }
+
+    /**
+     * Returns a connection to the given repository: an idle one if there's one that still works, or else a new one.
+     * Waits for one to be released if the repository already has as many connections as allowed.
+     * <p/>
+     * The connection must be given back with {@link #release(CvsConnection)}.
+     *
+     * @param cvspassFile the <tt>.cvspass</tt> file, or null for the default.
+     * @param rsh the remote shell for <tt>:ext:</tt>, or null for the default.
+     */
+    CvsConnection acquire(CvsRoot root, File cvspassFile, String rsh) throws IOException {
+        Server server = getServer(root.getKey());
+        try {
+            if (!server.permits.tryAcquire(CvsConnection.TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a connection to " + root);
+            }
+        } catch (InterruptedException e) {
+            throw (InterruptedIOException) new InterruptedIOException().initCause(e);
+        }
+
+        boolean success = false;
+        try {
+            while (true) {
+                CvsConnection c;
+                synchronized (this) {
+                    c = server.idle.pollLast();
+                }
+                if (c == null) {
+                    break;
+                }
+                if (isExpired(c, System.currentTimeMillis())) {
+                    c.close();
+                } else if (System.currentTimeMillis() - c.lastUsed < validateAfter || c.ping()) {
+                    success = true;
+                    return c;
+                } else {
+                    c.close();
+                }
+            }
+            CvsConnection c = CvsConnection.open(root, cvspassFile, rsh);
+            success = true;
+            return c;
+        } finally {
+            if (!success) {
+                server.permits.release();
+            }
+        }
+    }
+
+    /**
+     * Gives a connection obtained from {@link #acquire(CvsRoot, File, String)} back, for reuse if it's still usable.
+     */
+    void release(CvsConnection c) {
+        Server server = getServer(c.root.getKey());
+        try {
+            if (c.isBroken() || idleTimeout <= 0) {
+                c.close();
+            } else {
+                synchronized (this) {
+                    server.idle.add(c);
+                    startSweeper();
+                }
+            }
+        } finally {
+            server.permits.release();
+        }
+    }
+
+    /**
+     * Closes the connections that have been idle for too long.
+     */
+    void evictIdle() {
+        long now = System.currentTimeMillis();
+        List<CvsConnection> expired = new ArrayList<CvsConnection>();
+        synchronized (this) {
+            for (Server server : servers.values()) {
+                for (Iterator<CvsConnection> itr = server.idle.iterator(); itr.hasNext(); ) {
+                    CvsConnection c = itr.next();
+                    if (isExpired(c, now)) {
+                        itr.remove();
+                        expired.add(c);
+                    }
+                }
+            }
+        }
+        // close outside of the lock, as closing an ext connection waits for the process
+        for (CvsConnection c : expired) {
+            c.close();
+        }
+    }
+
+    /**
+     * Closes all the idle connections.
+     */
+    void closeIdle() {
+        List<CvsConnection> idle = new ArrayList<CvsConnection>();
+        synchronized (this) {
+            for (Server server : servers.values()) {
+                idle.addAll(server.idle);
+                server.idle.clear();
+            }
+        }
+        for (CvsConnection c : idle) {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the number of idle connections to the given repository.
+     */
+    synchronized int getIdleCount(CvsRoot root) {
+        Server server = servers.get(root.getKey());
+        return server == null ? 0 : server.idle.size();
+    }
+
+    /**
+     * Returns the number of connections to the given repository currently in use.
+     */
+    synchronized int getActiveCount(CvsRoot root) {
+        Server server = servers.get(root.getKey());
+        return server == null ? 0 : maxPerServer - server.permits.availablePermits();
+    }
+
+    private boolean isExpired(CvsConnection c, long now) {
+        return now - c.lastUsed >= idleTimeout;
+    }
+
+    private synchronized Server getServer(String key) {
+        Server server = servers.get(key);
+        if (server == null) {
+            server = new Server(maxPerServer);
+            servers.put(key, server);
+        }
+        return server;
+    }
+
+    /**
+     * Starts closing idle connections periodically, once there are some.
+     */
+    private void startSweeper() {
+        if (sweeper == null) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(
+                new ExceptionCatchingThreadFactory(new DaemonThreadFactory()));
+            long period = Math.max(1000, idleTimeout / 2);
+            sweeper.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evictIdle();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed <tt>:pserver:</tt> or <tt>:ext:</tt> CVSROOT, as used by {@link CvsConnection}.
+ */
+final class CvsRoot implements Serializable {
+    /**
+     * Default port of the pserver protocol.
+     */
+    static final int PSERVER_PORT = 2401;
+
+    /**
+     * <tt>:method:[user[:password]@]host[:[port]]/path</tt>
+     */
+    private static final Pattern PATTERN = Pattern.compile(
+        ":(pserver|ext):(?:([^@:]+)(?::([^@]*))?@)?([^:@/]+):?(\\d*)(/.*)");
+
+    /**
+     * The pserver scrambling table, from scramble.c in the CVS sources.
+     */
+    private static final char[] SHIFTS = {
+        0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
+        16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31,
+        114, 120, 53, 79, 96, 109, 72, 108, 70, 64, 76, 67, 116, 74, 68, 87,
+        111, 52, 75, 119, 49, 34, 82, 81, 95, 65, 112, 86, 118, 110, 122, 105,
+        41, 57, 83, 43, 46, 102, 40, 89, 38, 103, 45, 50, 42, 123, 91, 35,
+        125, 55, 54, 66, 124, 126, 59, 47, 92, 71, 115, 78, 88, 107, 106, 56,
+        36, 121, 117, 104, 101, 100, 69, 73, 99, 63, 94, 93, 39, 37, 61, 48,
+        58, 113, 32, 90, 44, 98, 60, 51, 33, 97, 62, 77, 84, 80, 85, 223,
+        225, 216, 187, 166, 229, 189, 222, 188, 141, 249, 148, 200, 184, 136, 248, 190,
+        199, 170, 181, 204, 138, 232, 218, 183, 255, 234, 220, 247, 213, 203, 226, 193,
+        174, 172, 228, 252, 217, 201, 131, 230, 197, 211, 145, 238, 161, 179, 160, 212,
+        207, 221, 254, 173, 202, 146, 224, 151, 140, 196, 205, 130, 135, 133, 143, 246,
+        192, 159, 244, 239, 185, 168, 215, 144, 139, 165, 180, 157, 147, 186, 214, 176,
+        227, 231, 219, 169, 175, 156, 206, 198, 129, 164, 150, 210, 154, 177, 134, 127,
+        182, 128, 158, 208, 162, 132, 167, 209, 149, 241, 153, 251, 237, 236, 171, 195,
+        243, 233, 253, 240, 194, 250, 191, 155, 142, 137, 245, 235, 163, 242, 178, 152
+    };
+
+    final String method;
+    final String user;
+    final String password;
+    final String host;
+    final int port;
+    final String path;
+
+    private CvsRoot(String method, String user, String password, String host, int port, String path) {
+        this.method = method;
+        this.user = user;
+        this.password = password;
+        this.host = host;
+        this.port = port;
+        this.path = path;
+    }
+
+    /**
+     * Parses a CVSROOT.
+     *
+     * @return null if the access method isn't supported by {@link CvsConnection}.
+     */
+    static CvsRoot parse(String cvsroot) {
+        if (cvsroot == null) {
+            return null;
+        }
+        Matcher m = PATTERN.matcher(cvsroot.trim());
+        if (!m.matches()) {
+            return null;
+        }
+        String method = m.group(1);
+        String user = m.group(2);
+        if (user == null && method.equals("pserver")) {
+            user = System.getProperty("user.name");
+        }
+        int port = m.group(5).length() > 0 ? Integer.parseInt(m.group(5)) : method.equals("pserver") ? PSERVER_PORT : 0;
+        return new CvsRoot(method, user, m.group(3), m.group(4), port, m.group(6));
+    }
+
+    boolean isPserver() {
+        return method.equals("pserver");
+    }
+
+    /**
+     * Returns the CVSROOT without the password, which identifies the repository.
+     */
+    String getKey() {
+        return ':' + method + ':' + (user != null ? user + '@' : "") + host + ':'
+            + (port != 0 && port != PSERVER_PORT ? String.valueOf(port) : "") + path;
+    }
+
+    /**
+     * Returns the scrambled password to send to the server, from the CVSROOT or else from the given
+     * <tt>.cvspass</tt> file. The empty password, scrambled, if there is none.
+     *
+     * @param cvspassFile the <tt>.cvspass</tt> file, or null for the one in the home directory.
+     */
+    String getScrambledPassword(File cvspassFile) throws IOException {
+        if (password != null) {
+            return scramble(password);
+        }
+        if (cvspassFile == null) {
+            cvspassFile = new File(System.getProperty("user.home"), ".cvspass");
+        }
+        if (cvspassFile.exists()) {
+            String withPort = ":pserver:" + user + '@' + host + ':' + port + path;
+            String withoutPort = ":pserver:" + user + '@' + host + ':' + path;
+            BufferedReader r = new BufferedReader(new FileReader(cvspassFile));
+            try {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    // "/1 :pserver:user@host:2401/path Aword" or, for older versions, ":pserver:user@host:/path Aword"
+                    if (line.startsWith("/1 ")) {
+                        line = line.substring(3);
+                    }
+                    int idx = line.indexOf(' ');
+                    if (idx < 0) {
+                        continue;
+                    }
+                    String root = line.substring(0, idx);
+                    if (root.equals(withPort) || root.equals(withoutPort)) {
+                        return line.substring(idx + 1);
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        }
+        return scramble("");
+    }
+
+    /**
+     * Scrambles a password the way <tt>cvs login</tt> does.
+     */
+    static String scramble(String password) {
+        StringBuilder b = new StringBuilder("A");
+        for (int i = 0; i < password.length(); i++) {
+            b.append(SHIFTS[password.charAt(i) & 0xFF]);
+        }
+        return b.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+
+    private static final long serialVersionUID = 1L;
+}
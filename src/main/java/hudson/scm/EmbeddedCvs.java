@@ -0,0 +1,273 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Runs a cvs command line over a {@link CvsConnection} instead of forking the cvs executable.
+ * <p/>
+ * Only commands that leave the workspace alone are handled: <tt>log</tt>, <tt>rlog</tt>, and <tt>update</tt>
+ * under the <tt>-n</tt> global option, as used for polling. Anything else, and any failure to talk to the server,
+ * makes {@link #invoke(File, VirtualChannel)} return null so that the caller runs the executable as before.
+ */
+final class EmbeddedCvs implements FileCallable<Integer> {
+    /**
+     * Options of the supported commands that take their value as a separate argument.
+     */
+    private static final Set<String> UPDATE_OPTIONS = new HashSet<String>(Arrays.asList(
+        "-r", "-D", "-j", "-k", "-I", "-W"));
+    private static final Set<String> LOG_OPTIONS = new HashSet<String>(Arrays.asList("-d", "-s"));
+
+    private final String cvsroot;
+    private final List<String> globalOptions;
+    private final String command;
+    private final List<String> arguments;
+    private final List<String> files;
+    private final String cvspassFile;
+    private final String rsh;
+    private final OutputStream out;
+    private long timeout;
+
+    private EmbeddedCvs(String cvsroot, List<String> globalOptions, String command, List<String> arguments,
+                        List<String> files, String cvspassFile, String rsh, OutputStream out) {
+        this.cvsroot = cvsroot;
+        this.globalOptions = globalOptions;
+        this.command = command;
+        this.arguments = arguments;
+        this.files = files;
+        this.cvspassFile = cvspassFile;
+        this.rsh = rsh;
+        this.out = out;
+    }
+
+    /**
+     * Interprets a cvs command line.
+     *
+     * @param cmd the command line, starting with the executable.
+     * @param cvspassFile the <tt>.cvspass</tt> file, or empty for the default.
+     * @param rsh the remote shell for <tt>:ext:</tt>, or null for the default.
+     * @param out receives both the output and the errors of the command.
+     * @return null if the command isn't supported.
+     */
+    static EmbeddedCvs parse(List<String> cmd, String cvspassFile, String rsh, OutputStream out) {
+        String cvsroot = null;
+        List<String> globalOptions = new ArrayList<String>();
+        int i = 1;
+        for (; i < cmd.size() && cmd.get(i).startsWith("-"); i++) {
+            String option = cmd.get(i);
+            if (option.equals("-q") || option.equals("-Q") || option.equals("-n") || option.equals("-f")) {
+                if (!option.equals("-f")) {
+                    globalOptions.add(option);
+                }
+            } else if (option.equals("-d") && i + 1 < cmd.size()) {
+                cvsroot = cmd.get(++i);
+            } else if (option.equals("-z") && i + 1 < cmd.size()) {
+                i++;    // no compression on this side
+            } else if (!option.startsWith("-z")) {
+                return null;    // -t, --lf, ...
+            }
+        }
+        if (i == cmd.size()) {
+            return null;
+        }
+
+        String command = cmd.get(i++);
+        Set<String> valueOptions;
+        if (command.equals("update") && globalOptions.contains("-n")) {
+            valueOptions = UPDATE_OPTIONS;
+        } else if (command.equals("log") || command.equals("rlog")) {
+            valueOptions = LOG_OPTIONS;
+        } else {
+            return null;
+        }
+
+        List<String> arguments = new ArrayList<String>();
+        for (; i < cmd.size() && cmd.get(i).startsWith("-"); i++) {
+            String option = cmd.get(i);
+            if (option.equals("--")) {
+                i++;
+                break;
+            }
+            arguments.add(option);
+            if (valueOptions.contains(option) && i + 1 < cmd.size()) {
+                arguments.add(cmd.get(++i));
+            }
+        }
+        List<String> files = new ArrayList<String>(cmd.subList(i, cmd.size()));
+        if (command.equals("rlog") && cvsroot == null) {
+            return null;
+        }
+        return new EmbeddedCvs(cvsroot, globalOptions, command, arguments, files, cvspassFile, rsh, out);
+    }
+
+    /**
+     * Aborts the command if it runs for longer than the given timeout.
+     *
+     * @param timeout milliseconds, 0 or less for no timeout.
+     */
+    void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return the exit code, or null if the command couldn't be run.
+     * @throws SocketTimeoutException if the command timed out.
+     */
+    public Integer invoke(File dir, VirtualChannel channel) throws IOException {
+        String root = cvsroot != null ? cvsroot : readRoot(dir);
+        CvsRoot r = CvsRoot.parse(root);
+        if (r == null) {
+            return null;
+        }
+        try {
+            return run(r, cvspassFile.length() == 0 ? null : new File(cvspassFile), rsh, command, globalOptions,
+                arguments, command.equals("rlog") ? null : dir, files, out, out, timeout);
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * Runs <tt>cvs log</tt> the way {@link hudson.org.apache.tools.ant.taskdefs.cvslib.ChangeLogTask#runLog} asks for.
+     *
+     * @param arguments options of the command, then <tt>--</tt> and the files to log, if any.
+     * @param timeout milliseconds, 0 or less for no timeout.
+     * @return the exit code, or null if the command couldn't be run.
+     * @throws SocketTimeoutException if the command timed out.
+     */
+    static Integer log(CvsRoot root, File cvspassFile, String rsh, File dir, List<String> arguments,
+                       OutputStream out, OutputStream err, long timeout) throws IOException {
+        int idx = arguments.indexOf("--");
+        List<String> options = idx < 0 ? arguments : arguments.subList(0, idx);
+        List<String> files = idx < 0 ? Collections.<String>emptyList() : arguments.subList(idx + 1, arguments.size());
+        return run(root, cvspassFile, rsh, "log", Collections.<String>emptyList(), options, dir, files, out, err,
+            timeout);
+    }
+
+    /**
+     * Runs a command over a connection of the {@link CvsConnectionPool}. The output is streamed as it's received,
+     * so a failed attempt is only retried, or run by the executable instead, as long as nothing has been written out.
+     *
+     * @param timeout milliseconds after which the connection is closed to abort the command, 0 or less for never.
+     * @return the exit code, or null if the command couldn't be run.
+     * @throws SocketTimeoutException if the command timed out.
+     * @throws IOException if the command failed after writing some of its output.
+     */
+    static Integer run(CvsRoot root, File cvspassFile, String rsh, String command, List<String> globalOptions,
+                       List<String> arguments, File dir, List<String> files, OutputStream out, OutputStream err,
+                       long timeout) throws IOException {
+        CountingOutputStream output = new CountingOutputStream(out);
+        CountingOutputStream errors = new CountingOutputStream(err);
+        while (true) {
+            final CvsConnection c;
+            try {
+                c = CvsConnectionPool.INSTANCE.acquire(root, cvspassFile, rsh);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to connect to " + root, e);
+                return null;
+            }
+            final AtomicBoolean timedOut = new AtomicBoolean();
+            ScheduledFuture<?> abort = ProcessTimeout.schedule(new Runnable() {
+                public void run() {
+                    timedOut.set(true);
+                    c.close();
+                }
+            }, timeout);
+            try {
+                return c.run(command, globalOptions, arguments, dir, files, output, errors);
+            } catch (IOException e) {
+                if (timedOut.get()) {
+                    SocketTimeoutException x = new SocketTimeoutException(
+                        "cvs " + command + " timed out after " + timeout / 1000 + " seconds on " + root);
+                    x.initCause(e);
+                    throw x;
+                }
+                if (output.getCount() > 0 || errors.getCount() > 0) {
+                    throw e;
+                }
+                LOGGER.log(Level.FINE, "Failed to run " + command + " on " + root, e);
+                if (c.uses == 1) {
+                    return null;
+                }
+                // the server might have dropped an idle connection, so try again with another one
+            } finally {
+                if (abort != null) {
+                    abort.cancel(false);
+                }
+                CvsConnectionPool.INSTANCE.release(c);
+            }
+        }
+    }
+
+    /**
+     * Reads the CVSROOT a working directory, or the first of its subdirectories, is checked out from.
+     */
+    private String readRoot(File dir) throws IOException {
+        List<File> candidates = new ArrayList<File>();
+        candidates.add(dir);
+        for (String f : files) {
+            candidates.add(new File(dir, f).getParentFile());
+        }
+        for (File d : candidates) {
+            File root = new File(d, "CVS/Root");
+            if (root.exists()) {
+                BufferedReader r = new BufferedReader(new FileReader(root));
+                try {
+                    String line = r.readLine();
+                    return line == null ? null : line.trim();
+                } finally {
+                    r.close();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(EmbeddedCvs.class.getName());
+}
@@ -0,0 +1,270 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.scm.cvs.Messages;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Per-node cache of checked out CVS modules, which new workspaces are seeded from.
+ * <p/>
+ * Each entry is a regular checkout of one module of one branch, kept under <tt>cvs-mirror</tt> in the root
+ * directory of the node and named after the hash of its (CVSROOT, module, branch) key. A new workspace gets
+ * a local copy of the entry and is then updated against the server, so that only the changes since
+ * the entry was last refreshed cross the network.
+ * <p/>
+ * Entries are locked on the master while in use. Once the cache grows beyond its size limit, the
+ * least recently used entries are deleted.
+ */
+final class MirrorCache {
+    /**
+     * Minutes after which an entry is updated from the server before being copied.
+     */
+    public static int REFRESH_INTERVAL = Integer.getInteger(MirrorCache.class.getName() + ".refreshInterval", 60);
+
+    /**
+     * Same as {@link CVSSCM}'s, so that entries don't depend on the password.
+     */
+    private static final Pattern PSERVER_CVSROOT_WITH_PASSWORD = Pattern.compile("(:pserver:[^@:]+):[^@:]+(@.+)");
+
+    /**
+     * Locks of the entries in use, keyed by node and entry name.
+     */
+    private static final Map<String, ReentrantLock> LOCKS = new HashMap<String, ReentrantLock>();
+
+    private final String nodeName;
+    private final FilePath dir;
+    private final long maxBytes;
+
+    MirrorCache(String nodeName, FilePath dir, long maxBytes) {
+        this.nodeName = nodeName;
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cache of the given node.
+     *
+     * @param maxSize size limit of the cache, in megabytes.
+     * @return null if the cache is disabled or the node is offline.
+     */
+    static MirrorCache of(Node node, int maxSize) {
+        if (node == null || maxSize <= 0) {
+            return null;
+        }
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            return null;
+        }
+        return new MirrorCache(node.getNodeName(), root.child("cvs-mirror"), maxSize * 1024L * 1024L);
+    }
+
+    FilePath getDir() {
+        return dir;
+    }
+
+    /**
+     * Returns the name of the entry that holds the given module.
+     */
+    static String getEntryName(String cvsroot, String module, String branch) {
+        Matcher m = PSERVER_CVSROOT_WITH_PASSWORD.matcher(cvsroot);
+        if (m.matches()) {
+            cvsroot = m.group(1) + m.group(2);
+        }
+        String key = cvsroot + '\n' + module + '\n' + (branch == null ? "" : branch);
+        try {
+            return ControlFileStore.hash(key.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e); // UTF-8 is mandatory on every JRE
+        }
+    }
+
+    FilePath getEntry(String name) {
+        return dir.child(name);
+    }
+
+    /**
+     * Returns the lock of an entry, which must be held while the entry is created, refreshed or copied.
+     */
+    ReentrantLock getLock(String name) {
+        String key = nodeName + '/' + name;
+        synchronized (LOCKS) {
+            ReentrantLock lock = LOCKS.get(key);
+            if (lock == null) {
+                lock = new ReentrantLock();
+                LOCKS.put(key, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Copies an entry to the given directory, after marking it as used.
+     *
+     * @param module name of the module, to check that the entry holds it at its top.
+     * @return false if the entry doesn't hold a directory module, which can't be copied as is.
+     */
+    boolean copy(String name, String module, FilePath target) throws IOException, InterruptedException {
+        return getEntry(name).act(new Copy(module, target.getRemote()));
+    }
+
+    private static final class Copy implements FileCallable<Boolean> {
+        private final String module;
+        private final String target;
+
+        Copy(String module, String target) {
+            this.module = module;
+            this.target = target;
+        }
+
+        public Boolean invoke(File entry, VirtualChannel channel) throws IOException {
+            String repository = readFirstLine(new File(entry, "CVS/Repository"));
+            // a file module like "foo/bar.txt" is checked out into "foo"
+            if (repository == null || !(repository.equals(module) || repository.endsWith('/' + module))) {
+                return false;
+            }
+            entry.setLastModified(System.currentTimeMillis());
+            // keep the timestamps, or else CVS considers all the files modified
+            FileUtils.copyDirectory(entry, new File(target), true);
+            return true;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Returns true if the entry hasn't been refreshed for {@link #REFRESH_INTERVAL} minutes.
+     */
+    boolean isStale(String name) throws IOException, InterruptedException {
+        FilePath entries = getEntry(name).child("CVS/Entries");
+        return System.currentTimeMillis() - entries.lastModified() > TimeUnit.MINUTES.toMillis(REFRESH_INTERVAL);
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits in its size limit.
+     * Entries in use are skipped.
+     */
+    void evict(TaskListener listener) throws IOException, InterruptedException {
+        List<EntryInfo> entries = dir.act(new ListEntries());
+        long total = 0;
+        for (EntryInfo e : entries) {
+            total += e.size;
+        }
+        // oldest first
+        for (EntryInfo e : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            ReentrantLock lock = getLock(e.name);
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                listener.getLogger().println(Messages.CVSSCM_EvictingMirror(e.name, e.size / 1024 / 1024));
+                getEntry(e.name).deleteRecursive();
+                total -= e.size;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Size and last use of a cache entry.
+     */
+    static final class EntryInfo implements Serializable {
+        final String name;
+        final long lastUsed;
+        final long size;
+
+        EntryInfo(String name, long lastUsed, long size) {
+            this.name = name;
+            this.lastUsed = lastUsed;
+            this.size = size;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Lists the entries of the cache, least recently used first.
+     */
+    static final class ListEntries implements FileCallable<List<EntryInfo>> {
+        public List<EntryInfo> invoke(File dir, VirtualChannel channel) throws IOException {
+            List<EntryInfo> r = new ArrayList<EntryInfo>();
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return r;
+            }
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    r.add(new EntryInfo(f.getName(), f.lastModified(), FileUtils.sizeOfDirectory(f)));
+                }
+            }
+            Collections.sort(r, new Comparator<EntryInfo>() {
+                public int compare(EntryInfo a, EntryInfo b) {
+                    return a.lastUsed < b.lastUsed ? -1 : (a.lastUsed == b.lastUsed ? 0 : 1);
+                }
+            });
+            return r;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static String readFirstLine(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        BufferedReader r = new BufferedReader(new FileReader(file));
+        try {
+            String s = r.readLine();
+            return s == null ? null : s.trim();
+        } finally {
+            r.close();
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Statistics of the polls of {@link CVSSCM}, for each CVSROOT.
+ * <p/>
+ * Each module location of each poll is recorded under its CVSROOT, without password: how long the dry-run update
+ * took, how many cvs processes it forked, which files it reported and whether they were all in excluded regions,
+ * and what came out of it. The statistics are shown on the <tt>pollingMetrics</tt> page of the CVS descriptor
+ * and registered as MBeans under the <tt>hudson.scm.cvs</tt> domain.
+ */
+public final class PollingMetrics {
+    /**
+     * Upper bounds, in milliseconds, of the buckets of the latency histograms. The last bucket is unbounded.
+     */
+    static final long[] BUCKETS = {100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    /**
+     * Same as {@link CVSSCM}'s, so that statistics don't depend on the password.
+     */
+    private static final Pattern PSERVER_CVSROOT_WITH_PASSWORD = Pattern.compile("(:pserver:[^@:]+):[^@:]+(@.+)");
+
+    /**
+     * The registry of this Hudson.
+     */
+    static final PollingMetrics INSTANCE = new PollingMetrics(true);
+
+    /**
+     * The poll of a module location in progress on the current thread, so that {@link CVSSCM#run} can count
+     * the processes it forks.
+     */
+    private static final ThreadLocal<Poll> CURRENT = new ThreadLocal<Poll>();
+
+    private final boolean registerMBeans;
+    private final Map<String, Root> roots = new TreeMap<String, Root>();
+
+    PollingMetrics(boolean registerMBeans) {
+        this.registerMBeans = registerMBeans;
+    }
+
+    /**
+     * What came out of polling a module location.
+     */
+    public enum Outcome {
+        /**
+         * No file changed.
+         */
+        NO_CHANGES,
+        /**
+         * Some files changed.
+         */
+        CHANGES,
+        /**
+         * Files changed, but all of them in excluded regions.
+         */
+        EXCLUDED,
+        /**
+         * The workspace couldn't be updated, and a build was scheduled to check it out again.
+         */
+        WORKSPACE_INCONSISTENT,
+        /**
+         * The update failed.
+         */
+        FAILED
+    }
+
+    /**
+     * The attributes of the MBean of a CVSROOT.
+     */
+    public interface RootMBean {
+        String getCvsroot();
+
+        long getPolls();
+
+        long getTotalMillis();
+
+        long getMaxMillis();
+
+        double getAverageMillis();
+
+        long getProcesses();
+
+        long getChangedFiles();
+
+        long getExcludedFiles();
+
+        /**
+         * The share of the changed files that were in excluded regions.
+         */
+        double getExcludedRate();
+
+        long getNoChanges();
+
+        long getChanges();
+
+        long getExcluded();
+
+        long getWorkspaceInconsistent();
+
+        long getFailed();
+
+        /**
+         * The number of polls in each of the {@link PollingMetrics#BUCKETS}, the unbounded one last.
+         */
+        long[] getHistogram();
+    }
+
+    /**
+     * The statistics of one CVSROOT.
+     */
+    public static final class Root implements RootMBean {
+        private final String cvsroot;
+        private final AtomicLong polls = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+        private final AtomicLong maxMillis = new AtomicLong();
+        private final AtomicLong processes = new AtomicLong();
+        private final AtomicLong changedFiles = new AtomicLong();
+        private final AtomicLong excludedFiles = new AtomicLong();
+        private final AtomicLongArray outcomes = new AtomicLongArray(Outcome.values().length);
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+
+        Root(String cvsroot) {
+            this.cvsroot = cvsroot;
+        }
+
+        public String getCvsroot() {
+            return cvsroot;
+        }
+
+        public long getPolls() {
+            return polls.get();
+        }
+
+        public long getTotalMillis() {
+            return totalMillis.get();
+        }
+
+        public long getMaxMillis() {
+            return maxMillis.get();
+        }
+
+        public double getAverageMillis() {
+            long n = polls.get();
+            return n == 0 ? 0 : (double) totalMillis.get() / n;
+        }
+
+        public long getProcesses() {
+            return processes.get();
+        }
+
+        public long getChangedFiles() {
+            return changedFiles.get();
+        }
+
+        public long getExcludedFiles() {
+            return excludedFiles.get();
+        }
+
+        public double getExcludedRate() {
+            long n = changedFiles.get();
+            return n == 0 ? 0 : (double) excludedFiles.get() / n;
+        }
+
+        public long getNoChanges() {
+            return getCount(Outcome.NO_CHANGES);
+        }
+
+        public long getChanges() {
+            return getCount(Outcome.CHANGES);
+        }
+
+        public long getExcluded() {
+            return getCount(Outcome.EXCLUDED);
+        }
+
+        public long getWorkspaceInconsistent() {
+            return getCount(Outcome.WORKSPACE_INCONSISTENT);
+        }
+
+        public long getFailed() {
+            return getCount(Outcome.FAILED);
+        }
+
+        public long getCount(Outcome outcome) {
+            return outcomes.get(outcome.ordinal());
+        }
+
+        public long[] getHistogram() {
+            long[] r = new long[histogram.length()];
+            for (int i = 0; i < r.length; i++) {
+                r[i] = histogram.get(i);
+            }
+            return r;
+        }
+
+        void record(Poll poll, Outcome outcome, long millis) {
+            polls.incrementAndGet();
+            totalMillis.addAndGet(millis);
+            long max;
+            while ((max = maxMillis.get()) < millis && !maxMillis.compareAndSet(max, millis)) {
+                // retry
+            }
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+                bucket++;
+            }
+            histogram.incrementAndGet(bucket);
+            processes.addAndGet(poll.processes);
+            changedFiles.addAndGet(poll.changedFiles);
+            excludedFiles.addAndGet(poll.excludedFiles);
+            outcomes.incrementAndGet(outcome.ordinal());
+        }
+    }
+
+    /**
+     * The poll of one module location.
+     */
+    final class Poll {
+        private final String cvsroot;
+        private final long start = System.currentTimeMillis();
+        private int processes;
+        private int changedFiles;
+        private int excludedFiles;
+
+        private Poll(String cvsroot) {
+            this.cvsroot = cvsroot;
+        }
+
+        /**
+         * Counts a forked cvs process.
+         */
+        void forked() {
+            processes++;
+        }
+
+        /**
+         * Counts the files the update reported.
+         *
+         * @param excluded how many of them are in excluded regions.
+         */
+        void changed(int files, int excluded) {
+            changedFiles += files;
+            excludedFiles += excluded;
+        }
+
+        /**
+         * Records the poll, and ends it.
+         */
+        void end(Outcome outcome) {
+            getOrCreateRoot(cvsroot).record(this, outcome, System.currentTimeMillis() - start);
+            if (CURRENT.get() == this) {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    /**
+     * Starts recording the poll of a module location, on the current thread.
+     */
+    Poll begin(ModuleLocation location) {
+        Poll poll = new Poll(normalize(location.getCvsroot()));
+        CURRENT.set(poll);
+        return poll;
+    }
+
+    /**
+     * Returns the poll in progress on the current thread, or null.
+     */
+    static Poll current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Returns the statistics of all the CVSROOTs polled so far, sorted by CVSROOT.
+     */
+    public synchronized List<Root> getRoots() {
+        return new ArrayList<Root>(roots.values());
+    }
+
+    /**
+     * Returns the statistics of the given CVSROOT, or null if it hasn't been polled.
+     */
+    public synchronized Root getRoot(String cvsroot) {
+        return roots.get(normalize(cvsroot));
+    }
+
+    /**
+     * Returns the upper bounds of the histogram buckets, as labels.
+     */
+    public List<String> getBucketLabels() {
+        List<String> labels = new ArrayList<String>();
+        for (long b : BUCKETS) {
+            labels.add("<=" + (b < 1000 ? b + "ms" : b / 1000.0 + "s"));
+        }
+        labels.add(">" + BUCKETS[BUCKETS.length - 1] / 1000 + "s");
+        return labels;
+    }
+
+    private synchronized Root getOrCreateRoot(String cvsroot) {
+        Root root = roots.get(cvsroot);
+        if (root == null) {
+            root = new Root(cvsroot);
+            roots.put(cvsroot, root);
+            if (registerMBeans) {
+                register(root);
+            }
+        }
+        return root;
+    }
+
+    private static void register(Root root) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("hudson.scm.cvs:type=PollingMetrics,cvsroot="
+                + ObjectName.quote(root.getCvsroot()));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new StandardMBean(root, RootMBean.class), name);
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register the polling metrics of " + root.getCvsroot(), e);
+        }
+    }
+
+    private static String normalize(String cvsroot) {
+        Matcher m = PSERVER_CVSROOT_WITH_PASSWORD.matcher(cvsroot);
+        return m.matches() ? m.group(1) + m.group(2) : cvsroot;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PollingMetrics.class.getName());
+}
@@ -0,0 +1,255 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Limits the number of cvs commands run at the same time against each CVS server, across all the jobs.
+ * <p/>
+ * Polls, updates, checkouts, changelogs and tags all acquire a slot of the server of their CVSROOT before they
+ * start, and release it once the command has completed. When all the slots of a server are taken, commands wait
+ * in a first-come, first-served queue, so that a burst of polls doesn't starve builds or the other way round.
+ * How long commands waited is recorded for each server, and shown on the <tt>processQueue</tt> page of the
+ * CVS descriptor.
+ * <p/>
+ * Local repositories aren't limited, since no server is involved.
+ */
+public final class ProcessThrottle {
+    /**
+     * <tt>[:method:][user[:password]@]host:[port]/path</tt>
+     */
+    private static final Pattern SERVER = Pattern.compile("(?::(\\w+):)?(?:[^@/]*@)?([^:@/]+):(\\d*)/.*");
+
+    /**
+     * The throttle of this Hudson.
+     */
+    static final ProcessThrottle INSTANCE = new ProcessThrottle();
+
+    private final Map<String, Server> servers = new TreeMap<String, Server>();
+
+    ProcessThrottle() {
+    }
+
+    /**
+     * The queue and statistics of one server.
+     */
+    public static final class Server {
+        private final String name;
+
+        /**
+         * Commands waiting for a slot, the longest waiting first.
+         */
+        private final LinkedList<Thread> queue = new LinkedList<Thread>();
+        private int running;
+
+        private final AtomicLong commands = new AtomicLong();
+        private final AtomicLong waited = new AtomicLong();
+        private final AtomicLong totalWaitMillis = new AtomicLong();
+        private final AtomicLong maxWaitMillis = new AtomicLong();
+
+        Server(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Number of commands running against the server.
+         */
+        public synchronized int getRunning() {
+            return running;
+        }
+
+        /**
+         * Number of commands waiting for a slot.
+         */
+        public synchronized int getQueued() {
+            return queue.size();
+        }
+
+        /**
+         * Number of commands run so far.
+         */
+        public long getCommands() {
+            return commands.get();
+        }
+
+        /**
+         * Number of commands that had to wait for a slot.
+         */
+        public long getWaited() {
+            return waited.get();
+        }
+
+        public long getTotalWaitMillis() {
+            return totalWaitMillis.get();
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWaitMillis.get();
+        }
+
+        /**
+         * Average wait of all the commands, including those that didn't wait.
+         */
+        public double getAverageWaitMillis() {
+            long n = commands.get();
+            return n == 0 ? 0 : (double) totalWaitMillis.get() / n;
+        }
+
+        synchronized void acquire(int limit) throws InterruptedException {
+            long start = System.currentTimeMillis();
+            if (limit <= 0 || (running < limit && queue.isEmpty())) {
+                running++;
+                commands.incrementAndGet();
+                return;
+            }
+            Thread self = Thread.currentThread();
+            queue.add(self);
+            try {
+                while (queue.getFirst() != self || running >= limit) {
+                    wait();
+                }
+            } finally {
+                queue.remove(self);
+                // the next in line may be able to go, or has to move up if we gave up
+                notifyAll();
+            }
+            running++;
+            long millis = System.currentTimeMillis() - start;
+            commands.incrementAndGet();
+            waited.incrementAndGet();
+            totalWaitMillis.addAndGet(millis);
+            long max;
+            while ((max = maxWaitMillis.get()) < millis && !maxWaitMillis.compareAndSet(max, millis)) {
+                // retry
+            }
+        }
+
+        synchronized void release() {
+            running--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A slot of a server, to be released once the command completes.
+     */
+    static final class Slot {
+        private final Server server;
+
+        private Slot(Server server) {
+            this.server = server;
+        }
+
+        void release() {
+            if (server != null) {
+                server.release();
+            }
+        }
+    }
+
+    /**
+     * Waits for a slot of the server of the given CVSROOT, in turn with the other commands waiting for it.
+     *
+     * @param limit maximum number of commands against a server, 0 or less for no limit.
+     * @return the slot, to be released with {@link Slot#release()} once the command has completed.
+     */
+    Slot acquire(String cvsroot, int limit) throws InterruptedException {
+        String name = getServerName(cvsroot);
+        if (name == null) {
+            return new Slot(null);
+        }
+        Server server = getOrCreateServer(name);
+        server.acquire(limit);
+        return new Slot(server);
+    }
+
+    /**
+     * Returns the statistics of all the servers contacted so far, sorted by name.
+     */
+    public synchronized List<Server> getServers() {
+        return new ArrayList<Server>(servers.values());
+    }
+
+    /**
+     * Returns the statistics of the given server, or null if it hasn't been contacted.
+     */
+    public synchronized Server getServer(String name) {
+        return servers.get(name);
+    }
+
+    private synchronized Server getOrCreateServer(String name) {
+        Server server = servers.get(name);
+        if (server == null) {
+            server = new Server(name);
+            servers.put(name, server);
+        }
+        return server;
+    }
+
+    /**
+     * Returns the server a CVSROOT designates, as <tt>host</tt> or <tt>host:port</tt>.
+     *
+     * @return null for a local repository.
+     */
+    static String getServerName(String cvsroot) {
+        if (cvsroot == null) {
+            return null;
+        }
+        Matcher m = SERVER.matcher(cvsroot.trim());
+        if (!m.matches() || "local".equals(m.group(1)) || "fork".equals(m.group(1))) {
+            return null;
+        }
+        return m.group(3).length() > 0 ? m.group(2) + ':' + m.group(3) : m.group(2);
+    }
+
+    /**
+     * Returns the CVSROOT a cvs command line designates with its <tt>-d</tt> global option.
+     *
+     * @return null if the command uses the CVSROOT of the workspace.
+     */
+    static String getCvsroot(List<String> cmd) {
+        for (int i = 1; i < cmd.size() - 1 && cmd.get(i).startsWith("-"); i++) {
+            if (cmd.get(i).equals("-d")) {
+                return cmd.get(i + 1);
+            }
+            if (cmd.get(i).equals("-z")) {
+                i++;
+            }
+        }
+        return null;
+    }
+}
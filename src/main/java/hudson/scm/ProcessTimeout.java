@@ -0,0 +1,185 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import hudson.Proc;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Kills cvs commands that run for longer than the timeout of their operation, such as those stuck on a hung
+ * pserver connection, and spaces out their retries.
+ * <p/>
+ * {@link Proc#kill()} kills the whole process tree, so that the <tt>ssh</tt> of an <tt>:ext:</tt> CVSROOT goes too.
+ * Retries wait exponentially longer after each timeout, with a random jitter so that the jobs that timed out
+ * together against a server don't all retry at the same time.
+ */
+final class ProcessTimeout {
+    /**
+     * Seconds to wait before the first retry of a timed-out command. Doubles for each further retry.
+     */
+    public static int RETRY_DELAY = Integer.getInteger(ProcessTimeout.class.getName() + ".retryDelay", 10);
+
+    /**
+     * Longest wait before a retry, in seconds.
+     */
+    public static int MAX_RETRY_DELAY = Integer.getInteger(ProcessTimeout.class.getName() + ".maxRetryDelay", 300);
+
+    /**
+     * Kinds of CVS operations, which have their own timeouts.
+     */
+    enum Operation {
+        POLL, CHECKOUT, LOG, TAG;
+
+        /**
+         * Tells what a cvs command line does, for callers that don't know. Commands under the <tt>-n</tt> global
+         * option, which don't change anything, are taken for polling.
+         */
+        static Operation of(List<String> cmd) {
+            // skip the executable and the global options
+            for (int i = 1; i < cmd.size(); i++) {
+                String arg = cmd.get(i);
+                if (arg.equals("-d") || arg.equals("-z")) {
+                    i++;
+                } else if (arg.equals("-n")) {
+                    return POLL;
+                } else if (!arg.startsWith("-")) {
+                    if (arg.equals("log") || arg.equals("rlog")) {
+                        return LOG;
+                    }
+                    if (arg.equals("tag") || arg.equals("rtag")) {
+                        return TAG;
+                    }
+                    break;
+                }
+            }
+            return CHECKOUT;
+        }
+
+        /**
+         * Lower case name, for messages.
+         */
+        String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static ScheduledExecutorService killer;
+
+    private static final Random RANDOM = new Random();
+
+    private ProcessTimeout() {
+    }
+
+    /**
+     * Waits for a process to complete, and kills it and its children if it takes longer than the timeout.
+     *
+     * @param timeout milliseconds, 0 or less to wait for as long as it takes.
+     * @return the exit code, or null if the process has been killed.
+     */
+    static Integer join(final Proc proc, long timeout) throws IOException, InterruptedException {
+        if (timeout <= 0) {
+            return proc.join();
+        }
+        final AtomicBoolean killed = new AtomicBoolean();
+        ScheduledFuture<?> kill = getKiller().schedule(new Runnable() {
+            public void run() {
+                killed.set(true);
+                try {
+                    proc.kill();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to kill a timed-out cvs process", e);
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.WARNING, "Interrupted while killing a timed-out cvs process", e);
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        try {
+            int r = proc.join();
+            return killed.get() ? null : r;
+        } finally {
+            kill.cancel(false);
+        }
+    }
+
+    /**
+     * Returns how long to wait before retrying a command that timed out.
+     *
+     * @param attempt 0 for the first retry.
+     * @return milliseconds, between half and all of the exponential backoff.
+     */
+    static long getRetryDelay(int attempt) {
+        long max = Math.min(Math.max(1, RETRY_DELAY) * 1000L << Math.min(attempt, 16), MAX_RETRY_DELAY * 1000L);
+        double jitter;
+        synchronized (RANDOM) {
+            jitter = RANDOM.nextDouble();
+        }
+        return max / 2 + (long) (jitter * (max / 2));
+    }
+
+    /**
+     * Runs the given task once the timeout has elapsed, such as to abort a command run without forking cvs.
+     *
+     * @param timeout milliseconds, 0 or less for never.
+     * @return null if {@code timeout} is 0 or less, or else the scheduled task, to cancel once the command completes.
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long timeout) {
+        return timeout > 0 ? getKiller().schedule(task, timeout, TimeUnit.MILLISECONDS) : null;
+    }
+
+    /**
+     * Tells whether an exception, possibly wrapped by remoting, comes from a command run without forking cvs
+     * that has been aborted for timing out.
+     */
+    static boolean isTimeout(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static synchronized ScheduledExecutorService getKiller() {
+        if (killer == null) {
+            killer = Executors.newSingleThreadScheduledExecutor(
+                new ExceptionCatchingThreadFactory(new DaemonThreadFactory()));
+        }
+        return killer;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessTimeout.class.getName());
+}
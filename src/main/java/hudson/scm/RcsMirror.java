@@ -0,0 +1,321 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.scm.cvs.Messages;
+import hudson.util.ArgumentListBuilder;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Per-node read-only copies of remote CVS repositories, which builds then access with <tt>:local:</tt>.
+ * <p/>
+ * For each configured CVSROOT, the RCS files of the modules in use and the <tt>CVSROOT</tt> administrative
+ * directory are copied with <tt>rsync</tt> under <tt>cvs-rcs-mirror</tt> in the root directory of the node.
+ * <tt>rsync</tt> only transfers the files whose size or modification time changed, so checkouts, updates and
+ * <tt>cvs log</tt> become local disk reads, at the cost of one incremental sync per build.
+ * <p/>
+ * The mirror is never written to by design: tags are still applied to the original repository.
+ */
+final class RcsMirror {
+    /**
+     * The rsync executable.
+     */
+    public static String RSYNC = System.getProperty(RcsMirror.class.getName() + ".rsync", "rsync");
+
+    /**
+     * Seconds during which a repository synced for one build is used as is by the next ones.
+     */
+    public static int SYNC_INTERVAL = Integer.getInteger(RcsMirror.class.getName() + ".syncInterval", 30);
+
+    /**
+     * Same as {@link CVSSCM}'s, so that mirrors don't depend on the password.
+     */
+    private static final Pattern PSERVER_CVSROOT_WITH_PASSWORD = Pattern.compile("(:pserver:[^@:]+):[^@:]+(@.+)");
+
+    /**
+     * Locks of the repositories being synced, keyed by node and repository.
+     */
+    private static final Map<String, ReentrantLock> LOCKS = new HashMap<String, ReentrantLock>();
+
+    /**
+     * Last time each directory of a repository was synced, keyed by node, repository and directory.
+     */
+    private static final Map<String, Long> LAST_SYNC = new HashMap<String, Long>();
+
+    private final String nodeName;
+    private final FilePath dir;
+    private final Map<String, String> sources;
+
+    RcsMirror(String nodeName, FilePath dir, Map<String, String> sources) {
+        this.nodeName = nodeName;
+        this.dir = dir;
+        this.sources = sources;
+    }
+
+    /**
+     * Returns the mirror of the given node.
+     *
+     * @param sources configured CVSROOTs to the rsync sources of their repositories.
+     * @return null if no repository is mirrored or the node is offline.
+     */
+    static RcsMirror of(Node node, Map<String, String> sources) {
+        if (node == null || sources.isEmpty()) {
+            return null;
+        }
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            return null;
+        }
+        return new RcsMirror(node.getNodeName(), root.child("cvs-rcs-mirror"), sources);
+    }
+
+    /**
+     * Parses the mirror configuration, one "CVSROOT rsync-source" pair per line.
+     * Empty lines and lines starting with '#' are ignored.
+     *
+     * @return the CVSROOTs, without password, to their rsync sources.
+     */
+    static Map<String, String> parse(String text) throws IOException {
+        Map<String, String> r = new LinkedHashMap<String, String>();
+        if (text == null) {
+            return r;
+        }
+        BufferedReader in = new BufferedReader(new StringReader(text));
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] tokens = line.split("\\s+");
+            if (tokens.length != 2) {
+                throw new IOException("Expected a CVSROOT and an rsync source: " + line);
+            }
+            r.put(normalize(tokens[0]), tokens[1]);
+        }
+        return r;
+    }
+
+    /**
+     * Returns the rsync source of the repository of the given CVSROOT, or null if it isn't mirrored.
+     */
+    static String getSource(Map<String, String> sources, String cvsroot) {
+        return sources.get(normalize(cvsroot));
+    }
+
+    /**
+     * Returns the CVSROOT a mirrored repository has been copied from.
+     *
+     * @param cvsroot CVSROOT, possibly of a mirror.
+     * @return {@code cvsroot} itself if it isn't the CVSROOT of a mirror.
+     */
+    static String getOriginalRoot(Map<String, String> sources, String cvsroot) {
+        if (cvsroot.startsWith(":local:")) {
+            for (String root : sources.keySet()) {
+                if (cvsroot.endsWith('/' + getName(root)) || cvsroot.endsWith('\\' + getName(root))) {
+                    return root;
+                }
+            }
+        }
+        return cvsroot;
+    }
+
+    /**
+     * Returns the location with its CVSROOT pointed at the mirror of its repository,
+     * or the location itself if its repository isn't mirrored.
+     */
+    ModuleLocation getLocation(ModuleLocation location) {
+        if (getSource(sources, location.getCvsroot()) == null) {
+            return location;
+        }
+        return new Location(location, ":local:" + getRepository(location.getCvsroot()).getRemote());
+    }
+
+    FilePath getRepository(String cvsroot) {
+        return dir.child(getName(normalize(cvsroot)));
+    }
+
+    /**
+     * Brings the mirror of the repository of the given location up to date, unless it has been synced
+     * in the last {@link #SYNC_INTERVAL} seconds.
+     *
+     * If the sync fails, the mirror is used as of its last sync, so that workspaces checked out from it keep
+     * pointing at the same CVSROOT, and the next build tries again.
+     *
+     * @param rsh remote shell used to reach the repository, or null for rsync's default.
+     * @return true if the mirror can be used, false if the location isn't mirrored.
+     * @throws AbortException if the sync failed and the mirror doesn't have the modules of the location yet.
+     */
+    boolean sync(ModuleLocation location, String rsh, Launcher launcher, TaskListener listener)
+        throws IOException, InterruptedException {
+        String source = getSource(sources, location.getCvsroot());
+        if (source == null) {
+            return false;
+        }
+        FilePath repository = getRepository(location.getCvsroot());
+
+        // the top-level directories of the modules, which also covers file modules like "foo/bar.txt"
+        Set<String> dirs = new TreeSet<String>();
+        dirs.add("CVSROOT");
+        for (String module : location.getNormalizedModules()) {
+            int slash = module.indexOf('/');
+            dirs.add(slash < 0 ? module : module.substring(0, slash));
+        }
+
+        String key = nodeName + '/' + repository.getName();
+        ReentrantLock lock = getLock(key);
+        lock.lockInterruptibly();
+        try {
+            ArgumentListBuilder cmd = new ArgumentListBuilder();
+            // -t keeps the modification times, which together with the sizes is what rsync compares
+            cmd.add(RSYNC, "-rltR", "--delete", "--exclude=#cvs.*", "--exclude=CVSROOT/history");
+            if (rsh != null) {
+                cmd.add("-e", rsh);
+            }
+            boolean stale = false;
+            long now = System.currentTimeMillis();
+            for (String d : dirs) {
+                if (isStale(key + '/' + d, now)) {
+                    cmd.add(source + "/./" + d);
+                    stale = true;
+                }
+            }
+            if (!stale) {
+                return true;
+            }
+            cmd.add(repository.getRemote() + '/');
+            repository.mkdirs();
+            listener.getLogger().println(Messages.CVSSCM_SyncingRcsMirror(source, repository.getRemote()));
+            int r = launcher.launch().cmds(cmd).stdout(listener).pwd(repository).join();
+            if (r != 0) {
+                for (String d : dirs) {
+                    if (!repository.child(d).exists()) {
+                        throw new AbortException(Messages.CVSSCM_RcsMirrorUnavailable(source, r));
+                    }
+                }
+                listener.error(Messages.CVSSCM_RcsMirrorSyncFailed(source, r));
+                return true;
+            }
+            synchronized (LAST_SYNC) {
+                for (String d : dirs) {
+                    LAST_SYNC.put(key + '/' + d, now);
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isStale(String key, long now) {
+        synchronized (LAST_SYNC) {
+            Long last = LAST_SYNC.get(key);
+            return last == null || now - last > TimeUnit.SECONDS.toMillis(SYNC_INTERVAL);
+        }
+    }
+
+    private static ReentrantLock getLock(String key) {
+        synchronized (LOCKS) {
+            ReentrantLock lock = LOCKS.get(key);
+            if (lock == null) {
+                lock = new ReentrantLock();
+                LOCKS.put(key, lock);
+            }
+            return lock;
+        }
+    }
+
+    private static String normalize(String cvsroot) {
+        Matcher m = PSERVER_CVSROOT_WITH_PASSWORD.matcher(cvsroot);
+        return m.matches() ? m.group(1) + m.group(2) : cvsroot;
+    }
+
+    /**
+     * Returns the name of the directory that holds the mirror of the given repository.
+     */
+    private static String getName(String normalizedRoot) {
+        try {
+            return ControlFileStore.hash(normalizedRoot.getBytes("UTF-8")).substring(0, 16);
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e); // UTF-8 is mandatory on every JRE
+        }
+    }
+
+    /**
+     * A location whose repository is accessed through the mirror.
+     */
+    static final class Location implements ModuleLocation {
+        private final ModuleLocation location;
+        private final String cvsroot;
+
+        Location(ModuleLocation location, String cvsroot) {
+            this.location = location;
+            this.cvsroot = cvsroot;
+        }
+
+        public String getCvsroot() {
+            return cvsroot;
+        }
+
+        public String getModule() {
+            return location.getModule();
+        }
+
+        public String getBranch() {
+            return location.getBranch();
+        }
+
+        public boolean isTag() {
+            return location.isTag();
+        }
+
+        public String getLocalDir() {
+            return location.getLocalDir();
+        }
+
+        public String[] getNormalizedModules() {
+            return location.getNormalizedModules();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
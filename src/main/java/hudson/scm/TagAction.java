@@ -42,9 +42,14 @@ import hudson.util.ArgumentListBuilder;
 import hudson.util.FormValidation;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import javax.servlet.ServletException;
 import org.apache.tools.ant.taskdefs.Expand;
 import org.kohsuke.stapler.QueryParameter;
@@ -70,11 +75,43 @@ public class TagAction extends AbstractScmTagAction implements Describable<TagAc
      */
     private volatile String tagName;
 
+    /**
+     * Completes when the workspace archive and revisions of the build have been written.
+     * Null once the build has been reloaded, as the archive is complete by then.
+     */
+    private transient volatile Future<?> archiving;
+
     public TagAction(AbstractBuild build, CVSSCM scmInstance) {
         super(build);
         this.scmInstance = scmInstance;
     }
 
+    void setArchiving(Future<?> archiving) {
+        this.archiving = archiving;
+    }
+
+    /**
+     * Waits for the workspace archive of the build to be written, if it's still in progress.
+     *
+     * @return false if archiving failed, which has been reported to the listener.
+     */
+    boolean waitForArchive(TaskListener listener) throws InterruptedException {
+        Future<?> f = archiving;
+        if (f == null) {
+            return true;
+        }
+        if (!f.isDone()) {
+            listener.getLogger().println(Messages.CVSSCM_WaitingForWorkspaceArchive(build));
+        }
+        try {
+            f.get();
+            return true;
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace(listener.error(Messages.CVSSCM_WorkspaceArchiveFailed(build)));
+            return false;
+        }
+    }
+
     public String getIconFileName() {
         if(tagName == null && !build.getParent().getACL().hasPermission(SCM.TAG)) {
             return null;
@@ -248,18 +285,126 @@ public class TagAction extends AbstractScmTagAction implements Describable<TagAc
      * Performs tagging.
      */
     public void perform(String tagName, TaskListener listener) {
-        File destdir = null;
+        TagExecutor.Plan plan = prepare(tagName, listener);
+        if (plan == null) {
+            return;
+        }
+        try {
+            new TagExecutor(listener).execute(Collections.singletonList(plan));
+        } catch (InterruptedException e) {
+            e.printStackTrace(listener.fatalError(e.getMessage()));
+        }
+    }
+
+    /**
+     * Works out the CVS commands that tag this build.
+     * <p/>
+     * Builds that recorded the revisions of their workspace files are tagged with {@code cvs rtag},
+     * older builds by expanding the workspace archive and running {@code cvs tag} in it.
+     *
+     * @return null if the tagging can't be done, which has been reported to the listener.
+     */
+    TagExecutor.Plan prepare(String tagName, TaskListener listener) {
         try {
-            destdir = Util.createTempDir();
+            if (!waitForArchive(listener)) {
+                return null;
+            }
+            if (WorkspaceRevisions.getFile(build).exists()) {
+                WorkspaceRevisions revisions = null;
+                try {
+                    revisions = WorkspaceRevisions.load(build);
+                } catch (IOException e) {
+                    // e.g. the manifest this one is a delta against is gone. tag it the old way
+                    e.printStackTrace(listener.error(e.getMessage()));
+                }
+                // nothing recorded happens if the workspace was checked out by an older client. tag it the old way
+                if (revisions != null && !revisions.isEmpty()) {
+                    return prepareFromRevisions(tagName, revisions, listener);
+                }
+            }
+            return prepareFromArchive(tagName, listener);
+        } catch(Throwable e) {
+            e.printStackTrace(listener.fatalError(e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Tags the recorded revisions with {@code cvs rtag}, one command per revision and batch of files.
+     */
+    private TagExecutor.Plan prepareFromRevisions(final String tagName, WorkspaceRevisions revisions,
+                                                  TaskListener listener) {
+        listener.getLogger().println(Messages.CVSSCM_TaggingRecordedRevisions(revisions.size()));
+        TagExecutor.Plan plan = new TagExecutor.Plan() {
+            void completed(boolean success, TaskListener listener) throws IOException {
+                if (success) {
+                    onTagCompleted(tagName);
+                    build.save();
+                }
+            }
+        };
+        final FilePath dir = new FilePath(build.getRootDir());
+        Map<String, String> mirrors = scmInstance.getDescriptor().getRcsMirrorSources();
+        for (final String recordedRoot : revisions.getRoots()) {
+            // tag the repository the mirror has been copied from
+            final String root = RcsMirror.getOriginalRoot(mirrors, recordedRoot);
+            for (Map.Entry<String, List<String>> e
+                : WorkspaceRevisions.groupByRevision(revisions.getRevisions(recordedRoot)).entrySet()) {
+                List<String> paths = e.getValue();
+                for (int i = 0; i < paths.size(); i += RTAG_BATCH_SIZE) {
+                    final ArgumentListBuilder cmd = new ArgumentListBuilder();
+                    cmd.add(scmInstance.getDescriptor().getCvsExeOrDefault(), "-d", root, "rtag",
+                        "-r", e.getKey(), tagName);
+                    List<String> batch = paths.subList(i, Math.min(i + RTAG_BATCH_SIZE, paths.size()));
+                    cmd.add(batch);
+                    plan.commands.add(new TagExecutor.Command(root, build + " " + e.getKey() + " " + batch.get(0)
+                        + (batch.size() > 1 ? " (+" + (batch.size() - 1) + ")" : "")) {
+                        boolean run(TaskListener listener) throws IOException, InterruptedException {
+                            if (!scmInstance.run(new Launcher.LocalLauncher(listener), cmd, listener, dir)) {
+                                listener.getLogger().println(Messages.CVSSCM_TaggingFailed());
+                                return false;
+                            }
+                            return true;
+                        }
+                    });
+                }
+            }
+        }
+        return plan;
+    }
 
-            // unzip the archive
+    /**
+     * Tags from the archived CVS control files, for builds that didn't record their revisions.
+     */
+    private TagExecutor.Plan prepareFromArchive(final String tagName, TaskListener listener) throws IOException {
+        final File destdir = Util.createTempDir();
+        TagExecutor.Plan plan = new TagExecutor.Plan() {
+            void completed(boolean success, TaskListener listener) throws IOException {
+                try {
+                    if (success) {
+                        onTagCompleted(tagName);
+                        build.save();
+                    }
+                } finally {
+                    listener.getLogger().println("cleaning up " + destdir);
+                    Util.deleteRecursive(destdir);
+                }
+            }
+        };
+        try {
             listener.getLogger().println(hudson.scm.cvs.Messages.CVSSCM_ExpandingWorkspaceArchive(destdir));
-            Expand e = new Expand();
-            e.setProject(new org.apache.tools.ant.Project());
-            e.setDest(destdir);
-            e.setSrc(CVSSCM.getArchiveFile(build));
-            e.setTaskType("unzip");
-            e.execute();
+            File manifest = ControlFileStore.getManifestFile(build);
+            if (manifest.exists()) {
+                ControlFileStore.of(build.getProject()).extract(ControlFileStore.readManifest(manifest), destdir);
+            } else {
+                // unzip the archive of a build from before the store
+                Expand e = new Expand();
+                e.setProject(new org.apache.tools.ant.Project());
+                e.setDest(destdir);
+                e.setSrc(CVSSCM.getArchiveFile(build));
+                e.setTaskType("unzip");
+                e.execute();
+            }
 
             // run cvs tag command
             listener.getLogger().println(hudson.scm.cvs.Messages.CVSSCM_TaggingWorkspace());
@@ -267,42 +412,49 @@ public class TagAction extends AbstractScmTagAction implements Describable<TagAc
                 @SuppressWarnings("unchecked")
                 ModuleLocation parametrizedLocation = new ParametrizedModuleLocationImpl(moduleLocation,
                     build.getBuildVariables());
-                for (String module : parametrizedLocation.getNormalizedModules()) {
-                    String moduleLocalDir =
+                for (final String module : parametrizedLocation.getNormalizedModules()) {
+                    final String moduleLocalDir =
                         ModuleLocationImpl.DEFAULT_LOCAL_DIR.equals(parametrizedLocation.getLocalDir())
                             ? ModuleLocationImpl.TAGGING_SUBDIR : parametrizedLocation.getLocalDir();
-                    if (!createTag(tagName, listener, destdir, moduleLocalDir, module,
-                        scmInstance.isFlatten())) {
-                        return;
-                    }
+                    final String cvsroot = parametrizedLocation.getCvsroot();
+                    // the workspace of a mirrored repository points at the mirror
+                    final boolean mirrored = RcsMirror.getSource(scmInstance.getDescriptor().getRcsMirrorSources(),
+                        cvsroot) != null;
+                    plan.commands.add(new TagExecutor.Command(cvsroot, build + " " + module) {
+                        boolean run(TaskListener listener) throws IOException, InterruptedException {
+                            return createTag(tagName, listener, destdir, moduleLocalDir, module,
+                                scmInstance.isFlatten(), cvsroot, mirrored);
+                        }
+                    });
                 }
             }
-
-            // completed successfully
-            onTagCompleted(tagName);
-            build.save();
-        } catch(Throwable e) {
-            e.printStackTrace(listener.fatalError(e.getMessage()));
-        } finally {
-            try {
-                if(destdir != null) {
-                    listener.getLogger().println("cleaning up " + destdir);
-                    Util.deleteRecursive(destdir);
-                }
-            } catch(IOException e) {
-                e.printStackTrace(listener.fatalError(e.getMessage()));
-            }
+            return plan;
+        } catch (IOException e) {
+            Util.deleteRecursive(destdir);
+            throw e;
+        } catch (RuntimeException e) {
+            Util.deleteRecursive(destdir);
+            throw e;
         }
     }
 
+    /**
+     * @param cvsroot the repository of the module.
+     * @param override true to override the CVSROOT recorded in the control files with {@code cvsroot}.
+     */
     private boolean createTag(String tagName, TaskListener listener, File destdir, String moduleLocalDir,
-                              String module, boolean isFlatten) throws IOException, InterruptedException {
+                              String module, boolean isFlatten, String cvsroot, boolean override)
+        throws IOException, InterruptedException {
         FilePath path = (isFlatten ? new FilePath(destdir).child(module)
             : new FilePath(destdir).child(moduleLocalDir).child(module));
         boolean isDir = path.isDirectory();
 
         ArgumentListBuilder cmd = new ArgumentListBuilder();
-        cmd.add(scmInstance.getDescriptor().getCvsExeOrDefault(), "tag");
+        cmd.add(scmInstance.getDescriptor().getCvsExeOrDefault());
+        if (override) {
+            cmd.add("-d", cvsroot);
+        }
+        cmd.add("tag");
         if(isDir) {
             cmd.add("-R");
         }
@@ -312,7 +464,9 @@ public class TagAction extends AbstractScmTagAction implements Describable<TagAc
             path = path.getParent();
         }
 
-        if(!scmInstance.run(new Launcher.LocalLauncher(listener), cmd, listener, path)) {
+        // without -d, the command doesn't name its repository for the throttle
+        if(!scmInstance.run(cvsroot, ProcessTimeout.Operation.TAG, new Launcher.LocalLauncher(listener), cmd,
+            listener, path)) {
             listener.getLogger().println(Messages.CVSSCM_TaggingFailed());
             return false;
         }
@@ -331,6 +485,11 @@ public class TagAction extends AbstractScmTagAction implements Describable<TagAc
         this.workerThread = null;
     }
 
+    /**
+     * Maximum number of files passed to a single {@code cvs rtag}, to stay within command line limits.
+     */
+    private static final int RTAG_BATCH_SIZE = 100;
+
     public Descriptor<TagAction> getDescriptor() {
         return Hudson.getInstance().getDescriptorOrDie(TagAction.class);
     }
@@ -356,6 +515,7 @@ public class TagAction extends AbstractScmTagAction implements Describable<TagAc
         }
 
         protected void perform(TaskListener listener) {
+            List<TagExecutor.Plan> plans = new ArrayList<TagExecutor.Plan>();
             for(Map.Entry<AbstractBuild, String> e : tagSet.entrySet()) {
                 TagAction ta = e.getKey().getAction(TagAction.class);
                 if(ta == null) {
@@ -368,9 +528,19 @@ public class TagAction extends AbstractScmTagAction implements Describable<TagAc
                 } catch(IOException x) {
                     x.printStackTrace(listener.error(Messages.CVSSCM_FailedToMarkForKeep(e.getKey())));
                 }
-                ta.perform(e.getValue(), listener);
+                TagExecutor.Plan plan = ta.prepare(e.getValue(), listener);
+                if(plan != null) {
+                    plans.add(plan);
+                }
                 listener.getLogger().println();
             }
+
+            // tag all the builds at once, so that modules and upstream builds are tagged in parallel
+            try {
+                new TagExecutor(listener).execute(plans);
+            } catch(InterruptedException x) {
+                x.printStackTrace(listener.fatalError(x.getMessage()));
+            }
         }
     }
 
@@ -0,0 +1,267 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import hudson.model.TaskListener;
+import hudson.scm.cvs.Messages;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the CVS commands that tag a set of builds on a bounded thread pool.
+ * <p/>
+ * Commands of all the builds are run concurrently, with at most {@link #THREADS} of them in flight
+ * and at most {@link #THREADS_PER_ROOT} against any one CVSROOT, so that tagging a release across
+ * many upstream projects doesn't hammer a single server. Commands wait in a queue per CVSROOT and are only
+ * handed to the pool once their CVSROOT has room, so that a busy CVSROOT doesn't hold the threads that the
+ * commands of the other ones could use. The output of each command is buffered and written to the task log
+ * in one piece when the command completes.
+ */
+final class TagExecutor {
+    /**
+     * Maximum number of CVS commands run at the same time.
+     */
+    public static int THREADS = Integer.getInteger(TagExecutor.class.getName() + ".threads", 4);
+
+    /**
+     * Maximum number of CVS commands run at the same time against the same CVSROOT.
+     */
+    public static int THREADS_PER_ROOT = Integer.getInteger(TagExecutor.class.getName() + ".threadsPerRoot", 2);
+
+    /**
+     * If true, the first failed command cancels the commands that haven't started yet.
+     * Otherwise the remaining commands still run, and only the builds whose commands all succeeded are marked as tagged.
+     */
+    public static boolean FAIL_FAST = Boolean.getBoolean(TagExecutor.class.getName() + ".failFast");
+
+    /**
+     * One CVS command that contributes to tagging a build.
+     */
+    static abstract class Command {
+        final String cvsroot;
+        final String description;
+
+        Command(String cvsroot, String description) {
+            this.cvsroot = cvsroot;
+            this.description = description;
+        }
+
+        /**
+         * Runs the command.
+         *
+         * @return false if the command failed, which has been reported to the listener.
+         */
+        abstract boolean run(TaskListener listener) throws IOException, InterruptedException;
+    }
+
+    /**
+     * The commands that tag one build.
+     */
+    static abstract class Plan {
+        final List<Command> commands = new ArrayList<Command>();
+
+        /**
+         * Called once all the commands have completed, or have been skipped.
+         *
+         * @param success true if all the commands succeeded.
+         */
+        abstract void completed(boolean success, TaskListener listener) throws IOException;
+    }
+
+    private final TaskListener listener;
+
+    /**
+     * Commands not handed to the pool yet, by CVSROOT.
+     */
+    private final Map<String, LinkedList<FutureTask<Boolean>>> queues =
+        new LinkedHashMap<String, LinkedList<FutureTask<Boolean>>>();
+
+    /**
+     * Number of commands handed to the pool, by CVSROOT.
+     */
+    private final Map<String, Integer> running = new HashMap<String, Integer>();
+
+    private ExecutorService pool;
+    private final AtomicBoolean failed = new AtomicBoolean();
+    private final AtomicInteger done = new AtomicInteger();
+    private int total;
+
+    TagExecutor(TaskListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Runs the commands of the given plans and waits for them to complete.
+     *
+     * @return true if all the commands succeeded.
+     */
+    boolean execute(List<Plan> plans) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        for (Plan plan : plans) {
+            total += plan.commands.size();
+        }
+
+        pool = Executors.newFixedThreadPool(Math.max(1, THREADS),
+            new ExceptionCatchingThreadFactory(new DaemonThreadFactory()));
+        try {
+            Map<Plan, List<Future<Boolean>>> futures = new HashMap<Plan, List<Future<Boolean>>>();
+            for (Plan plan : plans) {
+                List<Future<Boolean>> f = new ArrayList<Future<Boolean>>();
+                for (Command command : plan.commands) {
+                    f.add(enqueue(command));
+                }
+                futures.put(plan, f);
+            }
+            dispatch();
+
+            boolean success = true;
+            for (Plan plan : plans) {
+                boolean planSuccess = true;
+                for (Future<Boolean> f : futures.get(plan)) {
+                    try {
+                        planSuccess &= f.get();
+                    } catch (ExecutionException e) {
+                        e.getCause().printStackTrace(listener.error(e.getCause().getMessage()));
+                        planSuccess = false;
+                    }
+                }
+                try {
+                    plan.completed(planSuccess, listener);
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error(e.getMessage()));
+                    planSuccess = false;
+                }
+                success &= planSuccess;
+            }
+
+            listener.getLogger().println(Messages.CVSSCM_TaggingCompleted(done.get(), total,
+                (System.currentTimeMillis() - start) / 1000));
+            return success;
+        } finally {
+            // only interruption can leave commands behind at this point
+            pool.shutdownNow();
+        }
+    }
+
+    private synchronized Future<Boolean> enqueue(Command command) {
+        LinkedList<FutureTask<Boolean>> queue = queues.get(command.cvsroot);
+        if (queue == null) {
+            queue = new LinkedList<FutureTask<Boolean>>();
+            queues.put(command.cvsroot, queue);
+        }
+        FutureTask<Boolean> task = new FutureTask<Boolean>(wrap(command));
+        queue.add(task);
+        return task;
+    }
+
+    /**
+     * Hands the pool the queued commands of the CVSROOTs that have room for more, taking one CVSROOT after
+     * the other.
+     */
+    private synchronized void dispatch() {
+        int limit = Math.max(1, THREADS_PER_ROOT);
+        boolean more = true;
+        while (more) {
+            more = false;
+            for (Map.Entry<String, LinkedList<FutureTask<Boolean>>> e : queues.entrySet()) {
+                int n = getRunning(e.getKey());
+                if (n < limit && !e.getValue().isEmpty()) {
+                    running.put(e.getKey(), n + 1);
+                    pool.execute(e.getValue().removeFirst());
+                    more = true;
+                }
+            }
+        }
+    }
+
+    private synchronized void completed(String cvsroot) {
+        running.put(cvsroot, getRunning(cvsroot) - 1);
+        if (!pool.isShutdown()) {
+            dispatch();
+        }
+    }
+
+    private int getRunning(String cvsroot) {
+        Integer n = running.get(cvsroot);
+        return n == null ? 0 : n;
+    }
+
+    private Callable<Boolean> wrap(final Command command) {
+        return new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                try {
+                    if (FAIL_FAST && failed.get()) {
+                        log(Messages.CVSSCM_TaggingSkipped(command.description), null);
+                        return false;
+                    }
+
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    boolean success = false;
+                    try {
+                        success = command.run(new StreamTaskListener(out));
+                        return success;
+                    } finally {
+                        if (!success) {
+                            failed.set(true);
+                        }
+                        log(Messages.CVSSCM_TaggingProgress(done.incrementAndGet(), total, command.description),
+                            out);
+                    }
+                } finally {
+                    completed(command.cvsroot);
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes a progress line followed by the buffered output of a command, without interleaving with other commands.
+     */
+    private void log(String message, ByteArrayOutputStream out) {
+        synchronized (listener) {
+            listener.getLogger().println(message);
+            if (out != null) {
+                listener.getLogger().write(out.toByteArray(), 0, out.size());
+            }
+        }
+    }
+}
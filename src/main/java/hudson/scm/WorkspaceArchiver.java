@@ -0,0 +1,311 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
+import hudson.util.IOException2;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Lists the CVS control files of a workspace with their hashes, to support later tagging,
+ * and records the revisions of the workspace files while at it.
+ * <p/>
+ * Directories are scanned on a small thread pool, and each control file is read once, both to be hashed
+ * and to have its entries parsed. Only the hashes go back to the master, which then fetches the contents
+ * that its {@link ControlFileStore} doesn't have yet with {@link ReadFiles}.
+ */
+final class WorkspaceArchiver implements FileCallable<WorkspaceArchiver.Result> {
+    /**
+     * Number of threads used to scan the workspace.
+     */
+    public static int THREADS = Integer.getInteger(WorkspaceArchiver.class.getName() + ".threads", 4);
+
+    /**
+     * Directories to archive, relative to the workspace.
+     */
+    private final String[] dirs;
+
+    /**
+     * Path in the archive of each of {@link #dirs}.
+     */
+    private final String[] archivePaths;
+
+    /**
+     * @param dirs directories to archive, relative to the workspace.
+     * @param archivePaths path in the archive of each directory.
+     */
+    WorkspaceArchiver(String[] dirs, String[] archivePaths) {
+        this.dirs = dirs;
+        this.archivePaths = archivePaths;
+    }
+
+    /**
+     * What has been archived.
+     */
+    static final class Result implements Serializable {
+        final WorkspaceRevisions revisions = new WorkspaceRevisions();
+
+        /**
+         * Paths of the control files in the archive to their hashes.
+         */
+        final SortedMap<String, String> manifest = new TreeMap<String, String>();
+
+        /**
+         * Paths of the control files in the archive to their paths relative to the workspace.
+         */
+        final Map<String, String> workspacePaths = new HashMap<String, String>();
+
+        /**
+         * Number of control files that weren't in the store yet, set by {@link ControlFileStore#fetchMissing}.
+         */
+        int newFiles;
+
+        /**
+         * Number of bytes fetched from the workspace, set by {@link ControlFileStore#fetchMissing}.
+         */
+        long bytes;
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Reads files of the workspace, for the master to add them to its {@link ControlFileStore}.
+     */
+    static final class ReadFiles implements FileCallable<List<byte[]>> {
+        private final List<String> paths;
+
+        ReadFiles(List<String> paths) {
+            this.paths = new ArrayList<String>(paths);
+        }
+
+        public List<byte[]> invoke(File ws, VirtualChannel channel) throws IOException {
+            List<byte[]> r = new ArrayList<byte[]>(paths.size());
+            for (String path : paths) {
+                r.add(FileUtils.readFileToByteArray(new File(ws, path)));
+            }
+            return r;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * One scanned directory.
+     */
+    private static final class Scan {
+        /**
+         * Path in the archive of the module location the directory belongs to.
+         */
+        final String location;
+        final String archivePath;
+        final String workspacePath;
+        final SortedMap<String, String> controlFiles = new TreeMap<String, String>();
+        final Map<String, WorkspaceRevisions.Entry> fileRevisions = new HashMap<String, WorkspaceRevisions.Entry>();
+        final List<Future<Scan>> children = new ArrayList<Future<Scan>>();
+        String root;
+        String repository;
+
+        Scan(String location, String archivePath, String workspacePath) {
+            this.location = location;
+            this.archivePath = archivePath;
+            this.workspacePath = workspacePath;
+        }
+    }
+
+    public Result invoke(File ws, VirtualChannel channel) throws IOException {
+        Result r = new Result();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, THREADS),
+            new ExceptionCatchingThreadFactory(new DaemonThreadFactory()));
+        try {
+            for (int i = 0; i < dirs.length; i++) {
+                File dir = new File(ws, dirs[i]);
+                if (!dir.exists()) {
+                    // directory doesn't exist. This happens if a directory that was checked out
+                    // didn't include any file.
+                    continue;
+                }
+                collect(submit(pool, archivePaths[i], dir, archivePaths[i], dirs[i], true), r);
+            }
+        } catch (InterruptedException e) {
+            throw (InterruptedIOException) new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException2(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return r;
+    }
+
+    private Future<Scan> submit(final ExecutorService pool, final String location, final File dir,
+                                final String archivePath, final String workspacePath, final boolean isRoot) {
+        return pool.submit(new Callable<Scan>() {
+            public Scan call() throws IOException {
+                return scan(pool, location, dir, archivePath, workspacePath, isRoot);
+            }
+        });
+    }
+
+    /**
+     * Reads the control files of {@code dir} and submits the scan of its CVS-controlled subdirectories.
+     */
+    private Scan scan(ExecutorService pool, String location, File dir, String archivePath, String workspacePath,
+                      boolean isRoot) throws IOException {
+        Scan s = new Scan(location, archivePath, workspacePath);
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        File[] cvsFiles = new File(dir, "CVS").listFiles();
+        if (cvsFiles != null) {
+            for (File f : cvsFiles) {
+                if (f.isFile()) {
+                    byte[] data = FileUtils.readFileToByteArray(f);
+                    contents.put(f.getName(), data);
+                    s.controlFiles.put(f.getName(), ControlFileStore.hash(data));
+                }
+            }
+        }
+
+        Set<String> knownFiles = new HashSet<String>();
+        // see http://www.monkey.org/openbsd/archive/misc/9607/msg00056.html for what Entries.Log is for
+        parseEntries(contents.get("Entries"), knownFiles, s.fileRevisions);
+        parseEntries(contents.get("Entries.Log"), knownFiles, s.fileRevisions);
+        parseEntries(contents.get("Entries.Extra"), knownFiles, null);
+        boolean hasCVSdirs = !knownFiles.isEmpty();
+        s.root = firstLine(contents.get("Root"));
+        s.repository = firstLine(contents.get("Repository"));
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            if (isRoot) {
+                throw new IOException(
+                    "No such directory exists. Did you specify the correct branch? Perhaps you specified a tag: "
+                        + dir);
+            } else {
+                throw new IOException(
+                    "No such directory exists. Looks like someone is modifying the workspace concurrently: " + dir);
+            }
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            if (!f.isDirectory() || f.getName().equals("CVS")) {
+                continue;
+            }
+            if (hasCVSdirs && !knownFiles.contains(f.getName())) {
+                // not controlled in CVS. Skip.
+                continue;
+            }
+            s.children.add(submit(pool, location, f, archivePath + '/' + f.getName(),
+                child(workspacePath, f.getName()), false));
+        }
+        return s;
+    }
+
+    private static String child(String parent, String name) {
+        return parent.length() == 0 ? name : parent + '/' + name;
+    }
+
+    /**
+     * Adds the scanned directory and then its subdirectories to the result, as their scans complete.
+     */
+    private void collect(Future<Scan> future, Result r) throws InterruptedException, ExecutionException {
+        Scan s = future.get();
+        if (!s.fileRevisions.isEmpty() && s.root != null && s.repository != null) {
+            r.revisions.addDirectory(s.location, s.root, s.repository, s.fileRevisions);
+        }
+        for (Map.Entry<String, String> e : s.controlFiles.entrySet()) {
+            String path = s.archivePath + "/CVS/" + e.getKey();
+            r.manifest.put(path, e.getValue());
+            r.workspacePaths.put(path, child(s.workspacePath, "CVS/" + e.getKey()));
+        }
+        for (Future<Scan> child : s.children) {
+            collect(child, r);
+        }
+    }
+
+    /**
+     * Parses CVS/Entries, CVS/Entries.Log or CVS/Entries.Extra and adds file/directory names to the list.
+     *
+     * @param fileRevisions if non-null, receives the revisions and sticky tags of the files.
+     */
+    private static void parseEntries(byte[] data, Set<String> knownFiles,
+                                     Map<String, WorkspaceRevisions.Entry> fileRevisions)
+        throws IOException {
+        if (data == null) {
+            return;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data)));
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] tokens = line.split("/+");
+            if (tokens.length < 2) {
+                continue;   // invalid format
+            }
+            knownFiles.add(tokens[1]);
+
+            if (fileRevisions != null) {
+                if (line.startsWith("R ")) {
+                    fileRevisions.remove(tokens[1]);
+                } else {
+                    WorkspaceRevisions.parseEntry(line.startsWith("A ") ? line.substring(2) : line, fileRevisions);
+                }
+            }
+        }
+    }
+
+    private static String firstLine(byte[] data) throws IOException {
+        if (data == null) {
+            return null;
+        }
+        String line = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data))).readLine();
+        return line == null || line.trim().length() == 0 ? null : line.trim();
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,233 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
+import hudson.util.IOException2;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Points an existing workspace at a CVSROOT that names the same repository differently,
+ * so that it can be updated instead of checked out again.
+ * <p/>
+ * A CVSROOT that only differs from the one in <tt>CVS/Root</tt> by its password, or by a host alias that resolves
+ * to the same address, still designates the same repository. In that case the <tt>CVS/Root</tt> files of the
+ * workspace are rewritten in place, on a small thread pool since large workspaces have thousands of them.
+ * Any other difference can't be fixed without a new checkout.
+ * <p/>
+ * Branch and tag changes need no rewriting; <tt>cvs update -r</tt> takes care of them.
+ */
+final class WorkspaceRetargeter implements FileCallable<String> {
+    /**
+     * Number of threads used to rewrite the control files.
+     */
+    public static int THREADS = Integer.getInteger(WorkspaceRetargeter.class.getName() + ".threads", 4);
+
+    /**
+     * <tt>:method:[user[:password]@]host:[port]/path</tt>
+     */
+    private static final Pattern REMOTE_CVSROOT = Pattern.compile(
+        ":([^:]+):(?:([^@:]+)(?::[^@]*)?@)?([^:@/]+):(\\d*)(/.*)");
+
+    /**
+     * Module directories to retarget, relative to the workspace.
+     */
+    private final String[] dirs;
+
+    private final String cvsroot;
+
+    /**
+     * @param dirs module directories to retarget, relative to the workspace.
+     * @param cvsroot CVSROOT the workspace should point at.
+     */
+    WorkspaceRetargeter(String[] dirs, String cvsroot) {
+        this.dirs = dirs;
+        this.cvsroot = cvsroot;
+    }
+
+    /**
+     * @return null if the workspace now points at the configured CVSROOT, or else the text explaining why
+     *         it can't be made to.
+     */
+    public String invoke(File ws, VirtualChannel channel) throws IOException {
+        List<File> modules = new ArrayList<File>();
+        Set<String> oldRoots = new HashSet<String>();
+        for (String d : dirs) {
+            File module = new File(ws, d);
+            // module is a file, like "foo/bar.txt". Then CVS information is "foo/CVS".
+            if (!module.isDirectory()) {
+                module = module.getParentFile();
+            }
+            File root = new File(module, "CVS/Root");
+            if (!root.exists()) {
+                return "No CVS dir in " + module;
+            }
+            String found = readRoot(root);
+            if (cvsroot.equals(found)) {
+                continue;
+            }
+            if (found == null || !isSameRepository(found, cvsroot)) {
+                return root + " content mismatch: expected " + cvsroot + " but found " + found;
+            }
+            modules.add(module);
+            oldRoots.add(found);
+        }
+        if (!modules.isEmpty()) {
+            rewrite(modules, oldRoots);
+        }
+        return null;
+    }
+
+    /**
+     * Rewrites the <tt>CVS/Root</tt> files of the given directory trees that contain one of the old roots.
+     */
+    private void rewrite(List<File> modules, Set<String> oldRoots) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, THREADS),
+            new ExceptionCatchingThreadFactory(new DaemonThreadFactory()));
+        try {
+            List<Future<List<Future<?>>>> pending = new ArrayList<Future<List<Future<?>>>>();
+            for (File module : modules) {
+                pending.add(submit(pool, module, oldRoots));
+            }
+            // directories are submitted as they are found, so wait for the whole tree
+            while (!pending.isEmpty()) {
+                List<Future<List<Future<?>>>> next = new ArrayList<Future<List<Future<?>>>>();
+                for (Future<List<Future<?>>> f : pending) {
+                    for (Future<?> child : f.get()) {
+                        next.add(cast(child));
+                    }
+                }
+                pending = next;
+            }
+        } catch (InterruptedException e) {
+            throw (InterruptedIOException) new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException2(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Future<List<Future<?>>> cast(Future<?> f) {
+        return (Future<List<Future<?>>>) f;
+    }
+
+    private Future<List<Future<?>>> submit(final ExecutorService pool, final File dir, final Set<String> oldRoots) {
+        return pool.submit(new Callable<List<Future<?>>>() {
+            public List<Future<?>> call() throws IOException {
+                File root = new File(dir, "CVS/Root");
+                if (root.exists() && oldRoots.contains(readRoot(root))) {
+                    FileUtils.writeStringToFile(root, cvsroot + '\n');
+                }
+                List<Future<?>> children = new ArrayList<Future<?>>();
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    Arrays.sort(files);
+                    for (File f : files) {
+                        if (f.isDirectory() && !f.getName().equals("CVS") && new File(f, "CVS").isDirectory()) {
+                            children.add(submit(pool, f, oldRoots));
+                        }
+                    }
+                }
+                return children;
+            }
+        });
+    }
+
+    private static String readRoot(File file) throws IOException {
+        BufferedReader r = new BufferedReader(new FileReader(file));
+        try {
+            String s = r.readLine();
+            return s == null ? null : s.trim();
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Returns true if both CVSROOTs designate the same repository, that is if they only differ
+     * by their password or by the name of the host.
+     */
+    static boolean isSameRepository(String a, String b) {
+        Matcher ma = REMOTE_CVSROOT.matcher(a);
+        Matcher mb = REMOTE_CVSROOT.matcher(b);
+        if (!ma.matches() || !mb.matches()) {
+            return false;   // local repositories have no aliases
+        }
+        for (int i : new int[]{1, 2, 4, 5}) {
+            String x = ma.group(i);
+            String y = mb.group(i);
+            if (x == null ? y != null : !x.equals(y)) {
+                return false;
+            }
+        }
+        return isSameHost(ma.group(3), mb.group(3));
+    }
+
+    private static boolean isSameHost(String a, String b) {
+        if (a.equalsIgnoreCase(b)) {
+            return true;
+        }
+        try {
+            Set<InetAddress> addresses = new HashSet<InetAddress>(Arrays.asList(InetAddress.getAllByName(a)));
+            for (InetAddress address : InetAddress.getAllByName(b)) {
+                if (addresses.contains(address)) {
+                    return true;
+                }
+            }
+        } catch (UnknownHostException e) {
+            // can't tell, so assume they're different
+        }
+        return false;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
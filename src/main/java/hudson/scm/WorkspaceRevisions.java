@@ -0,0 +1,490 @@
+package hudson.scm;
+
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Oracle Corporation, Kohsuke Kawaguchi, Anton Kozak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.util.AtomicFileWriter;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Manifest of the CVS-controlled files of a workspace, as recorded at the end of a checkout:
+ * the path of each file in the repository, its revision and its sticky tag, per module location.
+ * <p/>
+ * This is what {@link TagAction} tags from, with {@code cvs rtag}, so that the
+ * workspace doesn't need to be reconstructed just to tag a build.
+ * <p/>
+ * The manifest is written sorted, with each path sharing its prefix with the previous one,
+ * and as a delta against the manifest of the previous build when there is one. At most
+ * {@link #MAX_DELTA_DEPTH} deltas are chained before a full manifest is written again.
+ */
+public final class WorkspaceRevisions implements Serializable {
+    /**
+     * Maximum number of deltas to apply to get to a manifest.
+     */
+    static final int MAX_DELTA_DEPTH = 8;
+
+    private static final String HEADER = "# CVS workspace manifest v2";
+    private static final String BASE_PREFIX = "base ";
+    private static final String LOCATION_PREFIX = "location ";
+    private static final String ROOT_PREFIX = "root ";
+    private static final String REMOVED = "-";
+
+    /**
+     * A recorded file.
+     */
+    static final class Entry implements Serializable {
+        final String revision;
+
+        /**
+         * Sticky tag or date of the file, as found in CVS/Entries (e.g. "Tbranch"), or an empty string.
+         */
+        final String tag;
+
+        Entry(String revision, String tag) {
+            this.revision = revision;
+            this.tag = tag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry that = (Entry) o;
+            return revision.equals(that.revision) && tag.equals(that.tag);
+        }
+
+        @Override
+        public int hashCode() {
+            return revision.hashCode() * 31 + tag.hashCode();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Files of one module location from one CVSROOT.
+     */
+    static final class Section implements Serializable {
+        /**
+         * Path of the module location in the archive, see {@link WorkspaceArchiver}.
+         */
+        final String location;
+        final String cvsroot;
+
+        /**
+         * Paths in the repository to recorded files.
+         */
+        final SortedMap<String, Entry> files = new TreeMap<String, Entry>();
+
+        Section(String location, String cvsroot) {
+            this.location = location;
+            this.cvsroot = cvsroot;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private final SortedMap<String, Section> sections = new TreeMap<String, Section>();
+
+    /**
+     * Number of deltas this manifest was written or read as.
+     */
+    private int depth;
+
+    /**
+     * Records a file.
+     *
+     * @param location path of the module location in the archive.
+     * @param cvsroot CVSROOT of the file.
+     * @param path path of the file in the repository, relative to the CVSROOT.
+     * @param revision revision of the file in the workspace.
+     * @param tag sticky tag of the file as found in CVS/Entries, or an empty string.
+     */
+    public void add(String location, String cvsroot, String path, String revision, String tag) {
+        getSection(location, cvsroot).files.put(path, new Entry(revision, tag));
+    }
+
+    private Section getSection(String location, String cvsroot) {
+        String key = location + '\t' + cvsroot;
+        Section s = sections.get(key);
+        if (s == null) {
+            s = new Section(location, cvsroot);
+            sections.put(key, s);
+        }
+        return s;
+    }
+
+    Collection<Section> getSections() {
+        return Collections.unmodifiableCollection(sections.values());
+    }
+
+    /**
+     * Returns the CVSROOTs that files were recorded for.
+     */
+    public Iterable<String> getRoots() {
+        Set<String> roots = new TreeSet<String>();
+        for (Section s : sections.values()) {
+            roots.add(s.cvsroot);
+        }
+        return roots;
+    }
+
+    /**
+     * Returns the recorded files of the given CVSROOT, as a map from repository path to revision.
+     */
+    public Map<String, String> getRevisions(String cvsroot) {
+        Map<String, String> r = new TreeMap<String, String>();
+        for (Section s : sections.values()) {
+            if (s.cvsroot.equals(cvsroot)) {
+                for (Map.Entry<String, Entry> e : s.files.entrySet()) {
+                    r.put(e.getKey(), e.getValue().revision);
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Returns the number of recorded files.
+     */
+    public int size() {
+        int size = 0;
+        for (Section s : sections.values()) {
+            size += s.files.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return sections.isEmpty();
+    }
+
+    /**
+     * Records the files listed in a parsed CVS/Entries of a workspace directory.
+     *
+     * @param location path of the module location in the archive.
+     * @param cvsroot contents of CVS/Root of the directory.
+     * @param repository contents of CVS/Repository of the directory.
+     * @param entries file names to entries, as parsed by {@link #parseEntry(String, Map)}.
+     */
+    void addDirectory(String location, String cvsroot, String repository, Map<String, Entry> entries) {
+        String dir = getRepositoryPath(cvsroot, repository);
+        Section s = getSection(location, cvsroot);
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            s.files.put(dir.length() == 0 ? e.getKey() : dir + '/' + e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Writes the manifest of the given build, as a delta against the manifest of the previous build if possible.
+     */
+    void save(Run<?, ?> build) throws IOException {
+        WorkspaceRevisions base = null;
+        Run<?, ?> previous = build.getPreviousBuild();
+        if (previous != null && getFile(previous).exists()) {
+            try {
+                base = load(previous);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to load the manifest of " + previous + ", writing a full one", e);
+            }
+        }
+        if (base != null && (base.depth >= MAX_DELTA_DEPTH || !base.sections.keySet().equals(sections.keySet()))) {
+            base = null;
+        }
+        save(getFile(build), base, base != null ? previous.getNumber() : 0);
+    }
+
+    private void save(File file, WorkspaceRevisions base, int baseNumber) throws IOException {
+        AtomicFileWriter w = new AtomicFileWriter(file, "UTF-8");
+        try {
+            write(w, base, baseNumber);
+            w.commit();
+        } finally {
+            w.abort();
+        }
+    }
+
+    /**
+     * Writes the manifest.
+     *
+     * @param base if non-null, only the differences from this manifest are written.
+     * @param baseNumber number of the build {@code base} belongs to.
+     */
+    void write(Writer w, WorkspaceRevisions base, int baseNumber) {
+        PrintWriter pw = new PrintWriter(w);
+        pw.println(HEADER);
+        if (base != null) {
+            depth = base.depth + 1;
+            pw.println(BASE_PREFIX + baseNumber + ' ' + depth);
+        } else {
+            depth = 0;
+        }
+        for (Map.Entry<String, Section> e : sections.entrySet()) {
+            Section s = e.getValue();
+            SortedMap<String, Entry> baseFiles = base != null && base.sections.containsKey(e.getKey())
+                ? base.sections.get(e.getKey()).files : new TreeMap<String, Entry>();
+
+            Set<String> paths = new TreeSet<String>(s.files.keySet());
+            paths.addAll(baseFiles.keySet());
+            String previousPath = "";
+            boolean headerWritten = false;
+            for (String path : paths) {
+                Entry entry = s.files.get(path);
+                if (entry != null && entry.equals(baseFiles.get(path))) {
+                    continue;
+                }
+                if (!headerWritten) {
+                    pw.println(LOCATION_PREFIX + s.location);
+                    pw.println(ROOT_PREFIX + s.cvsroot);
+                    headerWritten = true;
+                }
+                int common = commonPrefix(previousPath, path);
+                pw.print(common + " " + path.substring(common) + '\t');
+                pw.println(entry == null ? REMOVED : entry.revision + '\t' + entry.tag);
+                previousPath = path;
+            }
+        }
+        pw.flush();
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Resolves the build number of a delta manifest's base to its manifest.
+     */
+    interface BaseResolver {
+        WorkspaceRevisions load(int number) throws IOException;
+    }
+
+    /**
+     * Reads a manifest written by {@link #write(Writer, WorkspaceRevisions, int)}.
+     */
+    static WorkspaceRevisions read(BufferedReader in, BaseResolver resolver) throws IOException {
+        if (!HEADER.equals(in.readLine())) {
+            throw new IOException("Not a workspace manifest");
+        }
+        WorkspaceRevisions r = new WorkspaceRevisions();
+        Section section = null;
+        String location = null;
+        String previousPath = "";
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith(BASE_PREFIX)) {
+                String[] tokens = line.substring(BASE_PREFIX.length()).split(" ");
+                WorkspaceRevisions base = resolver.load(Integer.parseInt(tokens[0]));
+                for (Section s : base.sections.values()) {
+                    r.getSection(s.location, s.cvsroot).files.putAll(s.files);
+                }
+                r.depth = Integer.parseInt(tokens[1]);
+            } else if (line.startsWith(LOCATION_PREFIX)) {
+                location = line.substring(LOCATION_PREFIX.length());
+            } else if (line.startsWith(ROOT_PREFIX) && location != null) {
+                section = r.getSection(location, line.substring(ROOT_PREFIX.length()));
+                previousPath = "";
+            } else {
+                String[] tokens = line.split("\t", -1);
+                int idx = tokens[0].indexOf(' ');
+                if (section == null || idx < 0 || (tokens.length != 2 && tokens.length != 3)) {
+                    throw new IOException("Malformed line in the workspace manifest: " + line);
+                }
+                String path = previousPath.substring(0, Integer.parseInt(tokens[0].substring(0, idx)))
+                    + tokens[0].substring(idx + 1);
+                if (tokens.length == 2 && tokens[1].equals(REMOVED)) {
+                    section.files.remove(path);
+                } else {
+                    section.files.put(path, new Entry(tokens[1], tokens.length == 3 ? tokens[2] : ""));
+                }
+                previousPath = path;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Reads the manifest of the given build.
+     */
+    static WorkspaceRevisions load(final Run<?, ?> build) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(getFile(build)), "UTF-8"));
+        try {
+            return read(in, new BaseResolver() {
+                public WorkspaceRevisions load(int number) throws IOException {
+                    Run<?, ?> base = build.getParent().getBuildByNumber(number);
+                    if (base == null || !getFile(base).exists()) {
+                        throw new IOException("The workspace manifest of " + build + " is based on the one of #"
+                            + number + ", which is gone");
+                    }
+                    return WorkspaceRevisions.load(base);
+                }
+            });
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed workspace manifest of " + build + ": " + e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Returns the build number the manifest of the given build is a delta against, or 0 if it's a full manifest.
+     */
+    private static int getBaseNumber(Run<?, ?> build) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(getFile(build)), "UTF-8"));
+        try {
+            in.readLine();
+            String line = in.readLine();
+            return line != null && line.startsWith(BASE_PREFIX)
+                ? Integer.parseInt(line.substring(BASE_PREFIX.length()).split(" ")[0]) : 0;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Returns the file the manifest of the given build is stored in.
+     */
+    static File getFile(Run<?, ?> build) {
+        return new File(build.getRootDir(), "revisions.txt");
+    }
+
+    /**
+     * Rewrites the manifests that are deltas against the manifest of a build being deleted as full manifests.
+     */
+    @Extension
+    public static final class DeletionListener extends RunListener<Run> {
+        public DeletionListener() {
+            super(Run.class);
+        }
+
+        @Override
+        public void onDeleted(Run r) {
+            Run<?, ?> next = r.getNextBuild();
+            for (int i = 0; next != null && i <= MAX_DELTA_DEPTH; i++, next = next.getNextBuild()) {
+                try {
+                    if (getFile(next).exists() && getBaseNumber(next) == r.getNumber()) {
+                        load(next).save(getFile(next), null, 0);
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to rewrite the workspace manifest of " + next, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the path of a directory in the repository from the contents of its CVS/Repository.
+     * CVS/Repository is normally relative to the CVSROOT, but old clients write absolute paths.
+     */
+    static String getRepositoryPath(String cvsroot, String repository) {
+        String path = repository.trim();
+        if (path.startsWith("/")) {
+            int idx = cvsroot.indexOf('/');
+            String rootPath = idx < 0 ? "" : cvsroot.substring(idx);
+            while (rootPath.endsWith("/")) {
+                rootPath = rootPath.substring(0, rootPath.length() - 1);
+            }
+            if (path.startsWith(rootPath + '/')) {
+                path = path.substring(rootPath.length() + 1);
+            }
+        }
+        // "." is what CVS/Repository holds for the top of a "checkout -d" without a module
+        if (path.equals(".")) {
+            return "";
+        }
+        return path;
+    }
+
+    /**
+     * Parses CVS/Entries lines of files into file names, revisions and sticky tags.
+     * Files that are added or removed but not committed don't have a revision in the repository and are skipped.
+     *
+     * @param line line of CVS/Entries, or of CVS/Entries.Log with its "A " prefix removed.
+     * @param entries receives the file name and entry.
+     */
+    static void parseEntry(String line, Map<String, Entry> entries) {
+        if (!line.startsWith("/")) {
+            return; // directory or invalid line
+        }
+        String[] tokens = line.split("/");
+        if (tokens.length < 3) {
+            return;
+        }
+        String rev = tokens[2];
+        if (rev.length() == 0 || !Character.isDigit(rev.charAt(0)) || rev.equals("0")) {
+            return;
+        }
+        entries.put(tokens[1], new Entry(rev, tokens.length > 5 ? tokens[5] : ""));
+    }
+
+    /**
+     * Lists the file paths of one CVSROOT recorded with the given revision. Used to batch tagging by revision.
+     */
+    static Map<String, List<String>> groupByRevision(Map<String, String> files) {
+        Map<String, List<String>> r = new TreeMap<String, List<String>>();
+        for (Map.Entry<String, String> e : files.entrySet()) {
+            List<String> paths = r.get(e.getValue());
+            if (paths == null) {
+                paths = new ArrayList<String>();
+                r.put(e.getValue(), paths);
+            }
+            paths.add(e.getKey());
+        }
+        return r;
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspaceRevisions.class.getName());
+}
@@ -52,6 +52,13 @@ public final class FishEyeCVS extends CVSRepositoryBrowser {
      */
     public final URL url;
 
+    /**
+     * {@link #url} split into the part that paths are appended to and its query string,
+     * so that links are built by string concatenation.
+     */
+    private transient String prefix;
+    private transient String query;
+
     @DataBoundConstructor
     public FishEyeCVS(URL url) {
         this.url = normalizeToEndWithSlash(url);
@@ -59,17 +66,41 @@ public final class FishEyeCVS extends CVSRepositoryBrowser {
 
     @Override
     public URL getDiffLink(File file) throws IOException {
-        Revision r = new Revision(file.getRevision());
-        Revision p = r.getPrevious();
+        return getCachedDiffLink(file);
+    }
+
+    @Override
+    public URL getFileLink(File file) throws IOException {
+        return getCachedFileLink(file);
+    }
+
+    @Override
+    protected URL createDiffLink(File file) throws IOException {
+        Revision r = file.getRevisionNumber();
+        Revision p = r != null ? r.getPrevious() : null;
         if (p == null) {
             return null;
         }
-        return new URL(url, trimHeadSlash(file.getFullName()) + new QueryBuilder(url.getQuery()).add("r1=" + p).add("r2=" + r));
+        return new URL(prefix() + trimHeadSlash(file.getFullName()) + appendParam(appendParam(query(), "r1=" + p), "r2=" + r));
     }
 
     @Override
-    public URL getFileLink(File file) throws IOException {
-        return new URL(url, trimHeadSlash(file.getFullName()) + new QueryBuilder(url.getQuery()));
+    protected URL createFileLink(File file) throws IOException {
+        return new URL(prefix() + trimHeadSlash(file.getFullName()) + query());
+    }
+
+    private String prefix() {
+        if (prefix == null) {
+            prefix = getPrefix(url);
+        }
+        return prefix;
+    }
+
+    private String query() {
+        if (query == null) {
+            query = getQuery(url);
+        }
+        return query;
     }
 
     @Override
@@ -51,21 +51,41 @@ public final class ViewCVS extends CVSRepositoryBrowser {
      */
     public final URL url;
 
+    /**
+     * {@link #url} split into the part that paths are appended to and its query string,
+     * so that links are built by string concatenation.
+     */
+    private transient String prefix;
+    private transient String query;
+
     @DataBoundConstructor
     public ViewCVS(URL url) throws MalformedURLException {
         this.url = normalizeToEndWithSlash(url);
     }
 
     public URL getFileLink(File file) throws IOException {
-        return new URL(url,trimHeadSlash(file.getFullName())+param());
+        return getCachedFileLink(file);
     }
 
     public URL getDiffLink(File file) throws IOException {
-        Revision r = new Revision(file.getRevision());
-        Revision p = r.getPrevious();
+        return getCachedDiffLink(file);
+    }
+
+    @Override
+    protected URL createFileLink(File file) throws IOException {
+        return new URL(prefix()+trimHeadSlash(file.getFullName())+query());
+    }
+
+    @Override
+    protected URL createDiffLink(File file) throws IOException {
+        Revision r = file.getRevisionNumber();
+        Revision p = r!=null ? r.getPrevious() : null;
         if(p==null) return null;
 
-        return new URL(getFileLink(file), file.getSimpleName()+".diff"+param().add("r1="+p).add("r2="+r));
+        // relative to the file link, so in the same directory as the file
+        String path = trimHeadSlash(file.getFullName());
+        String dir = path.substring(0,path.lastIndexOf('/')+1);
+        return new URL(prefix()+dir+file.getSimpleName()+".diff"+appendParam(appendParam(query(),"r1="+p),"r2="+r));
     }
 
     /**
@@ -75,8 +95,14 @@ public final class ViewCVS extends CVSRepositoryBrowser {
         return null;
     }
 
-    private QueryBuilder param() {
-        return new QueryBuilder(url.getQuery());
+    private String prefix() {
+        if(prefix==null)    prefix = getPrefix(url);
+        return prefix;
+    }
+
+    private String query() {
+        if(query==null)     query = getQuery(url);
+        return query;
     }
 
     @Extension
@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.org.apache.tools.ant.taskdefs.cvslib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link RcsLogReader} and {@link RcsArchive}
+ */
+public class RcsLogReaderTest {
+
+    private static final String RCS = "head\t1.3;\naccess;\nsymbols\n\tb1:1.2.0.2\n\tREL_1:1.2;\nlocks; strict;\n"
+        + "comment\t@# @;\n\n\n"
+        + "1.3\ndate\t2011.05.03.12.00.00;\tauthor bob;\tstate dead;\nbranches;\nnext\t1.2;\ncommitid\tabc;\n\n"
+        + "1.2\ndate\t2011.05.02.12.00.00;\tauthor alice;\tstate Exp;\nbranches\n\t1.2.2.1;\nnext\t1.1;\n\n"
+        + "1.1\ndate\t99.01.01.00.00.00;\tauthor alice;\tstate Exp;\nbranches;\nnext\t;\n\n"
+        + "1.2.2.1\ndate\t2011.05.04.12.00.00;\tauthor carol;\tstate Exp;\nbranches;\nnext\t;\n\n\n"
+        + "desc\n@@\n\n\n"
+        + "1.3\nlog\n@Removed@\ntext\n@@\n\n\n"
+        + "1.2\nlog\n@Fixed the @@ sign\n@\ntext\n@d1 1\na1 1\nline with @@\n@\n\n\n"
+        + "1.1\nlog\n@Initial revision\n@\ntext\n@@\n\n\n"
+        + "1.2.2.1\nlog\n@On the branch\n@\ntext\n@@\n";
+
+    /**
+     * An imported file with a local modification on the vendor branch, which is still the default branch.
+     */
+    private static final String VENDOR_RCS = "head\t1.1;\nbranch\t1.1.1;\naccess;\nsymbols\n\tREL:1.1.1.1\n\tVENDOR:1.1.1;\n"
+        + "locks; strict;\ncomment\t@# @;\nexpand\t@kv@;\n\n\n"
+        + "1.1\ndate\t2011.05.01.12.00.00;\tauthor alice;\tstate Exp;\nbranches\n\t1.1.1.1;\nnext\t;\n\n"
+        + "1.1.1.1\ndate\t2011.05.01.12.00.00;\tauthor alice;\tstate Exp;\nbranches;\nnext\t1.1.1.2;\n\n"
+        + "1.1.1.2\ndate\t2011.05.02.12.00.00;\tauthor bob;\tstate Exp;\nbranches;\nnext\t;\n\n\n"
+        + "desc\n@@\n\n\n"
+        + "1.1\nlog\n@Initial revision\n@\ntext\n@a\n@\n\n\n"
+        + "1.1.1.1\nlog\n@Imported@\ntext\n@@\n\n\n"
+        + "1.1.1.2\nlog\n@Local change@\ntext\n@d1 1\na1 1\nb\n@\n";
+
+    /**
+     * A binary file added on a branch, with the dead trunk revision that cvs creates for it,
+     * the newphrases that CVSNT writes in the delta headers and deltatexts, and deltatexts out of order.
+     */
+    private static final String BRANCH_ADD_RCS = "head\t1.1;\naccess;\nsymbols\n\tb1:1.1.0.2;\nlocks; strict;\n"
+        + "comment\t@# @;\nexpand\t@b@;\n\n\n"
+        + "1.1\ndate\t2011.05.02.12.00.00;\tauthor alice;\tstate dead;\nbranches\n\t1.1.2.1;\nnext\t;\n"
+        + "kopt\tb;\nfilename\t@Bar; v1.gif@;\ncommitid\t1004DBE9B5C2D9C;\n\n"
+        + "1.1.2.1\ndate\t2011.05.02.12.00.00;\tauthor alice;\tstate Exp;\nbranches;\nnext\t;\n"
+        + "mergepoint1\t1.1;\ndeltatype\ttext;\npermissions\t644;\n\n\n"
+        + "desc\n@@\n\n\n"
+        + "1.1.2.1\nlog\n@Added on the branch@\ndeltatype\ttext;\nkopt\tb;\ntext\n@GIF89a@@\n@\n\n\n"
+        + "1.1\nlog\n@file Bar.gif was initially added on branch b1.\n@\ntext\n@@\n";
+
+    private File tmp;
+    private File repository;
+    private File ws;
+
+    @Before
+    public void setUp() throws IOException {
+        tmp = File.createTempFile("rcs", "");
+        assertTrue(tmp.delete());
+        repository = new File(tmp, "repository");
+        FileUtils.writeStringToFile(new File(repository, "module/Attic/Foo.java,v"), RCS);
+        ws = new File(tmp, "ws");
+        FileUtils.writeStringToFile(new File(ws, "module/CVS/Repository"), "module\n");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmp);
+    }
+
+    @Test
+    public void testParseDate() {
+        assertEquals(915148800000L, RcsArchive.parseDate("99.01.01.00.00.00").getTime());
+        assertEquals(1304424000000L, RcsArchive.parseDate("2011.05.03.12.00.00").getTime());
+    }
+
+    @Test
+    public void testTrunk() throws IOException {
+        CVSEntry[] entries = read(new Date(1304208000000L), null);    // 2011-05-01
+        assertEquals(3, entries.length);
+
+        CVSEntry removed = find(entries, "Removed");
+        RCSFile file = (RCSFile) removed.getFiles().get(0);
+        assertEquals("module/Foo.java", file.getName());
+        assertEquals("/module/Foo.java", file.getFullName());
+        assertEquals("1.3", file.getRevision());
+        assertEquals("1.2", file.getPreviousRevision());
+        assertTrue(file.isDead());
+        assertEquals("bob", removed.getAuthor());
+
+        file = (RCSFile) find(entries, "Fixed the @ sign").getFiles().get(0);
+        assertEquals("1.1", file.getPreviousRevision());
+        assertFalse(file.isDead());
+        assertNull(file.getBranch());
+
+        file = (RCSFile) find(entries, "On the branch").getFiles().get(0);
+        assertEquals("b1", file.getBranch());
+        assertEquals("1.2", file.getPreviousRevision());
+    }
+
+    @Test
+    public void testBranch() throws IOException {
+        CVSEntry[] entries = read(null, "b1");
+        assertEquals(1, entries.length);
+        assertEquals("On the branch", entries[0].getComment());
+        assertEquals(1, read(null, "REL_1").length);
+        assertEquals(0, read(null, "unknown").length);
+    }
+
+    @Test
+    public void testHead() throws IOException {
+        CVSEntry[] entries = read(null, "HEAD");
+        assertEquals(1, entries.length);
+        assertEquals("Removed", entries[0].getComment());
+    }
+
+    @Test
+    public void testRevisionNumbers() throws IOException {
+        CVSEntry[] entries = read(null, "1.2");
+        assertEquals(1, entries.length);
+        assertEquals("Fixed the @ sign", entries[0].getComment());
+        entries = read(null, "1.2.2");
+        assertEquals(1, entries.length);
+        assertEquals("On the branch", entries[0].getComment());
+    }
+
+    @Test
+    public void testVendorBranch() throws IOException {
+        FileUtils.writeStringToFile(new File(repository, "module/Vendor.c,v"), VENDOR_RCS);
+        FileUtils.writeStringToFile(new File(ws, "module/CVS/Repository"), "module\n");
+
+        // like cvs log with no -r, all of them, vendor branch or not
+        assertEquals(3, read(new Date(1304208000000L), null, "module/Vendor.c").length);
+        assertEquals(2, read(null, "VENDOR", "module/Vendor.c").length);
+        assertEquals(1, read(null, "REL", "module/Vendor.c").length);
+
+        // HEAD is the head of the default branch, not the trunk's 1.1
+        CVSEntry[] entries = read(null, "HEAD", "module/Vendor.c");
+        assertEquals(1, entries.length);
+        RCSFile file = (RCSFile) entries[0].getFiles().get(0);
+        assertEquals("1.1.1.2", file.getRevision());
+        assertEquals("1.1.1.1", file.getPreviousRevision());
+        assertEquals("Local change", entries[0].getComment());
+    }
+
+    @Test
+    public void testAddedOnBranch() throws IOException {
+        FileUtils.writeStringToFile(new File(repository, "module/Attic/Bar.gif,v"), BRANCH_ADD_RCS);
+
+        CVSEntry[] entries = read(null, null, "module/Bar.gif");
+        assertEquals(2, entries.length);
+        RCSFile file = (RCSFile) find(entries, "file Bar.gif was initially added on branch b1.").getFiles().get(0);
+        assertEquals("1.1", file.getRevision());
+        assertTrue(file.isDead());
+        assertNull(file.getBranch());
+
+        entries = read(null, "b1", "module/Bar.gif");
+        assertEquals(1, entries.length);
+        assertEquals("Added on the branch", entries[0].getComment());
+        file = (RCSFile) entries[0].getFiles().get(0);
+        assertEquals("1.1.2.1", file.getRevision());
+        assertEquals("1.1", file.getPreviousRevision());
+        assertEquals("b1", file.getBranch());
+        assertFalse(file.isDead());
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteLocked() throws IOException {
+        FileUtils.touch(new File(repository, "module/#cvs.wfl.build1.4711"));
+        read(null, null);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMasterLocked() throws IOException {
+        assertTrue(new File(repository, "module/#cvs.lock").mkdirs());
+        read(null, null);
+    }
+
+    @Test
+    public void testReadLocked() throws IOException {
+        FileUtils.touch(new File(repository, "module/#cvs.rfl.build1.4711"));
+        assertEquals(4, read(null, null).length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testLockDir() throws IOException {
+        FileUtils.writeStringToFile(new File(repository, "CVSROOT/config"), "SystemAuth=no\nLockDir=/var/lock/cvs\n");
+        read(null, null);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformed() throws IOException {
+        FileUtils.writeStringToFile(new File(repository, "module/Attic/Foo.java,v"), RCS.substring(0, RCS.indexOf("desc")));
+        read(null, null);
+    }
+
+    private CVSEntry[] read(Date start, String tag, String... files) throws IOException {
+        ChangeLogTask task = new ChangeLogTask();
+        task.setProject(new org.apache.tools.ant.Project());
+        return new RcsLogReader(task, repository, start, tag).read(ws, null, Arrays.asList(files));
+    }
+
+    private CVSEntry[] read(Date start, String tag) throws IOException {
+        ChangeLogTask task = new ChangeLogTask();
+        task.setProject(new org.apache.tools.ant.Project());
+        return new RcsLogReader(task, repository, start, tag).read(ws, new String[]{"module"},
+            Collections.<String>emptyList());
+    }
+
+    private static CVSEntry find(CVSEntry[] entries, String comment) {
+        for (CVSEntry e : entries) {
+            if (e.getComment().equals(comment)) {
+                return e;
+            }
+        }
+        throw new AssertionError(comment + " not in " + Arrays.asList(entries));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.org.apache.tools.ant.taskdefs.cvslib;
+
+import hudson.scm.RcsRepositoryGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link RcsRepositoryGenerator}, reading what it generates with {@link RcsArchive}.
+ */
+public class RcsRepositoryGeneratorTest {
+    private static final int FILES = 120;
+
+    private File tmp;
+    private File ws;
+    private RcsRepositoryGenerator generator;
+
+    @Before
+    public void setUp() throws IOException {
+        tmp = File.createTempFile("rcs", "");
+        assertTrue(tmp.delete());
+        generator = new RcsRepositoryGenerator(new File(tmp, "repository"), "module", FILES, 3, 2, 2);
+        generator.generate();
+
+        ws = new File(tmp, "ws");
+        FileUtils.writeStringToFile(new File(ws, "module/CVS/Repository"), "module\n");
+        for (int d = 0; d * RcsRepositoryGenerator.FILES_PER_DIR < FILES; d++) {
+            FileUtils.writeStringToFile(new File(ws, "module/dir" + d + "/CVS/Repository"), "module/dir" + d + "\n");
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmp);
+    }
+
+    @Test
+    public void testGenerate() throws IOException {
+        RcsArchive archive = RcsArchive.read(generator.getRcsFile(7), new RcsArchive.Selector() {
+            boolean select(RcsArchive archive, RcsArchive.Delta delta) {
+                return true;
+            }
+        });
+        assertEquals("1.3", archive.head);
+        assertEquals("1.1", archive.symbols.get("TAG_0"));
+        assertEquals("1.2", archive.symbols.get("TAG_1"));
+        assertEquals("1.1.0.2", archive.symbols.get("branch_0"));
+        assertEquals("1.1.0.4", archive.symbols.get("branch_1"));
+        assertEquals(5, archive.selected.size());
+
+        assertEquals(FILES * 5, countFiles(read(null, null)));
+        assertEquals(FILES, countFiles(read(null, "branch_1")));
+        assertEquals(FILES, countFiles(read(null, "TAG_1")));
+    }
+
+    @Test
+    public void testCommit() throws IOException {
+        Date start = new Date(System.currentTimeMillis() - 60000);
+        int[] changed = generator.commit(5, "Fix the @ sign");
+        assertEquals(5, changed.length);
+        assertEquals("1.4", generator.getHead(changed[0]));
+        generator.commit(1, "Again");
+
+        CVSEntry[] entries = read(start, null);
+        assertEquals(6, countFiles(entries));
+        RCSFile file = null;
+        for (CVSEntry e : entries) {
+            if (e.getComment().equals("Fix the @ sign")) {
+                file = (RCSFile) e.getFiles().get(0);
+            }
+        }
+        assertEquals("1.4", file.getRevision());
+        assertEquals("1.3", file.getPreviousRevision());
+
+        // the rest of the history is still there
+        assertEquals(FILES * 5 + 6, countFiles(read(null, null)));
+        assertEquals(FILES, countFiles(read(null, "branch_0")));
+    }
+
+    private CVSEntry[] read(Date start, String tag) throws IOException {
+        ChangeLogTask task = new ChangeLogTask();
+        task.setProject(new org.apache.tools.ant.Project());
+        return new RcsLogReader(task, generator.getRepository(), start, tag).read(ws, new String[]{"module"},
+            Collections.<String>emptyList());
+    }
+
+    private static int countFiles(CVSEntry[] entries) {
+        int n = 0;
+        for (CVSEntry e : entries) {
+            n += e.getFiles().size();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link AdaptivePolling}
+ */
+public class AdaptivePollingTest {
+    private static final long MINUTE = 60 * 1000L;
+    private static final long MIN = MINUTE;
+    private static final long MAX = 240 * MINUTE;
+
+    @Test
+    public void testInterval() {
+        assertEquals(MAX, AdaptivePolling.interval(0, MIN, MAX));
+        // one commit a day is polled every 6 hours, capped
+        assertEquals(MAX, AdaptivePolling.interval(1, MIN, MAX));
+        // 24 commits a day, every 15 minutes
+        assertEquals(15 * MINUTE, AdaptivePolling.interval(24, MIN, MAX));
+        assertEquals(MIN, AdaptivePolling.interval(10000, MIN, MAX));
+    }
+
+    @Test
+    public void testSchedule() {
+        AdaptivePolling.Schedule s = new AdaptivePolling.Schedule("root m", null);
+        s.learn(24, MIN, MAX);
+        assertTrue("a location that has never been polled is due", s.isDue(0));
+
+        s.polled(0, false, MIN);
+        assertFalse(s.isDue(14 * MINUTE));
+        assertTrue(s.isDue(15 * MINUTE));
+
+        s.polled(15 * MINUTE, true, MIN);
+        assertTrue("changes tighten the schedule", s.isDue(16 * MINUTE));
+
+        s.polled(16 * MINUTE, false, MIN);
+        s.learn(0, MIN, MAX);
+        assertTrue("a lower rate doesn't delay the poll already planned", s.isDue(31 * MINUTE));
+        s.polled(31 * MINUTE, false, MIN);
+        assertFalse(s.isDue(31 * MINUTE + MAX - 1));
+        s.learn(24, MIN, MAX);
+        assertTrue("a higher rate brings the next poll forward", s.isDue(46 * MINUTE));
+    }
+
+    @Test
+    public void testCommitsPerDay() {
+        final long day = 24 * 60 * MINUTE;
+        AdaptivePolling.Schedule s = new AdaptivePolling.Schedule("root m", null);
+        assertEquals(0, s.commitsPerDay(40 * day), 0);
+
+        s.add(1, 5 * day, 4 * day, 10);
+        s.add(2, 12 * day, 5 * day, 3);
+        s.add(3, 20 * day, 12 * day, 6);
+        s.add(3, 20 * day, 12 * day, 6);
+        // build 1 is older than 30 days, and build 2 goes back to it
+        assertEquals(9 / 30.0, s.commitsPerDay(40 * day), 1e-9);
+        // build 2 ages out
+        assertEquals(6 / 30.0, s.commitsPerDay(43 * day), 1e-9);
+
+        int historyBuilds = AdaptivePolling.HISTORY_BUILDS;
+        AdaptivePolling.HISTORY_BUILDS = 1;
+        try {
+            s.add(4, 41 * day, 20 * day, 1);
+            // only the latest build counts, back to the build before it
+            assertEquals(1 / 23.0, s.commitsPerDay(43 * day), 1e-9);
+        } finally {
+            AdaptivePolling.HISTORY_BUILDS = historyBuilds;
+        }
+        assertEquals(0, s.commitsPerDay(80 * day), 0);
+    }
+
+    @Test
+    public void testCountCommits() {
+        ModuleLocation location = new ModuleLocationImpl("root", "a b/c", null, false, null);
+        CVSChangeLogSet changeLog = new CVSChangeLogSet(null, Arrays.asList(
+            entry("/a/x.txt", "/other/y.txt"),
+            entry("/b/c"),
+            entry("/b/cd/z.txt"),
+            entry("/ab/z.txt")));
+        assertEquals(2, AdaptivePolling.countCommits(changeLog, location));
+        assertEquals(4, AdaptivePolling.countCommits(changeLog,
+            new ModuleLocationImpl("root", ".", null, false, null)));
+    }
+
+    private static CVSChangeLogSet.CVSChangeLog entry(String... fullNames) {
+        CVSChangeLogSet.CVSChangeLog entry = new CVSChangeLogSet.CVSChangeLog();
+        for (String fullName : fullNames) {
+            CVSChangeLogSet.File file = new CVSChangeLogSet.File();
+            file.setFullName(fullName);
+            entry.addFile(file);
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.scm.CVSChangeLogSet.CVSChangeLog;
+import hudson.scm.CVSChangeLogSet.File;
+import hudson.scm.browsers.FishEyeCVS;
+import hudson.scm.browsers.ViewCVS;
+import java.net.URL;
+import java.util.Collections;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Verifies that the links of {@link ViewCVS} and {@link FishEyeCVS}, which are built by string concatenation
+ * and cached in {@link CVSChangeLogSet.LinkTable}, are the same as resolving them with {@link URL#URL(URL, String)}.
+ */
+public class CVSRepositoryBrowserLinkTest {
+    private static final String[] BASES = {
+        "http://cvs.example.org/cgi-bin/viewcvs.cgi/",
+        "http://cvs.example.org/cgi-bin/viewcvs.cgi",
+        "http://cvs.example.org/cgi-bin/viewcvs.cgi/?cvsroot=foo",
+        "http://cvs.example.org/cgi-bin/viewcvs.cgi?cvsroot=foo&hideattic=1"
+    };
+
+    @Test
+    public void testViewCVSLinks() throws Exception {
+        for (String base : BASES) {
+            ViewCVS browser = new ViewCVS(new URL(base));
+            for (File file : files("1.5")) {
+                assertLink(base, viewCvsFileLink(browser.url, file), browser.getFileLink(file));
+                assertLink(base, viewCvsDiffLink(browser.url, file), browser.getDiffLink(file));
+            }
+        }
+    }
+
+    @Test
+    public void testFishEyeLinks() throws Exception {
+        for (String base : BASES) {
+            FishEyeCVS browser = new FishEyeCVS(new URL(base));
+            for (File file : files("1.5.2.1")) {
+                assertLink(base, fishEyeFileLink(browser.url, file), browser.getFileLink(file));
+                assertLink(base, fishEyeDiffLink(browser.url, file), browser.getDiffLink(file));
+            }
+        }
+    }
+
+    @Test
+    public void testDiffLinkStaysInFileDirectory() throws Exception {
+        ViewCVS browser = new ViewCVS(new URL("http://cvs.example.org/cgi-bin/viewcvs.cgi?cvsroot=foo"));
+        File file = file("src/foo/Bar.java", "/module/src/foo/Bar.java", "1.5");
+        assertLink("http://cvs.example.org/cgi-bin/viewcvs.cgi/module/src/foo/Bar.java.diff?cvsroot=foo&r1=1.4&r2=1.5",
+            browser.getDiffLink(file));
+    }
+
+    @Test
+    public void testNoPreviousRevision() throws Exception {
+        ViewCVS viewCvs = new ViewCVS(new URL(BASES[0]));
+        FishEyeCVS fishEye = new FishEyeCVS(new URL(BASES[0]));
+        for (String revision : new String[]{"1.1", null}) {
+            File file = files(revision)[0];
+            assertNull(viewCvs.getDiffLink(file));
+            assertNull(fishEye.getDiffLink(file));
+            assertLink(viewCvsFileLink(viewCvs.url, file), viewCvs.getFileLink(file));
+        }
+    }
+
+    @Test
+    public void testLinkTableFollowsBrowser() throws Exception {
+        File file = files("1.5")[1];
+        CVSChangeLogSet set = file.getChangeLogSet();
+
+        ViewCVS browser = new ViewCVS(new URL(BASES[0]));
+        assertSame(browser.getDiffLink(file), browser.getDiffLink(file));
+        assertSame(set.getLinkTable(browser), set.getLinkTable(browser));
+
+        // a reconfigured job has a new browser instance, even if its URL is the same
+        ViewCVS reconfigured = new ViewCVS(new URL(BASES[2]));
+        assertNotSame(set.getLinkTable(browser), set.getLinkTable(reconfigured));
+        assertLink(viewCvsDiffLink(reconfigured.url, file), reconfigured.getDiffLink(file));
+        assertLink(viewCvsFileLink(reconfigured.url, file), reconfigured.getFileLink(file));
+
+        FishEyeCVS fishEye = new FishEyeCVS(new URL(BASES[0]));
+        assertLink(fishEyeDiffLink(fishEye.url, file), fishEye.getDiffLink(file));
+        assertLink(viewCvsDiffLink(browser.url, file), browser.getDiffLink(file));
+    }
+
+    private static void assertLink(Object expected, URL actual) {
+        assertEquals(String.valueOf(expected), String.valueOf(actual));
+    }
+
+    private static void assertLink(String message, URL expected, URL actual) {
+        assertEquals(message, String.valueOf(expected), String.valueOf(actual));
+    }
+
+    /**
+     * Files at the top of the module and in subdirectories, all in one changelog.
+     */
+    private static File[] files(String revision) {
+        File[] files = {
+            file("README", "/module/README", revision),
+            file("src/foo/Bar.java", "/module/src/foo/Bar.java", revision),
+            file("Bar.java", "/module/src/foo/Bar.java", revision),
+            file("lib/a-b_c.1.jar", "module/lib/a-b_c.1.jar", revision)
+        };
+        CVSChangeLog log = new CVSChangeLog();
+        for (File file : files) {
+            log.addFile(file);
+        }
+        new CVSChangeLogSet(null, Collections.singletonList(log));
+        return files;
+    }
+
+    private static File file(String name, String fullName, String revision) {
+        File file = new File();
+        file.setName(name);
+        file.setFullName(fullName);
+        file.setRevision(revision);
+        return file;
+    }
+
+    // the links as computed before they were built by string concatenation
+
+    private static URL viewCvsFileLink(URL url, File file) throws Exception {
+        return new URL(url, RepositoryBrowser.trimHeadSlash(file.getFullName()) + new RepositoryBrowser.QueryBuilder(url.getQuery()));
+    }
+
+    private static URL viewCvsDiffLink(URL url, File file) throws Exception {
+        CVSChangeLogSet.Revision r = new CVSChangeLogSet.Revision(file.getRevision());
+        CVSChangeLogSet.Revision p = r.getPrevious();
+        if (p == null) {
+            return null;
+        }
+        return new URL(viewCvsFileLink(url, file),
+            file.getSimpleName() + ".diff" + new RepositoryBrowser.QueryBuilder(url.getQuery()).add("r1=" + p).add("r2=" + r));
+    }
+
+    private static URL fishEyeFileLink(URL url, File file) throws Exception {
+        return viewCvsFileLink(url, file);
+    }
+
+    private static URL fishEyeDiffLink(URL url, File file) throws Exception {
+        CVSChangeLogSet.Revision r = new CVSChangeLogSet.Revision(file.getRevision());
+        CVSChangeLogSet.Revision p = r.getPrevious();
+        if (p == null) {
+            return null;
+        }
+        return new URL(url, RepositoryBrowser.trimHeadSlash(file.getFullName())
+            + new RepositoryBrowser.QueryBuilder(url.getQuery()).add("r1=" + p).add("r2=" + r));
+    }
+}
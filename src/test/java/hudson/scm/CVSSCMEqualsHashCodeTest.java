@@ -77,6 +77,7 @@ public class CVSSCMEqualsHashCodeTest {
             {new CVSSCM(locations, "cvsRsh", true, false, "regions1", true, false), false},
             {new CVSSCM(locations, "cvsRsh", true, false, null, true, false), false},
             {new CVSSCM(locations, "cvsRsh", true, false, "regions", false, false), false},
+            {new CVSSCM(locations, "cvsRsh", true, false, "regions", true, false, true), false},
         });
     }
 
@@ -26,6 +26,8 @@ package hudson.scm;
 
 import hudson.model.FreeStyleProject;
 import hudson.scm.browsers.ViewCVS;
+import hudson.scm.cvs.Messages;
+import hudson.triggers.SCMTrigger;
 import java.lang.reflect.Field;
 import java.net.URL;
 import java.util.Arrays;
@@ -69,6 +71,26 @@ public class CVSSCMIntegrationTest extends HudsonTestCase {
         assertEquals("b",d.getCvsExe());
     }
 
+    /**
+     * A commit notification triggers the polling of the jobs of the module that poll, and builds nothing itself.
+     */
+    public void testNotifyCommit() throws Exception {
+        FreeStyleProject polling = createFreeStyleProject();
+        polling.setScm(new CVSSCM(":pserver:anonymous@localhost:/cvsroot", "m", "b1", null, true, false, false, null));
+        polling.addTrigger(new SCMTrigger("@daily"));
+        FreeStyleProject manual = createFreeStyleProject();
+        manual.setScm(new CVSSCM(":pserver:anonymous@localhost:/cvsroot", "m", null, null, true, false, false, null));
+
+        String text = createWebClient().goTo("cvs/notifyCommit?root=/cvsroot&path=m/a.c", "text/plain")
+            .getWebResponse().getContentAsString();
+        assertEquals(Messages.CVSSCM_CommitPolled(1), text.trim());
+        assertTrue(hudson.getQueue().isEmpty());
+
+        text = createWebClient().goTo("cvs/notifyCommit?root=/cvsroot&path=m/a.c&branch=HEAD", "text/plain")
+            .getWebResponse().getContentAsString();
+        assertEquals(Messages.CVSSCM_CommitPolled(0), text.trim());
+    }
+
     private void roundtrip(FreeStyleProject p) throws Exception {
         submit(new WebClient().getPage(p, "configure").getFormByName("config"));
     }
@@ -194,14 +194,17 @@ public class CVSSCMTest {
     public void testCheckoutIfUpdateFailed() throws Exception {
         //Prepare data for testing.
         CVSSCM scm = createPartialMock(CVSSCM.class,
-            new String[]{"isUpdatable", "update", "cleanCheckout", "archiveWorkspace", "calcChangeLog"},
+            new String[]{"isUpdatable", "update", "cleanCheckout", "archiveWorkspace", "calcChangeLog", "getRcsMirror"},
             CVSROOT, MODULES, BRANCH, null, true, false, false, null);
         AbstractBuild build = createMock(AbstractBuild.class);
         expect(build.getBuildVariables()).andReturn(new HashMap<String, String>());
         expect(build.getTimestamp()).andReturn(Calendar.getInstance()).times(2);
-        expect(build.getActions()).andReturn(new ArrayList<Action>());
+        expect(build.getActions()).andReturn(new ArrayList<Action>()).times(2);
+        expect(build.getPreviousBuild()).andReturn(null);
+        expect(build.getBuiltOn()).andReturn(null);
         BuildListener listener = new StreamBuildListener(System.out, Charset.defaultCharset());
         Launcher launcher = new Launcher.LocalLauncher(listener);
+        expect(scm.getRcsMirror(null)).andReturn(null);
         expect(scm.isUpdatable(EasyMock.<ModuleLocation>anyObject(), EasyMock.<FilePath>anyObject())).andReturn(null)
             .once();
         //Expect that updating failed.
@@ -212,9 +215,10 @@ public class CVSSCMTest {
         expectPrivate(scm, "cleanCheckout", EasyMock.<ModuleLocation>anyObject(), EasyMock.<Launcher>anyObject(),
             EasyMock.<FilePath>anyObject(), EasyMock.<TaskListener>anyObject(), EasyMock.<Date>anyObject()).andReturn(
             true).once();
-        expectPrivate(scm, "archiveWorkspace", EasyMock.<AbstractBuild>anyObject(), EasyMock.<FilePath>anyObject());
+        expectPrivate(scm, "archiveWorkspace", EasyMock.<AbstractBuild>anyObject(), EasyMock.<FilePath>anyObject(),
+            EasyMock.<TaskListener>anyObject(), EasyMock.<CheckoutTimings>anyObject()).andReturn(null);
         expectPrivate(scm, "calcChangeLog", EasyMock.<AbstractBuild>anyObject(), EasyMock.<FilePath>anyObject(),
-            EasyMock.<List<String>>anyObject(), EasyMock.<File>anyObject(),
+            EasyMock.<List<ModuleLocation>>anyObject(), EasyMock.<List<String>>anyObject(), EasyMock.<File>anyObject(),
             EasyMock.<BuildListener>anyObject()).andReturn(true);
 
         replay(scm, build);
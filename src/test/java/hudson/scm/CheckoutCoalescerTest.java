@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.FilePath;
+import java.io.File;
+import java.util.Date;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link CheckoutCoalescer}
+ */
+public class CheckoutCoalescerTest {
+    private File root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("coalesce", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void testGetKey() {
+        ModuleLocation a = new ModuleLocationImpl(":pserver:user:secret@host:/cvs", "m n", "b1", false, "dir");
+        ModuleLocation b = new ModuleLocationImpl(":pserver:user@host:/cvs", "m n", "b1", false, "dir");
+        assertEquals(CheckoutCoalescer.getKey(a, false, false), CheckoutCoalescer.getKey(b, false, false));
+        assertFalse(CheckoutCoalescer.getKey(a, false, false).equals(CheckoutCoalescer.getKey(a, true, false)));
+        assertFalse(CheckoutCoalescer.getKey(a, false, false).equals(CheckoutCoalescer.getKey(a, false, true)));
+        ModuleLocation c = new ModuleLocationImpl(":pserver:user@host:/cvs", "m n", "b1", false, "other");
+        assertFalse(CheckoutCoalescer.getKey(a, false, false).equals(CheckoutCoalescer.getKey(c, false, false)));
+        // the local directory doesn't matter to a flattened checkout
+        assertEquals(CheckoutCoalescer.getKey(a, true, false), CheckoutCoalescer.getKey(c, true, false));
+    }
+
+    @Test
+    public void testSharedCheckout() throws Exception {
+        CheckoutCoalescer coalescer = new CheckoutCoalescer();
+        FilePath rootPath = new FilePath(root);
+        Date date = new Date(100000);
+
+        CheckoutCoalescer.Participant leader = coalescer.join("node", rootPath, "key", null, date, 5000);
+        assertTrue(leader.isLeader());
+        CheckoutCoalescer.Participant follower = coalescer.join("node", rootPath, "key", null, new Date(104000), 5000);
+        assertFalse(follower.isLeader());
+        assertSame(leader.flight, follower.flight);
+        // too late, on another node or for other modules
+        assertTrue(coalescer.join("node", rootPath, "key", null, new Date(106000), 5000).isLeader());
+        assertTrue(coalescer.join("other", rootPath, "key", null, date, 5000).isLeader());
+        assertTrue(coalescer.join("node", rootPath, "other", null, date, 5000).isLeader());
+
+        FilePath dir = leader.flight.dir;
+        dir.child("m/CVS").mkdirs();
+        dir.child("m/CVS/Entries").write("/a.c/1.1///\n", "UTF-8");
+        leader.completed(true);
+        assertTrue(follower.await());
+        // the checkout is done, so the next build starts over
+        assertNotSame(leader.flight, coalescer.join("node", rootPath, "key", null, date, 5000).flight);
+
+        File ws = new File(root, "ws");
+        dir.act(new CheckoutCoalescer.Copy(new FilePath(ws)));
+        assertTrue(new File(ws, "m/CVS/Entries").isFile());
+
+        leader.leave();
+        assertTrue(dir.exists());
+        follower.leave();
+        assertFalse(dir.exists());
+    }
+
+    @Test
+    public void testFlattenedCheckout() throws Exception {
+        CheckoutCoalescer coalescer = new CheckoutCoalescer();
+        FilePath rootPath = new FilePath(root);
+        Date date = new Date(100000);
+
+        // workspace@2 of the same job
+        CheckoutCoalescer.Participant leader = coalescer.join("node", rootPath, "key", "workspace", date, 5000);
+        CheckoutCoalescer.Participant follower = coalescer.join("node", rootPath, "key", "workspace@2", date, 5000);
+        assertFalse(follower.isLeader());
+
+        FilePath checkout = leader.flight.checkout;
+        assertEquals("workspace", checkout.getName());
+        checkout.child("CVS").mkdirs();
+        checkout.child("CVS/Entries").write("/a.c/1.1///\n", "UTF-8");
+        leader.completed(true);
+        assertTrue(follower.await());
+
+        File ws = new File(root, "workspace@2");
+        follower.flight.checkout.act(new CheckoutCoalescer.Copy(new FilePath(ws)));
+        assertTrue(new File(ws, "CVS/Entries").isFile());
+
+        leader.leave();
+        follower.leave();
+        assertFalse(leader.flight.dir.exists());
+    }
+
+    @Test
+    public void testFailedCheckout() throws Exception {
+        final CheckoutCoalescer coalescer = new CheckoutCoalescer();
+        FilePath rootPath = new FilePath(root);
+        final CheckoutCoalescer.Participant leader = coalescer.join("node", rootPath, "key", null, null, 0);
+        CheckoutCoalescer.Participant follower = coalescer.join("node", rootPath, "key", null, null, 0);
+        assertFalse(follower.isLeader());
+
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // complete right away
+                }
+                leader.completed(false);
+            }
+        };
+        t.start();
+        assertFalse(follower.await());
+        t.join();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link CheckoutTimings}
+ */
+public class CheckoutTimingsTest {
+
+    @Test
+    public void testPhases() throws IOException {
+        CheckoutTimings timings = new CheckoutTimings();
+        ModuleLocation location = new ModuleLocationImpl(":pserver:anonymous@cvs.example.org:/cvsroot", "m1 m2",
+            null, false, null);
+        CheckoutTimings.Phase phase = timings.begin("update", location);
+        OutputStream out = timings.count(new ByteArrayOutputStream());
+        out.write("U m1/a.txt\n".getBytes());
+        out.write('\n');
+        phase.end(1);
+
+        // no phase in progress, nothing counted
+        OutputStream raw = new ByteArrayOutputStream();
+        assertSame(raw, timings.count(raw));
+        timings.add("archive", null, 5, 100, 7);
+
+        assertEquals(2, timings.getTimings().size());
+        CheckoutTimings.Timing update = timings.getTimings().get(0);
+        assertEquals("update", update.getPhase());
+        assertEquals("m1 m2", update.getLocation());
+        assertEquals(12, update.getBytes());
+        assertEquals(1, update.getFiles());
+        assertTrue(update.getMillis() >= 0);
+        CheckoutTimings.Timing archive = timings.getTimings().get(1);
+        assertNull(archive.getLocation());
+        assertEquals(7, archive.getFiles());
+
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        timings.print(new PrintStream(table));
+        assertEquals(4, table.toString().split("\n").length);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link CommitIndex}
+ */
+public class CommitIndexTest {
+
+    @Test
+    public void testGetRepositoryPath() {
+        assertEquals("/cvsroot", CommitIndex.getRepositoryPath(":pserver:anonymous:secret@cvs.example.org:/cvsroot"));
+        assertEquals("/cvsroot", CommitIndex.getRepositoryPath(":pserver:anonymous@cvs.example.org:2401/cvsroot/"));
+        assertEquals("/var/cvs", CommitIndex.getRepositoryPath(":local:/var/cvs"));
+        assertEquals("/var/cvs", CommitIndex.getRepositoryPath("/var/cvs"));
+        assertEquals("/", CommitIndex.getRepositoryPath("/"));
+        assertNull(CommitIndex.getRepositoryPath("cvsroot"));
+        assertNull(CommitIndex.getRepositoryPath(null));
+    }
+
+    @Test
+    public void testNormalizePath() {
+        assertEquals("m/dir", CommitIndex.normalizePath("/cvsroot", "m/dir/"));
+        assertEquals("m/dir/a.c", CommitIndex.normalizePath("/cvsroot", "/cvsroot/m/dir/a.c"));
+        assertEquals("m", CommitIndex.normalizePath("/cvsroot", " /m "));
+    }
+
+    @Test
+    public void testMatches() {
+        CommitIndex.Entry e = entry("job", "HEAD", "m/sub", "m/sub/", ".*\\.txt");
+        assertTrue(e.matches("m/sub"));
+        assertTrue(e.matches("m/sub/dir"));
+        assertTrue(e.matches("m/sub/dir/a.c"));
+        assertFalse(e.matches("m/sub/dir/a.txt"));
+        assertFalse(e.matches("m"));
+        assertFalse(e.matches("m/subway/a.c"));
+        assertTrue(entry("job", "HEAD", ".", "./").matches("anything/a.c"));
+
+        // flattened workspaces report paths relative to the module
+        e = entry("job", "HEAD", "m", "", "src/.*");
+        assertFalse(e.matches("m/src/a.c"));
+        assertTrue(e.matches("m/test/src/a.c"));
+    }
+
+    @Test
+    public void testGetJobs() {
+        CommitIndex index = new CommitIndex(Arrays.asList(
+            entry("trunk", "HEAD", "m", "m/"),
+            entry("branch", "b1", "m", "m/"),
+            entry("other", "HEAD", "other", "other/"),
+            entry("docs excluded", "HEAD", "m", "m/", "m/docs/.*")));
+
+        assertEquals(Arrays.asList("branch", "docs excluded", "trunk"),
+            list(index, ":pserver:anonymous@host:/cvsroot", null, "m/src/a.c"));
+        assertEquals(Arrays.asList("branch", "trunk"), list(index, "/cvsroot", null, "m/docs/a.txt"));
+        assertEquals(Arrays.asList("branch", "docs excluded", "trunk"),
+            list(index, "/cvsroot", null, "m/docs/a.txt", "m/b.c"));
+        assertEquals(Arrays.asList("branch"), list(index, "/cvsroot", "b1", "m/a.c"));
+        assertEquals(Arrays.asList("other"), list(index, "/cvsroot/", "HEAD", "/cvsroot/other"));
+        assertEquals(Collections.emptyList(), list(index, "/elsewhere", null, "m/a.c"));
+        assertEquals(Collections.emptyList(), list(index, "/cvsroot", null, "unknown/a.c"));
+    }
+
+    @Test
+    public void testNestedModules() {
+        CommitIndex index = new CommitIndex(Arrays.asList(
+            entry("all", "HEAD", ".", "./"),
+            entry("m", "HEAD", "m", "m/"),
+            entry("m/sub", "HEAD", "m/sub", "m/sub/"),
+            entry("m/subway", "HEAD", "m/subway", "m/subway/")));
+
+        assertEquals(Arrays.asList("all", "m", "m/sub"), list(index, "/cvsroot", null, "m/sub/dir/a.c"));
+        assertEquals(Arrays.asList("all", "m", "m/subway"), list(index, "/cvsroot", null, "m/subway/a.c"));
+        assertEquals(Arrays.asList("all", "m"), list(index, "/cvsroot", null, "m"));
+        assertEquals(Arrays.asList("all"), list(index, "/cvsroot", null, "n/a.c"));
+    }
+
+    @Test
+    public void testPutAndRemove() {
+        CommitIndex index = new CommitIndex(Collections.<CommitIndex.Entry>emptyList());
+        index.put("a", Arrays.asList(entry("a", "HEAD", "m", "m/"), entry("a", "HEAD", "n/sub", "n/sub/")));
+        index.put("b", Arrays.asList(entry("b", "HEAD", "m/sub", "m/sub/")));
+        assertEquals(2, index.size());
+        assertEquals(Arrays.asList("a", "b"), list(index, "/cvsroot", null, "m/sub/a.c", "n/sub/b.c"));
+
+        // reconfiguring a job replaces its modules
+        index.put("a", Arrays.asList(entry("a", "b1", "m", "m/")));
+        assertEquals(Arrays.asList("b"), list(index, "/cvsroot", "HEAD", "m/sub/a.c", "n/sub/b.c"));
+        assertEquals(Arrays.asList("a"), list(index, "/cvsroot", "b1", "m/sub/a.c"));
+
+        index.remove("b");
+        index.remove("unknown");
+        assertEquals(1, index.size());
+        assertEquals(Collections.emptyList(), list(index, "/cvsroot", "HEAD", "m/sub/a.c"));
+        index.remove("a");
+        assertEquals(0, index.size());
+        assertEquals(Collections.emptyList(), list(index, "/cvsroot", null, "m/sub/a.c"));
+    }
+
+    private static List<String> list(CommitIndex index, String root, String branch, String... paths) {
+        return new ArrayList<String>(index.getJobs(root, branch, Arrays.asList(paths)));
+    }
+
+    private static CommitIndex.Entry entry(String job, String branch, String module, String workspacePrefix,
+                                           String... excludedRegions) {
+        Pattern[] patterns = new Pattern[excludedRegions.length];
+        for (int i = 0; i < patterns.length; i++) {
+            patterns[i] = Pattern.compile(excludedRegions[i]);
+        }
+        return new CommitIndex.Entry(job, "/cvsroot", branch, module, workspacePrefix, patterns);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test for {@link CommitNotifier}
+ */
+public class CommitNotifierTest {
+    private final CommitIndex index = new CommitIndex(Arrays.asList(
+        entry("trunk", "HEAD", "m"),
+        entry("branch", "b1", "m"),
+        entry("manual", "HEAD", "m"),
+        entry("other", "HEAD", "other")));
+
+    /**
+     * Jobs polled, in order.
+     */
+    private final List<String> polled = new ArrayList<String>();
+
+    private final CommitNotifier notifier = new CommitNotifier(index) {
+        @Override
+        boolean poll(String name) {
+            polled.add(name);
+            // "manual" has no SCMTrigger
+            return !name.equals("manual");
+        }
+    };
+
+    @Test
+    public void testBranch() {
+        assertEquals(Arrays.asList("branch"), notifier.notifyCommit("/cvsroot", "b1", Arrays.asList("m/a.c")));
+        assertEquals(Arrays.asList("branch"), polled);
+    }
+
+    @Test
+    public void testUnknownBranch() {
+        // without a branch, the jobs of every branch poll, and polling finds out which branch changed
+        assertEquals(Arrays.asList("branch", "trunk"),
+            notifier.notifyCommit(":pserver:cvs.example.org:/cvsroot", null, Arrays.asList("m/a.c")));
+        assertEquals(Arrays.asList("branch", "manual", "trunk"), polled);
+    }
+
+    @Test
+    public void testNoJob() {
+        assertEquals(Collections.<String>emptyList(), notifier.notifyCommit("/cvsroot", "HEAD", Arrays.asList("x/a.c")));
+        assertEquals(Collections.<String>emptyList(), notifier.notifyCommit("/elsewhere", null, Arrays.asList("m/a.c")));
+        assertEquals(Collections.<String>emptyList(), polled);
+    }
+
+    private static CommitIndex.Entry entry(String job, String branch, String module) {
+        return new CommitIndex.Entry(job, "/cvsroot", branch, module, module + '/', new Pattern[0]);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link CvsConnectionPool}
+ */
+public class CvsConnectionPoolTest {
+    private FakeCvsServer server;
+    private int timeout;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeCvsServer();
+        timeout = CvsConnection.TIMEOUT;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        CvsConnection.TIMEOUT = timeout;
+        server.close();
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        CvsConnectionPool pool = new CvsConnectionPool(2, 60000, 60000);
+        CvsRoot root = server.getRoot();
+        CvsConnection c = pool.acquire(root, null, null);
+        assertEquals(1, pool.getActiveCount(root));
+        pool.release(c);
+        assertEquals(0, pool.getActiveCount(root));
+        assertEquals(1, pool.getIdleCount(root));
+        assertSame(c, pool.acquire(root, null, null));
+        assertEquals(1, server.connections.get());
+        pool.release(c);
+        pool.closeIdle();
+        assertEquals(0, pool.getIdleCount(root));
+    }
+
+    @Test
+    public void testMaxPerServer() throws IOException {
+        CvsConnection.TIMEOUT = 200;
+        CvsConnectionPool pool = new CvsConnectionPool(1, 60000, 60000);
+        CvsRoot root = server.getRoot();
+        CvsConnection c = pool.acquire(root, null, null);
+        try {
+            pool.acquire(root, null, null);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        pool.release(c);
+        pool.release(pool.acquire(root, null, null));
+        assertEquals(1, server.connections.get());
+        pool.closeIdle();
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+        CvsConnectionPool pool = new CvsConnectionPool(2, 50, 60000);
+        CvsRoot root = server.getRoot();
+        pool.release(pool.acquire(root, null, null));
+        assertEquals(1, pool.getIdleCount(root));
+        Thread.sleep(100);
+        pool.evictIdle();
+        assertEquals(0, pool.getIdleCount(root));
+    }
+
+    @Test
+    public void testValidation() throws Exception {
+        CvsConnectionPool pool = new CvsConnectionPool(2, 60000, 0);
+        CvsRoot root = server.getRoot();
+        CvsConnection c = pool.acquire(root, null, null);
+        pool.release(c);
+        CvsConnection d = pool.acquire(root, null, null);
+        assertSame(c, d);
+        assertTrue(server.requests.contains("noop"));
+        pool.release(d);
+
+        // a restarted server drops the idle connections, which validation detects
+        server.disconnect();
+        CvsConnection e = pool.acquire(root, null, null);
+        assertNotSame(c, e);
+        assertEquals(2, server.connections.get());
+        pool.release(e);
+        pool.closeIdle();
+    }
+}
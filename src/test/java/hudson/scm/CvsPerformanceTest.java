@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.util.StreamTaskListener;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Date;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Times checkout, polling, changelog and tagging against a generated repository, through the real
+ * {@link CVSSCM} code paths, over <tt>:local:</tt> and over a loopback pserver.
+ * <p/>
+ * Needs a cvs executable, and only runs when the size of the repository is given, like
+ * <tt>mvn test -Dtest=CvsPerformanceTest -Dhudson.scm.CvsPerformanceTest.files=10000</tt>.
+ * The other system properties are <tt>revisions</tt>, <tt>branches</tt>, <tt>tags</tt> and
+ * <tt>changes</tt>, the number of files changed before the second build. The timings are printed
+ * and appended to target/cvs-performance.txt. Large repositories also need a higher
+ * <tt>-Dsurefire.timeout</tt>.
+ */
+public class CvsPerformanceTest extends HudsonTestCase {
+    private static final String PREFIX = CvsPerformanceTest.class.getName();
+    private static final int FILES = Integer.getInteger(PREFIX + ".files", 0);
+    private static final int REVISIONS = Integer.getInteger(PREFIX + ".revisions", 5);
+    private static final int BRANCHES = Integer.getInteger(PREFIX + ".branches", 2);
+    private static final int TAGS = Integer.getInteger(PREFIX + ".tags", 2);
+    private static final int CHANGES = Integer.getInteger(PREFIX + ".changes", 10);
+    private static final String CVS_EXE = System.getProperty(PREFIX + ".cvsExe", "cvs");
+    private static final String MODULE = "module";
+
+    private File tmp;
+    private RcsRepositoryGenerator generator;
+    private PrintStream report;
+
+    @Override
+    public void runBare() throws Throwable {
+        if (FILES <= 0) {
+            System.out.println("Skipping " + getName() + ", set " + PREFIX + ".files to run it");
+            return;
+        }
+        super.runBare();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        tmp = createTmpDir();
+        File repository = new File(tmp, "repository");
+        int exit = new ProcessBuilder(CVS_EXE, "-d", repository.getPath(), "init").start().waitFor();
+        assertEquals("cvs init failed", 0, exit);
+
+        long start = System.currentTimeMillis();
+        generator = new RcsRepositoryGenerator(repository, MODULE, FILES, REVISIONS, BRANCHES, TAGS);
+        generator.generate();
+        System.out.println("Generated " + FILES + " files in " + (System.currentTimeMillis() - start) + " ms");
+
+        hudson.getDescriptorByType(CVSSCM.DescriptorImpl.class).setCvsExe(CVS_EXE);
+        File target = new File(System.getProperty("buildDirectory", "target"));
+        target.mkdirs();
+        report = new PrintStream(new FileOutputStream(new File(target, "cvs-performance.txt"), true));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (report != null) {
+            report.close();
+        }
+        super.tearDown();
+    }
+
+    public void testLocal() throws Exception {
+        run("local", ":local:" + generator.getRepository().getAbsolutePath());
+    }
+
+    public void testPserver() throws Exception {
+        LoopbackPserver server = new LoopbackPserver(CVS_EXE, generator.getRepository());
+        try {
+            File cvspass = new File(tmp, ".cvspass");
+            server.writeCvspass(cvspass);
+            hudson.getDescriptorByType(CVSSCM.DescriptorImpl.class).setCvspassFile(cvspass.getAbsolutePath());
+            run("pserver", server.getCvsroot());
+        } finally {
+            server.close();
+        }
+    }
+
+    private void run(String name, String cvsroot) throws Exception {
+        report.printf("%s: %d files, %d revisions, %d branches, %d tags, %d changes, %s%n",
+            name, FILES, REVISIONS, BRANCHES, TAGS, CHANGES, new Date());
+        StreamTaskListener listener = new StreamTaskListener(System.out);
+        FreeStyleProject p = createFreeStyleProject();
+        p.setScm(new CVSSCM(cvsroot, MODULE, null, null, true, false, false, null));
+
+        long start = System.currentTimeMillis();
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        record("checkout", start, b);
+        assertTrue(new File(b.getWorkspace().getRemote(), MODULE + '/' + RcsRepositoryGenerator.getPath(0)).exists());
+
+        start = System.currentTimeMillis();
+        assertFalse(p.poll(listener).hasChanges());
+        record("poll without changes", start, null);
+
+        // commits must be dated after the first build for the changelog to pick them up
+        Thread.sleep(1000);
+        generator.commit(CHANGES, "Performance test change");
+
+        start = System.currentTimeMillis();
+        assertTrue(p.poll(listener).hasChanges());
+        record("poll with changes", start, null);
+
+        start = System.currentTimeMillis();
+        b = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        record("update and changelog", start, b);
+        int changed = 0;
+        for (CVSChangeLogSet.CVSChangeLog log : ((CVSChangeLogSet) b.getChangeSet()).getLogs()) {
+            changed += log.getFiles().size();
+        }
+        assertEquals(Math.min(CHANGES, FILES), changed);
+
+        TagAction tagAction = b.getAction(TagAction.class);
+        start = System.currentTimeMillis();
+        tagAction.perform("PERF_" + name.toUpperCase(), listener);
+        record("tag", start, null);
+        assertTrue(tagAction.isTagged());
+    }
+
+    private void record(String step, long start, FreeStyleBuild b) throws IOException {
+        String line = String.format("  %-22s %8d ms", step, System.currentTimeMillis() - start);
+        System.out.println(line);
+        report.println(line);
+        CheckoutTimings timings = b != null ? b.getAction(CheckoutTimings.class) : null;
+        if (timings != null) {
+            for (CheckoutTimings.Timing t : timings.getTimings()) {
+                line = String.format("    %-20s %8d ms %10d bytes %7d files", t.getPhase(), t.getMillis(),
+                    t.getBytes(), t.getFiles());
+                System.out.println(line);
+                report.println(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.org.apache.tools.ant.taskdefs.cvslib.ChangeLogTask;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link EmbeddedCvs}, {@link CvsConnection} and {@link CvsRoot}
+ */
+public class EmbeddedCvsTest {
+
+    @Test
+    public void testParseRoot() {
+        CvsRoot root = CvsRoot.parse(":pserver:anonymous:secret@cvs.example.org:2402/cvsroot");
+        assertEquals("anonymous", root.user);
+        assertEquals("secret", root.password);
+        assertEquals("cvs.example.org", root.host);
+        assertEquals(2402, root.port);
+        assertEquals("/cvsroot", root.path);
+        assertEquals(":pserver:anonymous@cvs.example.org:2402/cvsroot", root.getKey());
+        assertEquals(CvsRoot.PSERVER_PORT, CvsRoot.parse(":pserver:anonymous@cvs.example.org:/cvsroot").port);
+        assertTrue(!CvsRoot.parse(":ext:me@cvs.example.org:/cvsroot").isPserver());
+        assertNull(CvsRoot.parse("/cvsroot"));
+        assertNull(CvsRoot.parse(":local:/cvsroot"));
+    }
+
+    @Test
+    public void testScramble() {
+        assertEquals("A", CvsRoot.scramble(""));
+        assertEquals("Ay=0=h<Z", CvsRoot.scramble("anoncvs"));
+    }
+
+    @Test
+    public void testParseCommandLine() {
+        OutputStream out = new ByteArrayOutputStream();
+        assertNotNull(EmbeddedCvs.parse(Arrays.asList("cvs", "-q", "-z3", "-n", "update", "-PdC", "-r", "b1"),
+            "", null, out));
+        assertNotNull(EmbeddedCvs.parse(Arrays.asList("cvs", "-d", ":pserver:a@b:/c", "rlog", "-d", ">=2011", "m"),
+            "", null, out));
+        // modifies the workspace
+        assertNull(EmbeddedCvs.parse(Arrays.asList("cvs", "-q", "-z3", "update", "-PdC"), "", null, out));
+        assertNull(EmbeddedCvs.parse(Arrays.asList("cvs", "-Q", "-d", ":pserver:a@b:/c", "co", "-P", "m"),
+            "", null, out));
+        // unsupported global options
+        assertNull(EmbeddedCvs.parse(Arrays.asList("cvs", "-t", "-n", "update"), "", null, out));
+        assertNull(EmbeddedCvs.parse(Arrays.asList("cvs", "--lf", "-n", "update"), "", null, out));
+    }
+
+    @Test
+    public void testIsUnchanged() throws IOException {
+        File f = File.createTempFile("entry", "txt");
+        try {
+            f.setLastModified(828840566000L);
+            assertTrue(CvsConnection.isUnchanged(f, "Sun Apr  7 01:29:26 1996"));
+            assertTrue(CvsConnection.isUnchanged(f, "Result of merge+Sun Apr  7 01:29:26 1996"));
+            assertTrue(!CvsConnection.isUnchanged(f, "Sun Apr  7 01:29:27 1996"));
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testExtWithStderr() throws Exception {
+        if (File.pathSeparatorChar == ';') {
+            return; // the remote shell is a shell script
+        }
+        // a remote shell that prints more to its standard error than a pipe holds before running the server
+        File rsh = File.createTempFile("rsh", ".sh");
+        FileUtils.writeStringToFile(rsh, "#!/bin/sh\n"
+            + "i=0\n"
+            + "while [ $i -lt 2000 ]; do\n"
+            + "  echo \"Warning: line $i of a banner that is longer than the buffer of a pipe\" >&2\n"
+            + "  i=$((i+1))\n"
+            + "done\n"
+            + "exec '" + System.getProperty("java.home") + "/bin/java' -cp '" + System.getProperty("java.class.path")
+            + "' " + FakeCvsServer.class.getName() + "\n");
+        assertTrue(rsh.setExecutable(true));
+
+        final List<String> logged = Collections.synchronizedList(new ArrayList<String>());
+        Handler handler = new Handler() {
+            public void publish(LogRecord record) {
+                logged.add(record.getMessage());
+            }
+
+            public void flush() {
+            }
+
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(CvsConnection.class.getName());
+        logger.addHandler(handler);
+        logger.setUseParentHandlers(false);
+        try {
+            CvsRoot root = CvsRoot.parse(":ext:joe@localhost:/cvsroot");
+            File dir = new File(System.getProperty("java.io.tmpdir"));
+            for (int i = 0; i < 2; i++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayOutputStream err = new ByteArrayOutputStream();
+                Integer r = EmbeddedCvs.run(root, null, rsh.getPath(), "log", Collections.<String>emptyList(),
+                    Collections.<String>emptyList(), dir, Collections.<String>emptyList(), out, err, 0);
+                assertEquals(Integer.valueOf(0), r);
+                assertEquals(FakeCvsServer.LOG_OUTPUT + "\n", out.toString());
+            }
+            // the banner ends up in the log, once the remote shell has printed all of it
+            String last = root + ": Warning: line 1999 of a banner that is longer than the buffer of a pipe";
+            for (int i = 0; i < 100 && !logged.contains(last); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(logged.contains(last));
+        } finally {
+            logger.removeHandler(handler);
+            logger.setUseParentHandlers(true);
+            CvsConnectionPool.INSTANCE.closeIdle();
+            rsh.delete();
+        }
+    }
+
+    @Test
+    public void testLog() throws Exception {
+        FakeCvsServer server = new FakeCvsServer();
+        try {
+            File dir = new File(System.getProperty("java.io.tmpdir"));
+            for (int i = 0; i < 2; i++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayOutputStream err = new ByteArrayOutputStream();
+                Integer r = EmbeddedCvs.run(server.getRoot(), null, null, "log", Collections.<String>emptyList(),
+                    Arrays.asList("-d", ">=2011-01-01"), dir, Collections.<String>emptyList(), out, err, 0);
+                assertEquals(Integer.valueOf(0), r);
+                assertEquals(FakeCvsServer.LOG_OUTPUT + "\n", out.toString());
+                assertEquals(FakeCvsServer.LOG_ERROR + "\n", err.toString());
+            }
+            // one connection, authenticated once
+            assertEquals(1, server.connections.get());
+            assertEquals(1, Collections.frequency(server.requests, "BEGIN AUTH REQUEST"));
+            assertEquals("Ay=0=h<Z", server.requests.get(3));
+            assertTrue(server.requests.contains("Argument >=2011-01-01"));
+            assertTrue(server.requests.contains("Directory ."));
+            assertTrue(server.requests.contains("/cvsroot"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        FakeCvsServer server = new FakeCvsServer();
+        try {
+            File dir = new File(System.getProperty("java.io.tmpdir"));
+            try {
+                EmbeddedCvs.run(server.getRoot(), null, null, "log", Collections.<String>emptyList(),
+                    Arrays.asList(FakeCvsServer.HANG), dir, Collections.<String>emptyList(),
+                    new ByteArrayOutputStream(), new ByteArrayOutputStream(), 500);
+                fail();
+            } catch (SocketTimeoutException e) {
+                assertTrue(ProcessTimeout.isTimeout(new IOException(e)));
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testLogOfBranch() throws Exception {
+        final FakeCvsServer server = new FakeCvsServer();
+        File dir = File.createTempFile("embedded", "");
+        try {
+            assertTrue(dir.delete());
+            FileUtils.writeStringToFile(new File(dir, "m/CVS/Repository"), "m\n");
+            FileUtils.writeStringToFile(new File(dir, "m/CVS/Entries"), "");
+            ChangeLogTask task = new ChangeLogTask() {
+                @Override
+                protected Integer runLog(List<String> arguments, OutputStream out, OutputStream err)
+                    throws IOException {
+                    return EmbeddedCvs.log(server.getRoot(), null, null, getDir(), arguments, out, err, 0);
+                }
+            };
+            task.setProject(new Project());
+            task.setDir(dir);
+            task.setCvsRoot(":pserver:anonymous@localhost:/cvsroot");
+            task.setDeststream(new ByteArrayOutputStream());
+            task.setBranch("BRANCH_1");
+            task.setTag("BRANCH_1");
+            task.setPackage("m");
+            task.execute();
+
+            // the log is restricted to the branch and the module
+            assertTrue(server.requests.contains("Argument -rBRANCH_1"));
+            assertTrue(server.requests.contains("Argument m"));
+            assertEquals(FakeCvsServer.LOG_OUTPUT.length() + 1, task.getLogBytes());
+        } finally {
+            server.close();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A loopback pserver that answers "log" with {@link #LOG_OUTPUT}, for the tests of {@link CvsConnection}.
+ * A "log" given the {@link #HANG} argument never gets an answer.
+ * <p/>
+ * {@link #main(String[])} serves a single connection on stdin and stdout instead, as <tt>cvs server</tt> does
+ * at the other end of the remote shell of an <tt>:ext:</tt> CVSROOT.
+ */
+class FakeCvsServer {
+    static final String LOG_OUTPUT = "RCS file: /cvsroot/m/a.txt,v";
+    static final String LOG_ERROR = "cvs server: Logging m";
+    static final String HANG = "-hang";
+
+    private final ServerSocket server = new ServerSocket(0);
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+    /**
+     * Every line received, from all the connections.
+     */
+    final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    final AtomicInteger connections = new AtomicInteger();
+
+    FakeCvsServer() throws IOException {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket s = server.accept();
+                        sockets.add(s);
+                        connections.incrementAndGet();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                serve(s);
+                            }
+                        }.start();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    CvsRoot getRoot() {
+        return CvsRoot.parse(":pserver:anonymous:anoncvs@localhost:" + server.getLocalPort() + "/cvsroot");
+    }
+
+    /**
+     * Drops all the connections, like a server restart would.
+     */
+    void disconnect() throws IOException {
+        synchronized (sockets) {
+            for (Socket s : sockets) {
+                s.close();
+            }
+            sockets.clear();
+        }
+    }
+
+    void close() throws IOException {
+        server.close();
+        disconnect();
+    }
+
+    private void serve(Socket s) {
+        try {
+            serve(s.getInputStream(), s.getOutputStream(), requests);
+            s.close();
+        } catch (IOException e) {
+            // disconnected
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        serve(System.in, System.out, new ArrayList<String>());
+    }
+
+    private static void serve(InputStream is, OutputStream out, List<String> requests) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(is, "ISO-8859-1"));
+        String line;
+        boolean hang = false;
+        while ((line = in.readLine()) != null) {
+            requests.add(line);
+            String reply = null;
+            if (line.equals("END AUTH REQUEST")) {
+                reply = "I LOVE YOU\n";
+            } else if (line.equals("valid-requests")) {
+                reply = "Valid-requests Root Valid-responses valid-requests Argument Directory Entry"
+                    + " Unchanged UseUnchanged log noop\nok\n";
+            } else if (line.equals("Argument " + HANG)) {
+                hang = true;
+            } else if (line.equals("log") && !hang) {
+                reply = "M " + LOG_OUTPUT + "\nE " + LOG_ERROR + "\nok\n";
+            } else if (line.equals("noop")) {
+                reply = "ok\n";
+            }
+            if (reply != null) {
+                out.write(reply.getBytes("ISO-8859-1"));
+                out.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Serves a local repository over pserver on the loopback interface, by running <tt>cvs pserver</tt>
+ * on each connection the way inetd would.
+ * <p/>
+ * The repository must have been initialized with <tt>cvs init</tt>. Its CVSROOT/passwd gets an
+ * "anonymous" user mapped to the current system user, with an empty password that accepts any
+ * password, and system authentication is turned off, so that no privileges are needed.
+ */
+class LoopbackPserver {
+    private final String cvsExe;
+    private final File repository;
+    private final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    private final List<Process> processes = Collections.synchronizedList(new ArrayList<Process>());
+
+    LoopbackPserver(String cvsExe, File repository) throws IOException {
+        this.cvsExe = cvsExe;
+        this.repository = repository.getAbsoluteFile();
+        FileUtils.writeStringToFile(new File(repository, "CVSROOT/passwd"),
+            "anonymous::" + System.getProperty("user.name") + '\n');
+        File config = new File(repository, "CVSROOT/config");
+        FileUtils.writeStringToFile(config,
+            (config.exists() ? FileUtils.readFileToString(config) : "") + "SystemAuth=no\n");
+
+        Thread t = new Thread("pserver on port " + server.getLocalPort()) {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        serve(server.accept());
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    String getCvsroot() {
+        return ":pserver:anonymous@127.0.0.1:" + server.getLocalPort() + repository.getPath();
+    }
+
+    /**
+     * Writes a .cvspass file with the password of {@link #getCvsroot()}, so that no login is needed.
+     */
+    void writeCvspass(File file) throws IOException {
+        FileUtils.writeStringToFile(file, "/1 " + getCvsroot() + ' ' + CvsRoot.scramble("") + '\n');
+    }
+
+    void close() throws IOException {
+        server.close();
+        synchronized (processes) {
+            for (Process p : processes) {
+                p.destroy();
+            }
+        }
+    }
+
+    private void serve(final Socket s) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(cvsExe, "-f", "--allow-root=" + repository.getPath(), "pserver");
+        final Process p = pb.start();
+        processes.add(p);
+        copy(s.getInputStream(), p.getOutputStream());
+        copy(p.getErrorStream(), new NullOutputStream());
+        Thread t = new Thread("pserver connection from " + s.getRemoteSocketAddress()) {
+            @Override
+            public void run() {
+                try {
+                    IOUtils.copy(p.getInputStream(), s.getOutputStream());
+                    p.waitFor();
+                } catch (IOException e) {
+                    // disconnected
+                } catch (InterruptedException e) {
+                    // closing
+                } finally {
+                    processes.remove(p);
+                    try {
+                        s.close();
+                    } catch (IOException e) {
+                        // already closed
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void copy(final InputStream in, final OutputStream out) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    IOUtils.copy(in, out);
+                } catch (IOException e) {
+                    // disconnected
+                } finally {
+                    IOUtils.closeQuietly(out);
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+}
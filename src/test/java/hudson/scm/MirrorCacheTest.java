@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.FilePath;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link MirrorCache}
+ */
+public class MirrorCacheTest {
+
+    private File tmp;
+
+    @Before
+    public void setUp() throws IOException {
+        tmp = File.createTempFile("mirror", "");
+        assertTrue(tmp.delete());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmp);
+    }
+
+    @Test
+    public void testGetEntryName() {
+        String name = MirrorCache.getEntryName(":pserver:user:secret@host:/cvsroot", "module", null);
+        assertEquals(name, MirrorCache.getEntryName(":pserver:user@host:/cvsroot", "module", null));
+        assertFalse(name.equals(MirrorCache.getEntryName(":pserver:user@host:/cvsroot", "module", "b1")));
+        assertFalse(name.equals(MirrorCache.getEntryName(":pserver:user@host:/cvsroot", "other", null)));
+    }
+
+    @Test
+    public void testListEntries() throws IOException {
+        File cache = new File(tmp, "cvs-mirror");
+        FileUtils.writeStringToFile(new File(cache, "b/file"), "12345");
+        FileUtils.writeStringToFile(new File(cache, "a/file"), "123");
+        assertTrue(new File(cache, "a").setLastModified(1000000000L));
+        assertTrue(new File(cache, "b").setLastModified(2000000000L));
+
+        List<MirrorCache.EntryInfo> entries = new MirrorCache.ListEntries().invoke(cache, null);
+        assertEquals(2, entries.size());
+        assertEquals("a", entries.get(0).name);
+        assertEquals(3, entries.get(0).size);
+        assertEquals("b", entries.get(1).name);
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        MirrorCache cache = new MirrorCache("node", new FilePath(new File(tmp, "cvs-mirror")), 1024);
+        File entry = new File(tmp, "cvs-mirror/e");
+        FileUtils.writeStringToFile(new File(entry, "CVS/Repository"), "path/module\n");
+        FileUtils.writeStringToFile(new File(entry, "Foo.java"), "class Foo {}");
+        assertTrue(new File(entry, "Foo.java").setLastModified(1000000000L));
+
+        File target = new File(tmp, "ws/module");
+        assertFalse(cache.copy("e", "other", new FilePath(target)));
+        assertFalse(target.exists());
+        assertTrue(cache.copy("e", "module", new FilePath(target)));
+        assertEquals(1000000000L, new File(target, "Foo.java").lastModified());
+        assertTrue(new File(target, "CVS/Repository").exists());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test for {@link PollingMetrics}
+ */
+public class PollingMetricsTest {
+
+    private static final String ROOT = ":pserver:anonymous:secret@cvs.example.org:/cvsroot";
+
+    @Test
+    public void testRecord() {
+        PollingMetrics metrics = new PollingMetrics(false);
+        ModuleLocation location = new ModuleLocationImpl(ROOT, "m", null, false, null);
+
+        PollingMetrics.Poll poll = metrics.begin(location);
+        assertSame(poll, PollingMetrics.current());
+        poll.forked();
+        poll.changed(4, 1);
+        poll.end(PollingMetrics.Outcome.CHANGES);
+        assertNull(PollingMetrics.current());
+
+        poll = metrics.begin(location);
+        poll.forked();
+        poll.changed(2, 2);
+        poll.end(PollingMetrics.Outcome.EXCLUDED);
+
+        metrics.begin(location).end(PollingMetrics.Outcome.WORKSPACE_INCONSISTENT);
+
+        assertEquals(1, metrics.getRoots().size());
+        PollingMetrics.Root root = metrics.getRoot(":pserver:anonymous@cvs.example.org:/cvsroot");
+        assertSame(root, metrics.getRoot(ROOT));
+        assertEquals(":pserver:anonymous@cvs.example.org:/cvsroot", root.getCvsroot());
+        assertEquals(3, root.getPolls());
+        assertEquals(2, root.getProcesses());
+        assertEquals(6, root.getChangedFiles());
+        assertEquals(3, root.getExcludedFiles());
+        assertEquals(0.5, root.getExcludedRate(), 0.001);
+        assertEquals(1, root.getChanges());
+        assertEquals(1, root.getExcluded());
+        assertEquals(1, root.getWorkspaceInconsistent());
+        assertEquals(0, root.getNoChanges());
+        // all of them well under 100ms
+        assertEquals(3, root.getHistogram()[0]);
+        assertEquals(PollingMetrics.BUCKETS.length + 1, metrics.getBucketLabels().size());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link ProcessThrottle}
+ */
+public class ProcessThrottleTest {
+
+    @Test
+    public void testGetServerName() {
+        assertEquals("cvs.example.org",
+            ProcessThrottle.getServerName(":pserver:anonymous:secret@cvs.example.org:/cvsroot"));
+        assertEquals("cvs.example.org:2402", ProcessThrottle.getServerName(":pserver:cvs.example.org:2402/cvsroot"));
+        assertEquals("cvs.example.org", ProcessThrottle.getServerName(":ext:user@cvs.example.org:/cvsroot"));
+        assertEquals("cvs.example.org", ProcessThrottle.getServerName("user@cvs.example.org:/cvsroot"));
+        assertNull(ProcessThrottle.getServerName("/var/cvs"));
+        assertNull(ProcessThrottle.getServerName(":local:/var/cvs"));
+        assertNull(ProcessThrottle.getServerName(":fork:/var/cvs"));
+        assertNull(ProcessThrottle.getServerName(null));
+    }
+
+    @Test
+    public void testGetCvsroot() {
+        assertEquals(":pserver:host:/cvs",
+            ProcessThrottle.getCvsroot(Arrays.asList("cvs", "-Q", "-z3", "-d", ":pserver:host:/cvs", "co", "-P", "m")));
+        assertEquals(":pserver:host:/cvs",
+            ProcessThrottle.getCvsroot(Arrays.asList("cvs", "-z", "3", "-d", ":pserver:host:/cvs", "rtag", "t", "m")));
+        // -d of the command isn't the CVSROOT
+        assertNull(ProcessThrottle.getCvsroot(Arrays.asList("cvs", "-q", "update", "-PdC", "-d", "x")));
+        assertNull(ProcessThrottle.getCvsroot(Arrays.asList("cvs", "-d")));
+    }
+
+    @Test
+    public void testUnlimited() throws Exception {
+        ProcessThrottle throttle = new ProcessThrottle();
+        List<ProcessThrottle.Slot> slots = new ArrayList<ProcessThrottle.Slot>();
+        for (int i = 0; i < 10; i++) {
+            slots.add(throttle.acquire(":pserver:host:/cvs", 0));
+        }
+        ProcessThrottle.Server server = throttle.getServer("host");
+        assertEquals(10, server.getRunning());
+        assertEquals(0, server.getWaited());
+        for (ProcessThrottle.Slot slot : slots) {
+            slot.release();
+        }
+        assertEquals(0, server.getRunning());
+        assertEquals(10, server.getCommands());
+
+        // local repositories aren't tracked
+        throttle.acquire("/var/cvs", 1).release();
+        assertEquals(1, throttle.getServers().size());
+    }
+
+    @Test
+    public void testQueueIsFair() throws Exception {
+        final ProcessThrottle throttle = new ProcessThrottle();
+        ProcessThrottle.Slot first = throttle.acquire(":pserver:host:/cvs", 1);
+        ProcessThrottle.Server server = throttle.getServer("host");
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 5; i++) {
+            final int n = i;
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        // another repository of the same server shares its slots
+                        ProcessThrottle.Slot slot = throttle.acquire(":pserver:user@host:/other", 1);
+                        order.add(n);
+                        slot.release();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+            // queue the threads in order
+            while (server.getQueued() < i + 1) {
+                Thread.sleep(10);
+            }
+        }
+        assertTrue(order.isEmpty());
+        assertEquals(1, server.getRunning());
+
+        first.release();
+        for (Thread t : threads) {
+            t.join(10000);
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+        assertEquals(0, server.getRunning());
+        assertEquals(0, server.getQueued());
+        assertEquals(6, server.getCommands());
+        assertEquals(5, server.getWaited());
+        assertTrue(server.getMaxWaitMillis() > 0);
+    }
+
+    @Test
+    public void testInterruptedWhileQueued() throws Exception {
+        final ProcessThrottle throttle = new ProcessThrottle();
+        ProcessThrottle.Slot first = throttle.acquire(":pserver:host:/cvs", 1);
+        ProcessThrottle.Server server = throttle.getServer("host");
+
+        final boolean[] interrupted = new boolean[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    throttle.acquire(":pserver:host:/cvs", 1);
+                } catch (InterruptedException e) {
+                    interrupted[0] = true;
+                }
+            }
+        };
+        t.start();
+        while (server.getQueued() == 0) {
+            Thread.sleep(10);
+        }
+        t.interrupt();
+        t.join(10000);
+        assertTrue(interrupted[0]);
+        assertEquals(0, server.getQueued());
+        assertEquals(1, server.getRunning());
+
+        first.release();
+        throttle.acquire(":pserver:host:/cvs", 1).release();
+        assertEquals(0, server.getRunning());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static hudson.scm.ProcessTimeout.Operation.CHECKOUT;
+import static hudson.scm.ProcessTimeout.Operation.LOG;
+import static hudson.scm.ProcessTimeout.Operation.POLL;
+import static hudson.scm.ProcessTimeout.Operation.TAG;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link ProcessTimeout}
+ */
+public class ProcessTimeoutTest {
+
+    @Test
+    public void testOperation() {
+        assertEquals(CHECKOUT, ProcessTimeout.Operation.of(
+            Arrays.asList("cvs", "-Q", "-z3", "-d", ":pserver:host:/cvs", "co", "-P", "m")));
+        assertEquals(CHECKOUT, ProcessTimeout.Operation.of(Arrays.asList("cvs", "-q", "update", "-PdC")));
+        assertEquals(POLL, ProcessTimeout.Operation.of(Arrays.asList("cvs", "-q", "-n", "update", "-PdC")));
+        assertEquals(TAG, ProcessTimeout.Operation.of(
+            Arrays.asList("cvs", "-d", ":pserver:host:/cvs", "rtag", "-r", "1.2", "t", "m/a.c")));
+        assertEquals(TAG, ProcessTimeout.Operation.of(Arrays.asList("cvs", "tag", "-R", "t")));
+        // the -d of the command isn't the CVSROOT
+        assertEquals(LOG, ProcessTimeout.Operation.of(Arrays.asList("cvs", "-z", "3", "log", "-d", "x")));
+    }
+
+    @Test
+    public void testRetryDelay() {
+        int delay = ProcessTimeout.RETRY_DELAY;
+        int max = ProcessTimeout.MAX_RETRY_DELAY;
+        try {
+            ProcessTimeout.RETRY_DELAY = 10;
+            ProcessTimeout.MAX_RETRY_DELAY = 60;
+            for (int i = 0; i < 100; i++) {
+                assertBetween(5000, 10000, ProcessTimeout.getRetryDelay(0));
+                assertBetween(10000, 20000, ProcessTimeout.getRetryDelay(1));
+                assertBetween(20000, 40000, ProcessTimeout.getRetryDelay(2));
+                assertBetween(30000, 60000, ProcessTimeout.getRetryDelay(3));
+                assertBetween(30000, 60000, ProcessTimeout.getRetryDelay(100));
+            }
+        } finally {
+            ProcessTimeout.RETRY_DELAY = delay;
+            ProcessTimeout.MAX_RETRY_DELAY = max;
+        }
+    }
+
+    private static void assertBetween(long min, long max, long value) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", min <= value && value <= max);
+    }
+}
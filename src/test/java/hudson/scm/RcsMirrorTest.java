@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.FilePath;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test for {@link RcsMirror}
+ */
+public class RcsMirrorTest {
+
+    private static final String ROOT = ":pserver:anonymous:secret@cvs.example.org:/cvsroot";
+
+    @Test
+    public void testParse() throws IOException {
+        Map<String, String> sources = RcsMirror.parse("# comment\n\n" + ROOT + "  cvs.example.org:/cvsroot\n");
+        assertEquals(1, sources.size());
+        assertEquals("cvs.example.org:/cvsroot", RcsMirror.getSource(sources, ROOT));
+        assertEquals("cvs.example.org:/cvsroot",
+            RcsMirror.getSource(sources, ":pserver:anonymous@cvs.example.org:/cvsroot"));
+        assertNull(RcsMirror.getSource(sources, ":pserver:anonymous@cvs.example.org:/other"));
+        assertTrue(RcsMirror.parse(null).isEmpty());
+        try {
+            RcsMirror.parse(ROOT);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLocation() throws IOException {
+        Map<String, String> sources = RcsMirror.parse(ROOT + " cvs.example.org:/cvsroot");
+        RcsMirror mirror = new RcsMirror("node", new FilePath(new File("/slave/cvs-rcs-mirror")), sources);
+        ModuleLocation location = new ModuleLocationImpl(ROOT, "module", "b1", false, null);
+        ModuleLocation mirrored = mirror.getLocation(location);
+        assertTrue(mirrored.getCvsroot().startsWith(":local:/slave/cvs-rcs-mirror/"));
+        assertEquals("b1", mirrored.getBranch());
+        assertEquals("module", mirrored.getNormalizedModules()[0]);
+
+        // tags go to the original repository
+        assertEquals(":pserver:anonymous@cvs.example.org:/cvsroot",
+            RcsMirror.getOriginalRoot(sources, mirrored.getCvsroot()));
+        assertEquals(ROOT, RcsMirror.getOriginalRoot(sources, ROOT));
+
+        ModuleLocation other = new ModuleLocationImpl(":pserver:anonymous@cvs.example.org:/other", "module", null,
+            false, null);
+        assertSame(other, mirror.getLocation(other));
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Writes the RCS files of a CVS module directly, so that tests can get repositories of any size
+ * without committing file by file.
+ * <p/>
+ * Every file has {@code revisions} revisions on the trunk, a one-revision branch off 1.1 for each
+ * of {@code branches} and {@code tags} tags spread over the trunk. The contents of each revision is a
+ * single line naming it. Everything derives from a fixed seed, so the same parameters always give
+ * the same repository.
+ */
+public final class RcsRepositoryGenerator {
+    public static final long SEED = 20120101L;
+
+    /**
+     * Number of files in each directory of the module.
+     */
+    public static final int FILES_PER_DIR = 50;
+
+    private static final String[] AUTHORS = {"alice", "bob", "carol", "dave", "erin"};
+
+    /**
+     * Date of the first revisions: 2011-01-01.
+     */
+    private static final long BASE_TIME = 1293840000000L;
+
+    private final File repository;
+    private final String module;
+    private final int files;
+    private final int revisions;
+    private final int branches;
+    private final int tags;
+    private final Random random = new Random(SEED);
+
+    /**
+     * Head revision of each file, as the last number of 1.x.
+     */
+    private final int[] heads;
+
+    /**
+     * @param repository the repository directory, the path part of a <tt>:local:</tt> CVSROOT.
+     */
+    public RcsRepositoryGenerator(File repository, String module, int files, int revisions, int branches,
+                                  int tags) {
+        if (revisions < 1) {
+            throw new IllegalArgumentException("A file needs at least one revision");
+        }
+        this.repository = repository;
+        this.module = module;
+        this.files = files;
+        this.revisions = revisions;
+        this.branches = branches;
+        this.tags = tags;
+        this.heads = new int[files];
+    }
+
+    public File getRepository() {
+        return repository;
+    }
+
+    public String getModule() {
+        return module;
+    }
+
+    /**
+     * Path of a file, relative to the module.
+     */
+    public static String getPath(int file) {
+        return "dir" + file / FILES_PER_DIR + "/File" + file + ".java";
+    }
+
+    public static String getBranchName(int branch) {
+        return "branch_" + branch;
+    }
+
+    public static String getTagName(int tag) {
+        return "TAG_" + tag;
+    }
+
+    /**
+     * Returns the contents of a file at the given revision.
+     */
+    public static String getContents(int file, String revision) {
+        return "revision " + revision + " of " + getPath(file) + '\n';
+    }
+
+    public File getRcsFile(int file) {
+        return new File(repository, module + '/' + getPath(file) + ",v");
+    }
+
+    /**
+     * Head revision of a file on the trunk.
+     */
+    public String getHead(int file) {
+        return "1." + heads[file];
+    }
+
+    /**
+     * Writes the RCS files of the module.
+     */
+    public void generate() throws IOException {
+        for (int i = 0; i < files; i++) {
+            heads[i] = revisions;
+            FileUtils.writeStringToFile(getRcsFile(i), rcs(i), "ISO-8859-1");
+        }
+    }
+
+    /**
+     * Commits a new trunk revision of some of the files, dated now.
+     *
+     * @param count number of files to change, picked at random.
+     * @return indexes of the changed files.
+     */
+    public int[] commit(int count, String message) throws IOException {
+        int[] changed = new int[Math.min(count, files)];
+        boolean[] picked = new boolean[files];
+        String date = formatDate(new Date());
+        for (int n = 0; n < changed.length; n++) {
+            int i;
+            do {
+                i = random.nextInt(files);
+            } while (picked[i]);
+            picked[i] = true;
+            changed[n] = i;
+            commit(i, date, message);
+        }
+        return changed;
+    }
+
+    /**
+     * Adds a revision on top of the head by rewriting the generated RCS file:
+     * the new head takes the full text, and the old head becomes a reverse delta.
+     */
+    private void commit(int file, String date, String message) throws IOException {
+        File f = getRcsFile(file);
+        String rcs = FileUtils.readFileToString(f, "ISO-8859-1");
+        String old = getHead(file);
+        String rev = "1." + (heads[file] + 1);
+
+        rcs = rcs.replace("head\t" + old + ";", "head\t" + rev + ";");
+        int delta = rcs.indexOf('\n' + old + "\ndate");
+        rcs = rcs.substring(0, delta) + '\n' + delta(rev, date, AUTHORS[random.nextInt(AUTHORS.length)], "", old)
+            + rcs.substring(delta);
+        rcs = rcs.replace("text\n@" + getContents(file, old) + "@", "text\n@" + reverseDelta(file, old) + "@");
+        int text = rcs.indexOf('\n' + old + "\nlog\n");
+        rcs = rcs.substring(0, text) + '\n' + deltaText(rev, message, getContents(file, rev)) + rcs.substring(text);
+
+        FileUtils.writeStringToFile(f, rcs, "ISO-8859-1");
+        heads[file]++;
+    }
+
+    private String rcs(int file) {
+        StringBuilder b = new StringBuilder();
+        b.append("head\t1.").append(revisions).append(";\naccess;\nsymbols");
+        for (int t = 0; t < tags; t++) {
+            b.append("\n\t").append(getTagName(t)).append(":1.").append(1 + t % revisions);
+        }
+        for (int k = 1; k <= branches; k++) {
+            b.append("\n\t").append(getBranchName(k - 1)).append(":1.1.0.").append(2 * k);
+        }
+        b.append(";\nlocks; strict;\ncomment\t@# @;\n\n\n");
+
+        for (int r = revisions; r >= 1; r--) {
+            StringBuilder branchList = new StringBuilder();
+            if (r == 1) {
+                for (int k = 1; k <= branches; k++) {
+                    branchList.append("\n\t1.1.").append(2 * k).append(".1");
+                }
+            }
+            b.append(delta("1." + r, formatDate(new Date(BASE_TIME + r * 3600000L + file * 10L)),
+                AUTHORS[random.nextInt(AUTHORS.length)], branchList.toString(), r > 1 ? "1." + (r - 1) : ""));
+        }
+        for (int k = 1; k <= branches; k++) {
+            b.append(delta("1.1." + 2 * k + ".1",
+                formatDate(new Date(BASE_TIME + (revisions + k) * 3600000L + file * 10L)),
+                AUTHORS[random.nextInt(AUTHORS.length)], "", ""));
+        }
+
+        b.append("\ndesc\n@@\n\n");
+        for (int r = revisions; r >= 1; r--) {
+            String rev = "1." + r;
+            b.append('\n').append(deltaText(rev, "Revision " + rev,
+                r == revisions ? getContents(file, rev) : reverseDelta(file, rev)));
+        }
+        for (int k = 1; k <= branches; k++) {
+            String rev = "1.1." + 2 * k + ".1";
+            // branch revisions are forward deltas from their branch point
+            b.append('\n').append(deltaText(rev, "On " + getBranchName(k - 1),
+                "d1 1\na1 1\n" + getContents(file, rev)));
+        }
+        return b.toString();
+    }
+
+    private static String delta(String rev, String date, String author, String branchList, String next) {
+        return rev + "\ndate\t" + date + ";\tauthor " + author + ";\tstate Exp;\nbranches" + branchList
+            + ";\nnext\t" + next + ";\n\n";
+    }
+
+    private static String deltaText(String rev, String log, String text) {
+        return rev + "\nlog\n@" + log.replace("@", "@@") + "\n@\ntext\n@" + text.replace("@", "@@") + "@\n\n";
+    }
+
+    /**
+     * Edit script that turns the contents of the next trunk revision into the given one.
+     */
+    private static String reverseDelta(int file, String rev) {
+        return "d1 1\na1 1\n" + getContents(file, rev);
+    }
+
+    private static String formatDate(Date date) {
+        SimpleDateFormat f = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss");
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return f.format(date);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.scm.CVSChangeLogSet.Revision;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link Revision}
+ */
+public class RevisionTest {
+
+    @Test
+    public void testParseAndToString() {
+        assertEquals("1.5", new Revision("1.5").toString());
+        assertEquals("1.5.2.13", new Revision("1.5.2.13").toString());
+        assertEquals("1.70000", new Revision("1.70000").toString());
+        assertEquals("1.5.2.13.4.2", new Revision("1.5.2.13.4.2").toString());
+        assertArrayEquals(new int[]{1, 5, 2, 13}, new Revision("1.5.2.13").getNumbers());
+        assertEquals(4, new Revision("1.5.2.13").getDepth());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testGetNumbersReturnsCopy() {
+        assertArrayEquals(new int[]{1, 5, 2, 12}, new Revision("1.5.2.13").getPrevious().getNumbers());
+        Revision packed = new Revision("1.5.2.13");
+        packed.getNumbers()[0] = 9;
+        assertEquals("1.5.2.13", packed.toString());
+        Revision wide = new Revision("1.5.2.13.4.2");
+        wide.getNumbers()[0] = 9;
+        assertEquals("1.5.2.13.4.2", wide.toString());
+        assertEquals(new Revision("1.5.2.13.4.2"), wide);
+        int[] numbers = {1, 70000};
+        Revision copied = new Revision(numbers);
+        numbers[1] = 2;
+        assertEquals("1.70000", copied.toString());
+    }
+
+    @Test
+    public void testUnparseableRevisionIsKept() {
+        CVSChangeLogSet.File file = new CVSChangeLogSet.File();
+        file.setRevision("1.5\tlocked by: joe;");
+        file.setPrevrevision("1.4");
+        assertEquals("1.5", file.getRevision());
+        assertEquals(new Revision("1.4"), file.getPrevrevisionNumber());
+        file.setRevision("1.x");
+        assertEquals("1.x", file.getRevision());
+        assertNull(file.getRevisionNumber());
+        file.setRevision("1.6");
+        assertEquals("1.6", file.getRevision());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseInvalid() {
+        new Revision("1..2");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseEmpty() {
+        new Revision("");
+    }
+
+    @Test
+    public void testGetPrevious() {
+        assertEquals(new Revision("1.4"), new Revision("1.5").getPrevious());
+        assertEquals(new Revision("1.5.2.12"), new Revision("1.5.2.13").getPrevious());
+        assertEquals(new Revision("1.5"), new Revision("1.5.2.1").getPrevious());
+        assertEquals(new Revision("1.5.2.13.4.1"), new Revision("1.5.2.13.4.2").getPrevious());
+        assertEquals(new Revision("1.5.2.13"), new Revision("1.5.2.13.4.1").getPrevious());
+        assertEquals(new Revision("1.69999"), new Revision("1.70000").getPrevious());
+        assertNull(new Revision("1.1").getPrevious());
+    }
+
+    @Test
+    public void testGetPreviousIsCached() {
+        Revision r = new Revision("1.5");
+        assertSame(r.getPrevious(), r.getPrevious());
+    }
+
+    @Test
+    public void testIntArrayConstructorMatchesParsing() {
+        assertEquals(new Revision("1.5.2.13"), new Revision(new int[]{1, 5, 2, 13}));
+        assertEquals(new Revision("1.5.2.13").hashCode(), new Revision(new int[]{1, 5, 2, 13}).hashCode());
+        assertEquals(new Revision("1.5.2.13.4.2"), new Revision(new int[]{1, 5, 2, 13, 4, 2}));
+    }
+
+    @Test
+    public void testCompareTo() {
+        assertTrue(new Revision("1.2").compareTo(new Revision("1.2.2.1")) < 0);
+        assertTrue(new Revision("1.2.2.1").compareTo(new Revision("1.3")) < 0);
+        assertTrue(new Revision("1.9").compareTo(new Revision("1.10")) < 0);
+        assertTrue(new Revision("1.70000").compareTo(new Revision("1.9")) > 0);
+        assertTrue(new Revision("1.5.2.13.4.2").compareTo(new Revision("1.5.2.14")) < 0);
+        assertEquals(0, new Revision("1.5").compareTo(new Revision("1.5")));
+    }
+
+    @Test
+    public void testIsInitial() {
+        assertTrue(new Revision("1.1").isInitial());
+        assertFalse(new Revision("1.2").isInitial());
+        assertFalse(new Revision("1.1.2.1").isInitial());
+    }
+}
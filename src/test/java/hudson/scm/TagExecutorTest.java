@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link TagExecutor}
+ */
+public class TagExecutorTest {
+
+    private final int threads = TagExecutor.THREADS;
+    private final int threadsPerRoot = TagExecutor.THREADS_PER_ROOT;
+    private final boolean failFast = TagExecutor.FAIL_FAST;
+
+    @After
+    public void tearDown() {
+        TagExecutor.THREADS = threads;
+        TagExecutor.THREADS_PER_ROOT = threadsPerRoot;
+        TagExecutor.FAIL_FAST = failFast;
+    }
+
+    @Test
+    public void testLimitsConcurrencyPerRoot() throws Exception {
+        TagExecutor.THREADS = 4;
+        TagExecutor.THREADS_PER_ROOT = 1;
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        RecordingPlan plan = new RecordingPlan();
+        for (int i = 0; i < 6; i++) {
+            plan.commands.add(new TagExecutor.Command(":pserver:cvs.example.org:/cvs", "module" + i) {
+                boolean run(TaskListener listener) throws InterruptedException {
+                    int n = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), n));
+                    }
+                    Thread.sleep(20);
+                    running.decrementAndGet();
+                    return true;
+                }
+            });
+        }
+        assertTrue(new TagExecutor(listener()).execute(Arrays.<TagExecutor.Plan>asList(plan)));
+        assertEquals(Boolean.TRUE, plan.success);
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void testBusyRootDoesNotHoldThreads() throws Exception {
+        TagExecutor.THREADS = 2;
+        TagExecutor.THREADS_PER_ROOT = 1;
+        final CountDownLatch other = new CountDownLatch(1);
+        RecordingPlan plan = new RecordingPlan();
+        for (int i = 0; i < 3; i++) {
+            // the commands of the busy root only complete once the other root has been tagged
+            plan.commands.add(new TagExecutor.Command(":pserver:busy.example.org:/cvs", "module" + i) {
+                boolean run(TaskListener listener) throws InterruptedException {
+                    return other.await(5, TimeUnit.SECONDS);
+                }
+            });
+        }
+        plan.commands.add(new TagExecutor.Command(":pserver:other.example.org:/cvs", "other") {
+            boolean run(TaskListener listener) {
+                other.countDown();
+                return true;
+            }
+        });
+        assertTrue(new TagExecutor(listener()).execute(Arrays.<TagExecutor.Plan>asList(plan)));
+        assertEquals(Boolean.TRUE, plan.success);
+    }
+
+    @Test
+    public void testContinueOnError() throws Exception {
+        TagExecutor.FAIL_FAST = false;
+        TagExecutor.THREADS = 1;
+        RecordingPlan failing = new RecordingPlan();
+        failing.commands.add(command(false));
+        RecordingPlan succeeding = new RecordingPlan();
+        succeeding.commands.add(command(true));
+        assertFalse(new TagExecutor(listener()).execute(Arrays.<TagExecutor.Plan>asList(failing, succeeding)));
+        assertEquals(Boolean.FALSE, failing.success);
+        assertEquals(Boolean.TRUE, succeeding.success);
+    }
+
+    @Test
+    public void testFailFast() throws Exception {
+        TagExecutor.FAIL_FAST = true;
+        TagExecutor.THREADS = 1;
+        RecordingPlan failing = new RecordingPlan();
+        failing.commands.add(command(false));
+        RecordingPlan skipped = new RecordingPlan();
+        skipped.commands.add(command(true));
+        assertFalse(new TagExecutor(listener()).execute(Arrays.<TagExecutor.Plan>asList(failing, skipped)));
+        assertEquals(Boolean.FALSE, failing.success);
+        assertEquals(Boolean.FALSE, skipped.success);
+    }
+
+    private static TaskListener listener() {
+        return new StreamTaskListener(new ByteArrayOutputStream());
+    }
+
+    private static TagExecutor.Command command(final boolean result) {
+        return new TagExecutor.Command(":local:/cvs", "command") {
+            boolean run(TaskListener listener) {
+                return result;
+            }
+        };
+    }
+
+    private static class RecordingPlan extends TagExecutor.Plan {
+        private Boolean success;
+
+        void completed(boolean success, TaskListener listener) {
+            this.success = success;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import hudson.FilePath;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link WorkspaceArchiver}
+ */
+public class WorkspaceArchiverTest {
+
+    private static final String ROOT = ":pserver:anonymous@cvs.example.org:/cvsroot";
+
+    private File tmp;
+
+    @Before
+    public void setUp() throws IOException {
+        tmp = File.createTempFile("archiver", "");
+        assertTrue(tmp.delete());
+        File module = new File(tmp, "ws/module");
+        writeControlFiles(module, "module", "/Foo.java/1.5/dummy//\nD/src////\n");
+        writeControlFiles(new File(module, "src"), "module/src", "/Bar.java/1.2/dummy//\n");
+        // not controlled by CVS
+        assertTrue(new File(module, "target/CVS").mkdirs());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tmp);
+    }
+
+    @Test
+    public void testArchive() throws Exception {
+        WorkspaceArchiver.Result r = archive();
+
+        assertEquals(6, r.manifest.size());
+        assertEquals("module/src/CVS/Entries", r.workspacePaths.get("module/src/CVS/Entries"));
+        assertEquals(ControlFileStore.hash("/Bar.java/1.2/dummy//\n".getBytes()),
+            r.manifest.get("module/src/CVS/Entries"));
+        assertEquals(2, r.revisions.size());
+        assertEquals("1.2", r.revisions.getRevisions(ROOT).get("module/src/Bar.java"));
+    }
+
+    @Test
+    public void testStoreOnlyKeepsDistinctFiles() throws Exception {
+        ControlFileStore store = new ControlFileStore(new File(tmp, "store"));
+        WorkspaceArchiver.Result r = archive();
+        store.fetchMissing(new FilePath(new File(tmp, "ws")), r);
+        // both directories have the same CVS/Root
+        assertEquals(5, r.newFiles);
+
+        FileUtils.writeStringToFile(new File(tmp, "ws/module/CVS/Entries"), "/Foo.java/1.6/dummy//\nD/src////\n");
+        r = archive();
+        store.fetchMissing(new FilePath(new File(tmp, "ws")), r);
+        assertEquals(1, r.newFiles);
+
+        File destdir = new File(tmp, "extracted");
+        store.extract(r.manifest, destdir);
+        assertEquals("/Foo.java/1.6/dummy//\nD/src////\n",
+            FileUtils.readFileToString(new File(destdir, "module/CVS/Entries")));
+        assertEquals(ROOT + "\n", FileUtils.readFileToString(new File(destdir, "module/src/CVS/Root")));
+    }
+
+    @Test
+    public void testGcRemovesUnreferencedFiles() throws Exception {
+        ControlFileStore store = new ControlFileStore(new File(tmp, "store"));
+        File first = new File(tmp, "1/workspace.manifest");
+        assertTrue(first.getParentFile().mkdirs());
+        store.add(new FilePath(new File(tmp, "ws")), archive(), first);
+        String oldEntries = ControlFileStore.readManifest(first).get("module/CVS/Entries");
+
+        FileUtils.writeStringToFile(new File(tmp, "ws/module/CVS/Entries"), "/Foo.java/1.6/dummy//\nD/src////\n");
+        File second = new File(tmp, "2/workspace.manifest");
+        assertTrue(second.getParentFile().mkdirs());
+        store.add(new FilePath(new File(tmp, "ws")), archive(), second);
+
+        // the first build is deleted
+        assertEquals(1, store.gc(Arrays.asList(second)));
+        assertFalse(store.contains(oldEntries));
+        File destdir = new File(tmp, "extracted");
+        store.extract(ControlFileStore.readManifest(second), destdir);
+        assertEquals("/Foo.java/1.6/dummy//\nD/src////\n",
+            FileUtils.readFileToString(new File(destdir, "module/CVS/Entries")));
+
+        // so is the second one
+        assertEquals(5, store.gc(Collections.<File>emptyList()));
+        assertEquals(0, new File(tmp, "store").list().length);
+    }
+
+    private WorkspaceArchiver.Result archive() throws Exception {
+        return new WorkspaceArchiver(new String[]{"module"}, new String[]{"module"}).invoke(new File(tmp, "ws"), null);
+    }
+
+    private static void writeControlFiles(File dir, String repository, String entries) throws IOException {
+        FileUtils.writeStringToFile(new File(dir, "CVS/Root"), ROOT + "\n");
+        FileUtils.writeStringToFile(new File(dir, "CVS/Repository"), repository + "\n");
+        FileUtils.writeStringToFile(new File(dir, "CVS/Entries"), entries);
+    }
+}
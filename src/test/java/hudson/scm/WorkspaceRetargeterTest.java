@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link WorkspaceRetargeter}
+ */
+public class WorkspaceRetargeterTest {
+
+    private static final String OLD_ROOT = ":pserver:anonymous:secret@localhost:/cvsroot";
+    private static final String NEW_ROOT = ":pserver:anonymous:other@127.0.0.1:/cvsroot";
+
+    private File ws;
+
+    @Before
+    public void setUp() throws IOException {
+        ws = File.createTempFile("retarget", "");
+        assertTrue(ws.delete());
+        writeRoot(new File(ws, "module"), OLD_ROOT);
+        writeRoot(new File(ws, "module/src"), OLD_ROOT);
+        // checked out from somewhere else, left alone
+        writeRoot(new File(ws, "module/vendor"), ":pserver:anonymous@cvs.example.org:/vendor");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(ws);
+    }
+
+    @Test
+    public void testIsSameRepository() {
+        assertTrue(WorkspaceRetargeter.isSameRepository(":pserver:user:a@host:/cvsroot", ":pserver:user:b@host:/cvsroot"));
+        assertTrue(WorkspaceRetargeter.isSameRepository(":pserver:user@HOST:/cvsroot", ":pserver:user@host:/cvsroot"));
+        assertTrue(WorkspaceRetargeter.isSameRepository(":pserver:user@localhost:/cvsroot",
+            ":pserver:user@127.0.0.1:/cvsroot"));
+        assertFalse(WorkspaceRetargeter.isSameRepository(":pserver:user@host:/cvsroot", ":pserver:other@host:/cvsroot"));
+        assertFalse(WorkspaceRetargeter.isSameRepository(":pserver:user@host:/cvsroot", ":ext:user@host:/cvsroot"));
+        assertFalse(WorkspaceRetargeter.isSameRepository(":pserver:user@host:/cvsroot", ":pserver:user@host:/other"));
+        assertFalse(WorkspaceRetargeter.isSameRepository(":pserver:user@host:2402/cvsroot",
+            ":pserver:user@host:/cvsroot"));
+        assertFalse(WorkspaceRetargeter.isSameRepository("/var/cvs", "/var/cvs2"));
+    }
+
+    @Test
+    public void testRewritesRoots() throws IOException {
+        assertNull(new WorkspaceRetargeter(new String[]{"module"}, NEW_ROOT).invoke(ws, null));
+        assertEquals(NEW_ROOT, readRoot(new File(ws, "module")));
+        assertEquals(NEW_ROOT, readRoot(new File(ws, "module/src")));
+        assertEquals(":pserver:anonymous@cvs.example.org:/vendor", readRoot(new File(ws, "module/vendor")));
+    }
+
+    @Test
+    public void testOtherRepository() throws IOException {
+        String root = ":pserver:anonymous@cvs.example.org:/cvsroot";
+        assertNotNull(new WorkspaceRetargeter(new String[]{"module"}, root).invoke(ws, null));
+        assertEquals(OLD_ROOT, readRoot(new File(ws, "module")));
+        assertNotNull(new WorkspaceRetargeter(new String[]{"missing"}, OLD_ROOT).invoke(ws, null));
+    }
+
+    private static void writeRoot(File dir, String root) throws IOException {
+        FileUtils.writeStringToFile(new File(dir, "CVS/Root"), root + '\n');
+    }
+
+    private static String readRoot(File dir) throws IOException {
+        return FileUtils.readFileToString(new File(dir, "CVS/Root")).trim();
+    }
+}
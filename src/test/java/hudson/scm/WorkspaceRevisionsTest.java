@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2012, Oracle Corporation, Kohsuke Kawaguchi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.scm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link WorkspaceRevisions}
+ */
+public class WorkspaceRevisionsTest {
+
+    private static final String ROOT = ":pserver:anonymous@cvs.example.org:/cvsroot";
+
+    @Test
+    public void testParseEntry() {
+        Map<String, WorkspaceRevisions.Entry> entries = new HashMap<String, WorkspaceRevisions.Entry>();
+        WorkspaceRevisions.parseEntry("/Foo.java/1.5/Thu Jan  1 00:00:00 2009//", entries);
+        WorkspaceRevisions.parseEntry("/Bar.java/1.2.4.1/Thu Jan  1 00:00:00 2009//Tbranch", entries);
+        WorkspaceRevisions.parseEntry("/Added.java/0/dummy timestamp//", entries);
+        WorkspaceRevisions.parseEntry("/Removed.java/-1.3/dummy timestamp//", entries);
+        WorkspaceRevisions.parseEntry("D/src////", entries);
+        WorkspaceRevisions.parseEntry("D", entries);
+        assertEquals(2, entries.size());
+        assertEquals(new WorkspaceRevisions.Entry("1.5", ""), entries.get("Foo.java"));
+        assertEquals(new WorkspaceRevisions.Entry("1.2.4.1", "Tbranch"), entries.get("Bar.java"));
+    }
+
+    @Test
+    public void testGetRepositoryPath() {
+        assertEquals("module/src", WorkspaceRevisions.getRepositoryPath(ROOT, "module/src"));
+        assertEquals("module/src", WorkspaceRevisions.getRepositoryPath(ROOT, "/cvsroot/module/src\n"));
+        assertEquals("module", WorkspaceRevisions.getRepositoryPath(":local:/cvsroot/", "/cvsroot/module"));
+        assertEquals("/elsewhere/module", WorkspaceRevisions.getRepositoryPath(ROOT, "/elsewhere/module"));
+        assertEquals("", WorkspaceRevisions.getRepositoryPath(ROOT, "."));
+    }
+
+    @Test
+    public void testAddDirectory() {
+        Map<String, WorkspaceRevisions.Entry> entries = new HashMap<String, WorkspaceRevisions.Entry>();
+        entries.put("Foo.java", new WorkspaceRevisions.Entry("1.5", ""));
+        WorkspaceRevisions revisions = new WorkspaceRevisions();
+        revisions.addDirectory("module", ROOT, "/cvsroot/module/src", entries);
+        assertEquals(1, revisions.size());
+        assertEquals("1.5", revisions.getRevisions(ROOT).get("module/src/Foo.java"));
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        WorkspaceRevisions revisions = new WorkspaceRevisions();
+        revisions.add("module", ROOT, "module/src/Foo.java", "1.5", "");
+        revisions.add("module", ROOT, "module/src/FooBar.java", "1.5", "");
+        revisions.add("module", ROOT, "module/README", "1.2", "Tbranch");
+        revisions.add("other", ":local:/var/cvs", "other/README", "1.1", "");
+
+        StringWriter w = new StringWriter();
+        revisions.write(w, null, 0);
+        // paths are written sorted, sharing their prefix with the previous path
+        assertTrue(w.toString(), w.toString().contains("\n7 src/Foo.java\t1.5\t\n14 Bar.java\t1.5\t\n"));
+
+        WorkspaceRevisions read = read(w.toString(), null);
+        assertEquals(4, read.size());
+        assertEquals("1.1", read.getRevisions(":local:/var/cvs").get("other/README"));
+
+        Map<String, List<String>> byRevision = WorkspaceRevisions.groupByRevision(read.getRevisions(ROOT));
+        assertEquals(2, byRevision.size());
+        assertEquals(Arrays.asList("module/src/Foo.java", "module/src/FooBar.java"), byRevision.get("1.5"));
+        assertEquals(Arrays.asList("module/README"), byRevision.get("1.2"));
+    }
+
+    @Test
+    public void testDelta() throws Exception {
+        final WorkspaceRevisions base = new WorkspaceRevisions();
+        base.add("module", ROOT, "module/Foo.java", "1.5", "");
+        base.add("module", ROOT, "module/Bar.java", "1.2", "");
+        base.add("module", ROOT, "module/Baz.java", "1.1", "");
+        base.write(new StringWriter(), null, 0);
+
+        WorkspaceRevisions revisions = new WorkspaceRevisions();
+        revisions.add("module", ROOT, "module/Foo.java", "1.6", "");
+        revisions.add("module", ROOT, "module/Bar.java", "1.2", "");
+        revisions.add("module", ROOT, "module/Qux.java", "1.1", "");
+        StringWriter w = new StringWriter();
+        revisions.write(w, base, 41);
+        assertFalse(w.toString(), w.toString().contains("Bar.java"));
+        assertTrue(w.toString(), w.toString().contains("Baz.java\t-\n"));
+
+        WorkspaceRevisions read = read(w.toString(), new WorkspaceRevisions.BaseResolver() {
+            public WorkspaceRevisions load(int number) {
+                assertEquals(41, number);
+                return base;
+            }
+        });
+        Map<String, String> expected = new TreeMap<String, String>();
+        expected.put("module/Foo.java", "1.6");
+        expected.put("module/Bar.java", "1.2");
+        expected.put("module/Qux.java", "1.1");
+        assertEquals(expected, read.getRevisions(ROOT));
+    }
+
+    private static WorkspaceRevisions read(String manifest, WorkspaceRevisions.BaseResolver resolver)
+        throws IOException {
+        return WorkspaceRevisions.read(new BufferedReader(new StringReader(manifest)), resolver);
+    }
+}